@@ -16,21 +16,23 @@
 
 package anthos.samples.bankofanthos.balancereader;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.dao.DataAccessResourceFailureException;
-import org.springframework.web.client.ResourceAccessException;
-
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 
 /**
- * BalanceCache creates the LoadingCache that handles caching
+ * BalanceCache creates the BalanceStore that handles caching
  * and retrieving account balances from the TransactionRepository.
  */
 @Configuration
@@ -39,36 +41,129 @@ public class BalanceCache {
     private static final Logger LOGGER =
         LogManager.getLogger(BalanceCache.class);
 
+    // independently locked parts of the store
+    private static final int SEGMENTS = 64;
+    // refreshes waiting for a refresh thread, beyond which reads do not
+    // schedule more
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+    private static final BalanceStore.LoadedBalance ZERO =
+        new BalanceStore.LoadedBalance(0, 0);
+
     @Autowired
     private TransactionRepository dbRepo;
+    @Autowired
+    private BalanceMaterializer materializer;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private LedgerReader ledgerReader;
 
     /**
-     * Initializes the LoadingCache for the BalanceReaderController
+     * Initializes the BalanceStore for the BalanceReaderController
+     *
+     * With MATERIALIZED_BALANCES, the cache is unbounded, and accounts
+     * missing from it once it is loaded have a zero balance.
+     *
+     * Concurrent cache misses are loaded together, in batches of up to
+     * BALANCE_LOAD_BATCH_SIZE accounts gathered over BALANCE_LOAD_WINDOW_MS.
+     *
+     * Without MATERIALIZED_BALANCES, cached balances read after
+     * BALANCE_REFRESH_AFTER_MS, or while the ledger reader lags by more
+     * than BALANCE_REFRESH_LAG_MS, are reloaded by BALANCE_REFRESH_THREADS
+     * background threads, and served meanwhile unless
+     * BALANCE_REFRESH_SERVE_STALE is false.
      *
      * @param expireSize max size of the cache
+     * @param loadWindowMs max wait for other misses, or 0 to not batch
+     * @param loadBatchSize max number of misses loaded by one query
+     * @param refreshAfterMs age after which balances are refreshed
+     * @param refreshLagMs reader lag after which balances are refreshed
+     * @param refreshThreads number of threads refreshing balances
+     * @param serveStale whether stale balances are served while refreshed
      * @param localRoutingNum bank routing number for account
-     * @return the LoadingCache storing accountIds and their balances
+     * @return the BalanceStore storing accountIds and their balances
      */
-    @Bean (name = "cache")
-    public LoadingCache<String, Long> initializeCache(
+    @Bean(name = "cache")
+    public BalanceStore initializeCache(
         @Value("${CACHE_SIZE:1000000}") final Integer expireSize,
+        @Value("${BALANCE_LOAD_WINDOW_MS:2}") final Long loadWindowMs,
+        @Value("${BALANCE_LOAD_BATCH_SIZE:100}") final Integer loadBatchSize,
+        @Value("${BALANCE_REFRESH_AFTER_MS:0}") final Long refreshAfterMs,
+        @Value("${BALANCE_REFRESH_LAG_MS:0}") final Long refreshLagMs,
+        @Value("${BALANCE_REFRESH_THREADS:4}") final Integer refreshThreads,
+        @Value("${BALANCE_REFRESH_SERVE_STALE:true}") final Boolean serveStale,
         @Value("${LOCAL_ROUTING_NUM}") String localRoutingNum) {
-        CacheLoader loader =  new CacheLoader<String, Long>() {
+        BalanceStore.BalanceLoader loader = new BalanceStore.BalanceLoader() {
             @Override
-            public Long load(String accountId)
-                throws ResourceAccessException,
-                DataAccessResourceFailureException {
+            public BalanceStore.LoadedBalance load(String accountId) {
+                if (materializer.isLoaded()) {
+                    // every account with transactions is in the cache
+                    return ZERO;
+                }
                 LOGGER.debug("Cache loaded from db");
-                Long balance = dbRepo.findBalance(accountId, localRoutingNum);
+                TransactionRepository.BalanceAsOf balance =
+                    dbRepo.findBalanceAsOf(accountId, localRoutingNum);
                 if (balance == null) {
-                    balance = 0L;
+                    return ZERO;
                 }
-                return balance;
+                return new BalanceStore.LoadedBalance(
+                    balance.getBalance(), balance.getAsOf());
+            }
+
+            @Override
+            public Map<String, BalanceStore.LoadedBalance> loadAll(
+                List<String> accountIds) {
+                Map<String, BalanceStore.LoadedBalance> balances =
+                    new HashMap<>();
+                for (String accountId : accountIds) {
+                    balances.put(accountId, ZERO);
+                }
+                if (materializer.isLoaded()) {
+                    return balances;
+                }
+                LOGGER.debug(String.format("Cache loaded %d balances "
+                    + "from db", accountIds.size()));
+                for (TransactionRepository.AccountBalanceAsOf balance
+                    : dbRepo.findBalancesAsOf(accountIds,
+                        localRoutingNum)) {
+                    balances.put(balance.getAccountId(),
+                        new BalanceStore.LoadedBalance(
+                            balance.getBalance(), balance.getAsOf()));
+                }
+                return balances;
             }
         };
-        return CacheBuilder.newBuilder()
-            .recordStats()
-            .maximumSize(expireSize)
-            .build(loader);
+        if (loadWindowMs > 0 && loadBatchSize > 1) {
+            loader = new CoalescingBalanceLoader(loader, loadWindowMs,
+                loadBatchSize, meterRegistry);
+        }
+        if (materializer.isEnabled()
+            || (refreshAfterMs <= 0 && refreshLagMs <= 0)) {
+            // materialized balances are only updated by the ledger reader
+            return new BalanceStore(materializer.isEnabled() ? 0 : expireSize,
+                SEGMENTS, loader);
+        }
+        BalanceStore.RefreshPolicy refreshPolicy =
+            new BalanceStore.RefreshPolicy(refreshAfterMs, refreshLagMs,
+                () -> (long) (ledgerReader.getLagSeconds() * 1000),
+                serveStale);
+        return new BalanceStore(expireSize, SEGMENTS, loader, refreshPolicy,
+            refreshExecutor(refreshThreads));
+    }
+
+    /**
+     * @return a bounded pool of daemon threads, which rejects refreshes
+     *         once REFRESH_QUEUE_SIZE are waiting
+     */
+    private static ThreadPoolExecutor refreshExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable,
+                    "balance-refresh-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
     }
 }
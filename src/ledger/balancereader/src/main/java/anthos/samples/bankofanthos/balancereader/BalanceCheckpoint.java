@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import jakarta.annotation.PreDestroy;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * BalanceCheckpoint periodically saves the balance cache, with the
+ * LedgerReader watermark, to CHECKPOINT_PATH, and restores it at startup
+ * so that a restarted service only replays the transactions since.
+ *
+ * Disabled unless CHECKPOINT_PATH is set.
+ */
+@Component
+public class BalanceCheckpoint {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(BalanceCheckpoint.class);
+
+    // format version of the checkpoint body
+    private static final int VERSION = 3;
+
+    private final BalanceStore cache;
+    private final LedgerReader ledgerReader;
+    private final BalanceMaterializer materializer;
+    private final CheckpointFile file;
+
+    private volatile boolean started;
+
+    @Autowired
+    public BalanceCheckpoint(BalanceStore cache,
+        LedgerReader ledgerReader,
+        BalanceMaterializer materializer,
+        @Value("${CHECKPOINT_PATH:}") String path) {
+        this.cache = cache;
+        this.ledgerReader = ledgerReader;
+        this.materializer = materializer;
+        this.file = path.isEmpty()
+            ? null : new CheckpointFile(Paths.get(path), VERSION);
+    }
+
+    /**
+     * Loads the checkpoint into the cache. Must be called before the
+     * LedgerReader is started; the cache is left empty on failure.
+     * With MATERIALIZED_BALANCES, only a checkpoint of every balance is
+     * restored, and marks the balances as loaded.
+     *
+     * @return the watermark to resume the LedgerReader from,
+     *         or null to start from the latest ledger transaction
+     */
+    public Long restore() {
+        started = true;
+        if (file == null) {
+            return null;
+        }
+        if (LedgerReader.REPLICATION_MODE.equals(ledgerReader.getMode())) {
+            LOGGER.warn("Checkpoints are not restored in replication mode");
+            return null;
+        }
+        try {
+            CheckpointFile.Contents<Balances> checkpoint =
+                file.read(BalanceCheckpoint::readBalances);
+            if (checkpoint == null) {
+                LOGGER.info("No checkpoint, starting with an empty cache");
+                return null;
+            }
+            Balances balances = checkpoint.getBody();
+            if (materializer.isEnabled() && !balances.complete) {
+                LOGGER.info("Checkpoint does not hold every balance, "
+                    + "materializing instead");
+                return null;
+            }
+            // a balance loaded ahead of the reader already reflects
+            // transactions after the watermark, which must not be
+            // replayed onto it
+            for (Map.Entry<String, BalanceStore.LoadedBalance> balance
+                : balances.balances.entrySet()) {
+                cache.put(balance.getKey(), balance.getValue().getBalance(),
+                    balance.getValue().getAsOf());
+            }
+            if (materializer.isEnabled()) {
+                materializer.markLoaded();
+            }
+            LOGGER.info(String.format("Restored %d balances as of "
+                + "transaction %d", balances.balances.size(),
+                checkpoint.getWatermark()));
+            return checkpoint.getWatermark();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn(String.format("Ignoring unreadable checkpoint: %s",
+                e.getMessage()));
+            cache.invalidateAll();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the cache every CHECKPOINT_INTERVAL_MS.
+     */
+    @Scheduled(fixedDelayString = "${CHECKPOINT_INTERVAL_MS:60000}",
+        initialDelayString = "${CHECKPOINT_INTERVAL_MS:60000}")
+    public void checkpoint() {
+        if (file == null || !started || !ledgerReader.isAlive()) {
+            return;
+        }
+        // copy the cache between two reader batches, write it after
+        Balances balances = new Balances();
+        long watermark = ledgerReader.atWatermark(latest -> {
+            balances.complete = materializer.isLoaded();
+            cache.forEach((accountId, balance, asOf) ->
+                balances.balances.put(accountId,
+                    new BalanceStore.LoadedBalance(balance, asOf)));
+            return latest;
+        });
+        try {
+            long size = file.write(watermark,
+                out -> writeBalances(out, balances));
+            LOGGER.debug(String.format("Checkpointed %d balances as of "
+                + "transaction %d (%d bytes)", balances.balances.size(),
+                watermark,
+                size));
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Failed to write checkpoint: %s",
+                e.getMessage()));
+        }
+    }
+
+    /**
+     * Saves the cache on shutdown, e.g. during a rollout.
+     */
+    @PreDestroy
+    public void shutdown() {
+        checkpoint();
+    }
+
+    private static void writeBalances(DataOutputStream out,
+        Balances balances) throws IOException {
+        out.writeBoolean(balances.complete);
+        out.writeInt(balances.balances.size());
+        for (Map.Entry<String, BalanceStore.LoadedBalance> balance
+            : balances.balances.entrySet()) {
+            out.writeUTF(balance.getKey());
+            out.writeLong(balance.getValue().getBalance());
+            out.writeLong(balance.getValue().getAsOf());
+        }
+    }
+
+    private static Balances readBalances(DataInputStream in)
+        throws IOException {
+        Balances balances = new Balances();
+        balances.complete = in.readBoolean();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String accountId = in.readUTF();
+            long balance = in.readLong();
+            balances.balances.put(accountId,
+                new BalanceStore.LoadedBalance(balance, in.readLong()));
+        }
+        return balances;
+    }
+
+    /**
+     * Checkpoint body: the cached balances, each with the id of the latest
+     * transaction it reflects, and whether they are every local balance
+     * (MATERIALIZED_BALANCES) or only the cached ones.
+     */
+    private static final class Balances {
+        private boolean complete;
+        private final Map<String, BalanceStore.LoadedBalance> balances =
+            new HashMap<>();
+    }
+}
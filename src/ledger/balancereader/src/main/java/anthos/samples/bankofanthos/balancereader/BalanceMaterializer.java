@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * BalanceMaterializer reads the balance of every local account from the
+ * ACCOUNT_BALANCES summary, when MATERIALIZED_BALANCES is set.
+ *
+ * Once loaded, the balance cache holds every local account, and is kept
+ * up to date by the LedgerReader alone: accounts missing from it have a
+ * zero balance, and are never loaded from the database.
+ */
+@Component
+public class BalanceMaterializer {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(BalanceMaterializer.class);
+
+    private static final String LATEST_ID_QUERY =
+        "SELECT MAX(transaction_id) FROM transactions";
+    private static final String BALANCES_QUERY =
+        "SELECT acct, balance, last_txn_id FROM account_balances "
+        + "WHERE route = ?";
+
+    /**
+     * Receives each materialized balance.
+     */
+    interface BalanceSink {
+        void accept(String accountId, long balance, long asOf);
+    }
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${MATERIALIZED_BALANCES:false}")
+    private boolean enabled;
+    @Value("${BALANCE_LOAD_FETCH_SIZE:10000}")
+    private Integer fetchSize;
+    @Value("${LOCAL_ROUTING_NUM}")
+    private String localRoutingNum;
+
+    private volatile boolean loaded;
+
+    /**
+     * @return true if MATERIALIZED_BALANCES is set
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true once every local balance is in the cache
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Marks the cache as no longer holding every local balance, e.g.
+     * before it is loaded again.
+     */
+    public void reset() {
+        loaded = false;
+    }
+
+    /**
+     * Marks the cache as holding every local balance, e.g. after
+     * restoring it from a checkpoint.
+     */
+    public void markLoaded() {
+        loaded = true;
+    }
+
+    /**
+     * Streams the balance of every local account to a sink.
+     *
+     * The summary, which is updated in the same database transaction as
+     * every insert, and the latest transaction id are read from the same
+     * snapshot, so the balances reflect exactly the transactions up
+     * to the returned id. Rows are fetched BALANCE_LOAD_FETCH_SIZE at a
+     * time, rather than as a single result list.
+     *
+     * @param sink called with each account id, balance, and the id of
+     *        the latest transaction of the account
+     * @return the latest transaction id reflected in the balances
+     * @throws SQLException if the ledger could not be read
+     */
+    public long load(BalanceSink sink) throws SQLException {
+        long start = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection()) {
+            // a cursor needs a transaction, and one snapshot serves both
+            // queries
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            connection.setTransactionIsolation(
+                Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                long watermark = latestTransactionId(connection);
+                long count = 0;
+                try (PreparedStatement statement =
+                    connection.prepareStatement(BALANCES_QUERY)) {
+                    statement.setFetchSize(fetchSize);
+                    statement.setString(1, localRoutingNum);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        while (rows.next()) {
+                            sink.accept(rows.getString(1), rows.getLong(2),
+                                rows.getLong(3));
+                            count++;
+                        }
+                    }
+                }
+                LOGGER.info(String.format("Materialized %d balances as of "
+                    + "transaction %d in %d ms", count, watermark,
+                    System.currentTimeMillis() - start));
+                return watermark;
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static long latestTransactionId(Connection connection)
+        throws SQLException {
+        try (PreparedStatement statement =
+            connection.prepareStatement(LATEST_ID_QUERY);
+            ResultSet rows = statement.executeQuery()) {
+            rows.next();
+            long latestId = rows.getLong(1);
+            // no transactions in the ledger
+            return rows.wasNull() ? -1 : latestId;
+        }
+    }
+}
@@ -25,10 +25,13 @@ import javax.annotation.PreDestroy;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.tracing.zipkin.ZipkinAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Entry point for the BalanceReader Spring Boot application.
@@ -36,6 +39,7 @@ import org.springframework.context.annotation.Bean;
  * Microservice to track the bank balance for each user account.
  */
 @SpringBootApplication(exclude = ZipkinAutoConfiguration.class)
+@EnableScheduling
 public class BalanceReaderApplication {
 
     private static final Logger LOGGER =
@@ -73,6 +77,42 @@ public class BalanceReaderApplication {
         LOGGER.info("BalanceReader service shutting down");
     }
 
+    /**
+     * Routes reads to the ledger-db replicas in LEDGER_REPLICA_URLS, if
+     * any (see ReplicaRoutingDataSource).
+     *
+     * @return a post processor wrapping the DataSource
+     */
+    @Bean
+    public static BeanPostProcessor replicaRouting(
+        @Value("${LEDGER_REPLICA_URLS:}") String replicaUrls,
+        @Value("${LEDGER_REPLICA_MAX_LAG_MS:1000}") long maxLagMs,
+        @Value("${LEDGER_REPLICA_CHECK_MS:1000}") long checkMs,
+        @Value("${LEDGER_REPLICA_TIMEOUT_MS:1000}") int timeoutMs) {
+        return ReplicaRoutingDataSource.postProcessor(replicaUrls, maxLagMs,
+            checkMs, timeoutMs);
+    }
+
+    /**
+     * Caps the database connections borrowed at once when requests are
+     * served on virtual threads (VIRTUAL_THREADS).
+     *
+     * @return a post processor wrapping the DataSource
+     */
+    @Bean
+    public static BeanPostProcessor dataSourceConcurrencyLimit(
+        @Value("${spring.threads.virtual.enabled:false}")
+        boolean virtualThreads,
+        @Value("${DB_MAX_CONCURRENCY:"
+            + "${spring.datasource.hikari.maximum-pool-size:10}}")
+        int maxConcurrency,
+        @Value("${spring.datasource.hikari.connection-timeout:30000}")
+        long timeoutMs) {
+        return ConcurrencyLimitingDataSource.postProcessor(
+            VirtualThreads.isActive(virtualThreads) ? maxConcurrency : 0,
+            timeoutMs);
+    }
+
     /**
      * Initializes Meter Registry with custom Stackdriver configuration
      *
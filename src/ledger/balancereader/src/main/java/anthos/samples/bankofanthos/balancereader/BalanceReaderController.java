@@ -16,25 +16,42 @@
 
 package anthos.samples.bankofanthos.balancereader;
 
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
-import com.google.common.cache.LoadingCache;
-import com.google.common.util.concurrent.UncheckedExecutionException;
-import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.stackdriver.StackdriverMeterRegistry;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
-import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 /**
  * REST service to retrieve the current balance for the authenticated user.
@@ -44,6 +61,18 @@ public final class BalanceReaderController {
 
     private static final Logger LOGGER =
         LogManager.getLogger(BalanceReaderController.class);
+    private static final long MATERIALIZE_RETRY_MS = 1000;
+    // accounts resolved, and loaded in one query, per batchGet chunk
+    private static final int BATCH_GET_CHUNK_SIZE = 1000;
+    // JWT claim of the accounts a token may read in a batch, besides acct
+    static final String ACCOUNTS_CLAIM = "accts";
+    // space-separated JWT claim of the token scopes
+    static final String SCOPE_CLAIM = "scope";
+    // scope of tokens that may read the balance of any account in a
+    // batch, e.g. the tokens of reconciliation jobs and admin tools
+    static final String READ_ALL_SCOPE = "balances:read";
+    private static final JsonFactory JSON = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
     @Autowired
     private TransactionRepository dbRepo;
@@ -52,8 +81,12 @@ public final class BalanceReaderController {
     private String version;
 
     private JWTVerifier verifier;
-    private LoadingCache<String, Long> cache;
+    private BalanceStore cache;
     private LedgerReader ledgerReader;
+    private BalanceMaterializer materializer;
+    private BalanceStream stream;
+    private Counter notModified;
+    private Counter modified;
 
     /**
      * Constructor.
@@ -64,7 +97,10 @@ public final class BalanceReaderController {
     public BalanceReaderController(LedgerReader reader,
         JWTVerifier verifier,
         StackdriverMeterRegistry meterRegistry,
-        LoadingCache<String, Long> cache,
+        BalanceStore cache,
+        BalanceCheckpoint checkpoint,
+        BalanceMaterializer materializer,
+        BalanceStream stream,
         @Value("${LOCAL_ROUTING_NUM}") final String localRoutingNum,
         @Value("${VERSION}") final String version) {
         // Initialize JWT verifier.
@@ -72,30 +108,89 @@ public final class BalanceReaderController {
         LOGGER.debug("Initialized JWT verifier");
         // Initialize cache
         this.cache = cache;
-        GuavaCacheMetrics.monitor(meterRegistry, this.cache, "Guava");
+        this.materializer = materializer;
+        this.stream = stream;
+        BalanceStoreMetrics.monitor(meterRegistry, this.cache, "balances");
+        this.notModified = conditionalRequests(meterRegistry, "not_modified");
+        this.modified = conditionalRequests(meterRegistry, "modified");
         LOGGER.debug("Initialized cache");
         this.version = version;
         // Initialize transaction processor.
         this.ledgerReader = reader;
         LOGGER.debug("Initialized transaction processor");
-        this.ledgerReader.startWithCallback(transaction -> {
-            final String fromId = transaction.getFromAccountNum();
-            final String fromRouting = transaction.getFromRoutingNum();
-            final String toId = transaction.getToAccountNum();
-            final String toRouting = transaction.getToRoutingNum();
-            final Integer amount = transaction.getAmount();
-
-            if (fromRouting.equals(localRoutingNum)
-                && this.cache.asMap().containsKey(fromId)) {
-                Long prevBalance = cache.asMap().get(fromId);
-                this.cache.put(fromId, prevBalance - amount);
+        LedgerReaderCallback callback = new LedgerReaderCallback() {
+            @Override
+            public void processTransaction(String accountId,
+                Transaction transaction) {
+                final Integer amount = transaction.getAmount();
+                long delta = 0;
+                if (accountId.equals(transaction.getToAccountNum())
+                    && localRoutingNum.equals(
+                        transaction.getToRoutingNum())) {
+                    delta += amount;
+                }
+                if (accountId.equals(transaction.getFromAccountNum())
+                    && localRoutingNum.equals(
+                        transaction.getFromRoutingNum())) {
+                    delta -= amount;
+                }
+                long transactionId = transaction.getTransactionId();
+                if (materializer.isLoaded()) {
+                    // may be the first transaction of the account
+                    cache.add(accountId, transactionId, delta);
+                } else {
+                    cache.addIfPresent(accountId, transactionId, delta);
+                }
+                stream.publish(accountId);
             }
-            if (toRouting.equals(localRoutingNum)
-                && this.cache.asMap().containsKey(toId)) {
-                Long prevBalance = cache.asMap().get(toId);
-                this.cache.put(toId, prevBalance + amount);
+
+            @Override
+            public void processLateTransaction(String accountId,
+                Transaction transaction) {
+                // the cached balance may claim the transaction without
+                // reflecting it: reload it on the next read
+                cache.invalidate(accountId);
+                stream.publish(accountId);
+            }
+        };
+        LedgerResyncCallback resync = latestTransactionId -> {
+            // the ledger went backwards: reload accounts from the ledger
+            LOGGER.info("Invalidating cache after ledger resync");
+            if (materializer.isEnabled()) {
+                materializer.reset();
+                this.cache.invalidateAll();
+                return materialize();
             }
-        });
+            this.cache.invalidateAll();
+            return latestTransactionId;
+        };
+        if (materializer.isEnabled()
+            && LedgerReader.REPLICATION_MODE.equals(reader.getMode())) {
+            throw new IllegalStateException("MATERIALIZED_BALANCES is not "
+                + "supported in replication mode");
+        }
+        // resume from the last checkpoint, if any
+        Long watermark = checkpoint.restore();
+        if (materializer.isEnabled() && !materializer.isLoaded()) {
+            // load every balance in the background, then resume from it
+            Thread loader = new Thread(() -> this.ledgerReader
+                .startWithCallback(callback, resync, materialize()),
+                "balance-materializer");
+            loader.start();
+        } else if (watermark != null) {
+            this.ledgerReader.startWithCallback(callback, resync, watermark);
+        } else {
+            this.ledgerReader.startWithCallback(callback, resync);
+        }
+    }
+
+    private static Counter conditionalRequests(
+        StackdriverMeterRegistry meterRegistry, String result) {
+        return Counter.builder("balancereader.conditional.requests")
+            .description("Balance requests, by whether the balance changed "
+                + "since the If-None-Match ETag")
+            .tag("result", result)
+            .register(meterRegistry);
     }
 
     /**
@@ -111,12 +206,41 @@ public final class BalanceReaderController {
     /**
      * Readiness probe endpoint.
      *
-     * @return HTTP Status 200 if server is ready to receive requests.
+     * @return HTTP Status 200 if server is ready to receive requests,
+     *         or 503 while balances are being materialized.
      */
     @GetMapping("/ready")
-    @ResponseStatus(HttpStatus.OK)
-    public String readiness() {
-        return "ok";
+    public ResponseEntity readiness() {
+        if (materializer.isEnabled() && !materializer.isLoaded()) {
+            return new ResponseEntity<>("Loading balances",
+                HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return new ResponseEntity<>("ok", HttpStatus.OK);
+    }
+
+    /**
+     * Loads every local balance into the cache, retrying every POLL_MS
+     * until the ledger can be read.
+     *
+     * @return the latest transaction id reflected in the cache
+     */
+    private long materialize() {
+        while (true) {
+            try {
+                long watermark = materializer.load(cache::put);
+                materializer.markLoaded();
+                return watermark;
+            } catch (SQLException | DataAccessException e) {
+                LOGGER.warn(String.format("Could not materialize balances, "
+                    + "retrying: %s", e.getMessage()));
+                try {
+                    Thread.sleep(MATERIALIZE_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ie);
+                }
+            }
+        }
     }
 
     /**
@@ -139,15 +263,18 @@ public final class BalanceReaderController {
      * Return the balance for the specified account.
      *
      * The currently authenticated user must be allowed to access the account.
+     * The ETag is the id of the latest transaction the balance reflects:
+     * a request with a matching If-None-Match gets a 304 instead.
      *
      * @param bearerToken  HTTP request 'Authorization' header
      * @param accountId    the account to get the balance for
+     * @param request      the request, for conditional headers
      * @return             the balance of the account
      */
     @GetMapping("/balances/{accountId}")
     public ResponseEntity<?> getBalance(
         @RequestHeader("Authorization") String bearerToken,
-        @PathVariable String accountId) {
+        @PathVariable String accountId, WebRequest request) {
 
         if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
             bearerToken = bearerToken.split("Bearer ")[1];
@@ -162,16 +289,180 @@ public final class BalanceReaderController {
                     HttpStatus.UNAUTHORIZED);
             }
             // Load from cache
-            Long balance = cache.get(accountId);
-            return new ResponseEntity<Long>(balance, HttpStatus.OK);
+            BalanceStore.LoadedBalance balance = cache.getVersioned(accountId);
+            if (balance.getAsOf() != BalanceStore.UNVERSIONED
+                && request.checkNotModified(
+                    Long.toString(balance.getAsOf()))) {
+                // 304, with the ETag set by checkNotModified
+                notModified.increment();
+                return null;
+            }
+            modified.increment();
+            return new ResponseEntity<Long>(balance.getBalance(),
+                HttpStatus.OK);
         } catch (JWTVerificationException e) {
             LOGGER.error("Failed to retrieve account balance: not authorized");
             return new ResponseEntity<>("not authorized",
                 HttpStatus.UNAUTHORIZED);
-        } catch (ExecutionException | UncheckedExecutionException e) {
+        } catch (ExecutionException e) {
             LOGGER.error("Cache error");
             return new ResponseEntity<>("cache error",
                 HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
+
+    /**
+     * Stream the balance of the specified account as server-sent events.
+     *
+     * The current balance is sent first, then the new balance every time
+     * a transaction changes it. Each event has the id of the latest
+     * transaction it reflects.
+     *
+     * @param bearerToken  HTTP request 'Authorization' header
+     * @param accountId    the account to stream the balance of
+     * @return             the event stream, or 503 if too many are open
+     */
+    @GetMapping(path = "/balances/{accountId}/stream",
+        produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> streamBalance(
+        @RequestHeader("Authorization") String bearerToken,
+        @PathVariable String accountId) {
+
+        if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
+            bearerToken = bearerToken.split("Bearer ")[1];
+        }
+        try {
+            DecodedJWT jwt = verifier.verify(bearerToken);
+            // Check that the authenticated user can access this account.
+            if (!accountId.equals(jwt.getClaim("acct").asString())) {
+                LOGGER.error("Failed to stream account balance: "
+                    + "not authorized");
+                return new ResponseEntity<>("not authorized",
+                    HttpStatus.UNAUTHORIZED);
+            }
+        } catch (JWTVerificationException e) {
+            LOGGER.error("Failed to stream account balance: not authorized");
+            return new ResponseEntity<>("not authorized",
+                HttpStatus.UNAUTHORIZED);
+        }
+        SseEmitter emitter = stream.subscribe(accountId);
+        if (emitter == null) {
+            LOGGER.warn("Failed to stream account balance: "
+                + "too many streams");
+            return new ResponseEntity<>("too many streams",
+                HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return new ResponseEntity<>(emitter, HttpStatus.OK);
+    }
+
+    /**
+     * Return the balances of several accounts.
+     *
+     * Each account is authorized separately: accounts the token cannot
+     * read get an error instead of a balance. A token reads its own
+     * account (acct), the accounts in its accts claim, and every account
+     * if its scope claim holds READ_ALL_SCOPE. The response is streamed,
+     * BATCH_GET_CHUNK_SIZE accounts at a time.
+     *
+     * @param bearerToken  HTTP request 'Authorization' header
+     * @param request      the accounts to get the balances for
+     * @return             a JSON object with a balances array
+     */
+    @PostMapping("/balances:batchGet")
+    public ResponseEntity<?> batchGetBalances(
+        @RequestHeader("Authorization") String bearerToken,
+        @RequestBody BatchGetBalancesRequest request) {
+
+        if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
+            bearerToken = bearerToken.split("Bearer ")[1];
+        }
+        Predicate<String> authorized;
+        try {
+            authorized = readableAccounts(verifier.verify(bearerToken));
+        } catch (JWTVerificationException e) {
+            LOGGER.error("Failed to retrieve account balances: "
+                + "not authorized");
+            return new ResponseEntity<>("not authorized",
+                HttpStatus.UNAUTHORIZED);
+        }
+        List<String> accountIds = request.getAccountIds() == null
+            ? Collections.emptyList() : request.getAccountIds();
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = JSON.createGenerator(out)) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("balances");
+                for (int from = 0; from < accountIds.size();
+                    from += BATCH_GET_CHUNK_SIZE) {
+                    writeBalances(json, accountIds.subList(from,
+                        Math.min(from + BATCH_GET_CHUNK_SIZE,
+                            accountIds.size())), authorized);
+                    json.flush();
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+        };
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(body);
+    }
+
+    /**
+     * @param jwt a verified token
+     * @return whether the token may read the balance of an account in a
+     *         batch
+     * @throws JWTVerificationException if a claim is malformed
+     */
+    private static Predicate<String> readableAccounts(DecodedJWT jwt) {
+        Claim scope = jwt.getClaim(SCOPE_CLAIM);
+        if (scope != null && !scope.isNull() && scope.asString() != null
+            && Arrays.asList(scope.asString().split(" "))
+                .contains(READ_ALL_SCOPE)) {
+            return accountId -> true;
+        }
+        Set<String> accounts = new HashSet<>();
+        accounts.add(jwt.getClaim("acct").asString());
+        Claim listed = jwt.getClaim(ACCOUNTS_CLAIM);
+        if (listed != null && !listed.isNull()
+            && listed.asList(String.class) != null) {
+            accounts.addAll(listed.asList(String.class));
+        }
+        accounts.remove(null);
+        return accounts::contains;
+    }
+
+    /**
+     * Writes the balance, or the error, of each account in a chunk.
+     */
+    private void writeBalances(JsonGenerator json, List<String> accountIds,
+        Predicate<String> authorized) throws IOException {
+        List<String> readable = new ArrayList<>();
+        for (String accountId : accountIds) {
+            if (accountId != null && authorized.test(accountId)) {
+                readable.add(accountId);
+            }
+        }
+        Map<String, Long> balances = Collections.emptyMap();
+        boolean failed = false;
+        if (!readable.isEmpty()) {
+            try {
+                balances = cache.getAll(readable);
+            } catch (ExecutionException e) {
+                LOGGER.error("Cache error");
+                failed = true;
+            }
+        }
+        for (String accountId : accountIds) {
+            json.writeStartObject();
+            json.writeStringField("accountId", accountId);
+            if (accountId == null || !authorized.test(accountId)) {
+                json.writeStringField("error", "not authorized");
+            } else if (failed) {
+                json.writeStringField("error", "cache error");
+            } else {
+                json.writeNumberField("balance", balances.get(accountId));
+            }
+            json.writeEndObject();
+        }
+    }
 }
@@ -0,0 +1,1191 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+
+/**
+ * BalanceStore caches account balances in open-addressing hash tables of
+ * primitive longs, keyed by the numeric value of the account number.
+ *
+ * Account numbers are 10-digit strings, so each entry costs three longs
+ * and a reference bit, instead of a String key, a boxed Long and a cache
+ * entry object. Any other account id is never cached, and is loaded on
+ * every get().
+ *
+ * Each entry remembers the id of the latest transaction reflected in its
+ * balance, so that a transaction is applied exactly once whether it is
+ * read by the loader, by the ledger reader, or both. Transactions applied
+ * while a balance is loading are kept with the load, and added to the
+ * loaded balance if it does not already reflect them.
+ *
+ * The store is split into segments, each guarded by a StampedLock: reads
+ * are optimistic, and transactions are added to cached balances in place
+ * under the shared lock, so neither blocks on the other. Only inserts,
+ * evictions and loads take the exclusive lock. When a bounded store is
+ * full, a segment evicts one of its entries not read since the clock hand
+ * last passed it (CLOCK, an LRU approximation).
+ *
+ * With a RefreshPolicy, balances older than a maximum age are reloaded
+ * in the background when read, and the cached balance is served while
+ * the refresh runs, so that a read never waits on the database for a
+ * balance that is cached.
+ */
+public final class BalanceStore {
+
+    /**
+     * Loads the balance of an account missing from the store.
+     */
+    interface BalanceLoader {
+        LoadedBalance load(String accountId);
+
+        /**
+         * Loads several balances at once. Must return a balance for
+         * every account id.
+         */
+        default Map<String, LoadedBalance> loadAll(List<String> accountIds) {
+            Map<String, LoadedBalance> balances = new HashMap<>();
+            for (String accountId : accountIds) {
+                balances.put(accountId, load(accountId));
+            }
+            return balances;
+        }
+    }
+
+    /**
+     * Receives cached balances.
+     */
+    interface BalanceConsumer {
+        void accept(String accountId, long balance, long asOf);
+    }
+
+    /**
+     * A balance, and the id of the latest transaction it reflects.
+     */
+    static final class LoadedBalance {
+        private final long balance;
+        private final long asOf;
+
+        LoadedBalance(long balance, long asOf) {
+            this.balance = balance;
+            this.asOf = asOf;
+        }
+
+        long getBalance() {
+            return balance;
+        }
+
+        long getAsOf() {
+            return asOf;
+        }
+    }
+
+    /**
+     * When, and how, cached balances are reloaded.
+     */
+    static final class RefreshPolicy {
+        private final long refreshAfterNanos;
+        private final long lagThresholdNanos;
+        private final LongSupplier readerLagMillis;
+        private final boolean serveStale;
+
+        /**
+         * @param refreshAfterMs age after which a balance is refreshed,
+         *        or 0 to only refresh while the ledger reader lags
+         * @param lagThresholdMs ledger reader lag after which balances
+         *        older than the lag are refreshed, or 0 to ignore the lag
+         * @param readerLagMillis the current ledger reader lag
+         * @param serveStale whether a stale balance is served while it
+         *        is refreshed, rather than after
+         */
+        RefreshPolicy(long refreshAfterMs, long lagThresholdMs,
+            LongSupplier readerLagMillis, boolean serveStale) {
+            this.refreshAfterNanos = TimeUnit.MILLISECONDS.toNanos(
+                refreshAfterMs);
+            this.lagThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+                lagThresholdMs);
+            this.readerLagMillis = readerLagMillis;
+            this.serveStale = serveStale;
+        }
+
+        /**
+         * @return the age after which a balance is stale now, or
+         *         Long.MAX_VALUE if no balance is
+         */
+        long maxAgeNanos() {
+            long maxAge = refreshAfterNanos > 0
+                ? refreshAfterNanos : Long.MAX_VALUE;
+            if (lagThresholdNanos > 0) {
+                // a balance loaded after the latest applied transaction
+                // is fresher than the reader
+                long lag = TimeUnit.MILLISECONDS.toNanos(
+                    readerLagMillis.getAsLong());
+                if (lag > lagThresholdNanos) {
+                    maxAge = Math.min(maxAge, lag);
+                }
+            }
+            return maxAge;
+        }
+    }
+
+    private static final VarHandle LONGS =
+        MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final long EMPTY = -1;
+    static final long UNVERSIONED = -1;
+    private static final int ACCOUNT_DIGITS = 10;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final BalanceLoader loader;
+    private final RefreshPolicy refreshPolicy;
+    private final Executor refreshExecutor;
+    // refreshes in flight, by key
+    private final ConcurrentMap<Long, CompletableFuture<LoadedBalance>>
+        refreshes = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder refreshSuccesses = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder refreshNanos = new LongAdder();
+
+    /**
+     * @param maximumSize max number of balances, or 0 for unbounded
+     * @param segmentCount number of independently locked segments,
+     *        rounded up to a power of two
+     * @param loader loads balances missing from the store
+     */
+    BalanceStore(long maximumSize, int segmentCount, BalanceLoader loader) {
+        this(maximumSize, segmentCount, loader, null, null);
+    }
+
+    /**
+     * @param maximumSize max number of balances, or 0 for unbounded
+     * @param segmentCount number of independently locked segments,
+     *        rounded up to a power of two
+     * @param loader loads balances missing from the store
+     * @param refreshPolicy when to refresh cached balances, or null to
+     *        never refresh them
+     * @param refreshExecutor runs the refreshes
+     */
+    BalanceStore(long maximumSize, int segmentCount, BalanceLoader loader,
+        RefreshPolicy refreshPolicy, Executor refreshExecutor) {
+        // read by the segments to size their tables
+        this.refreshPolicy = refreshPolicy;
+        this.refreshExecutor = refreshExecutor;
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1)) << 1;
+        if (segmentCount <= 1) {
+            count = 1;
+        }
+        this.segments = new Segment[count];
+        this.segmentShift = Long.SIZE - Integer.numberOfTrailingZeros(count);
+        int segmentSize = maximumSize <= 0 ? Integer.MAX_VALUE
+            : (int) Math.max(1, (maximumSize + count - 1) / count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the balance of an account, loading it if missing.
+     * Concurrent calls for the same missing account share one load.
+     *
+     * @param accountId the account number
+     * @return the balance
+     * @throws ExecutionException if the balance could not be loaded
+     */
+    public long get(String accountId) throws ExecutionException {
+        long key = encode(accountId);
+        if (key == EMPTY) {
+            misses.increment();
+            return load(accountId).balance;
+        }
+        Segment segment = segmentFor(key);
+        long[] found = new long[1];
+        if (segment.get(key, found)) {
+            hits.increment();
+            refreshIfStale(segment, key, accountId, found);
+            return found[0];
+        }
+        misses.increment();
+        PendingLoad pending = segment.startLoad(key, found);
+        if (pending == null) {
+            // loaded while waiting for the lock
+            return found[0];
+        }
+        if (!pending.owner) {
+            return pending.await();
+        }
+        try {
+            LoadedBalance loaded = load(accountId);
+            return pending.complete(segment.finishLoad(key, pending, loaded));
+        } catch (ExecutionException | RuntimeException e) {
+            segment.abandonLoad(key, pending);
+            pending.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the balances of several accounts. Cached balances are read
+     * in one pass, and every missing balance is loaded with one call to
+     * BalanceLoader.loadAll.
+     *
+     * @param accountIds the account numbers
+     * @return the balances, in the order of accountIds
+     * @throws ExecutionException if a balance could not be loaded
+     */
+    public Map<String, Long> getAll(List<String> accountIds)
+        throws ExecutionException {
+        Map<String, Long> balances = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        long[] found = new long[1];
+        for (String accountId : accountIds) {
+            if (balances.containsKey(accountId)) {
+                continue;
+            }
+            long key = encode(accountId);
+            if (key != EMPTY && segmentFor(key).get(key, found)) {
+                hits.increment();
+                refreshIfStale(segmentFor(key), key, accountId, found);
+                balances.put(accountId, found[0]);
+            } else {
+                misses.increment();
+                // keep the order of accountIds
+                balances.put(accountId, null);
+                missing.add(accountId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return balances;
+        }
+        // loads owned by this call, and loads in flight to wait for
+        List<String> toLoad = new ArrayList<>();
+        Map<String, PendingLoad> owned = new HashMap<>();
+        Map<String, PendingLoad> waiting = new HashMap<>();
+        for (String accountId : missing) {
+            long key = encode(accountId);
+            if (key == EMPTY) {
+                toLoad.add(accountId);
+                continue;
+            }
+            PendingLoad pending = segmentFor(key).startLoad(key, found);
+            if (pending == null) {
+                balances.put(accountId, found[0]);
+            } else if (pending.owner) {
+                owned.put(accountId, pending);
+                toLoad.add(accountId);
+            } else {
+                waiting.put(accountId, pending);
+            }
+        }
+        if (!toLoad.isEmpty()) {
+            Map<String, LoadedBalance> loaded;
+            try {
+                loaded = loadAll(toLoad);
+                if (!loaded.keySet().containsAll(toLoad)) {
+                    throw new ExecutionException(new IllegalStateException(
+                        "Balance loader skipped accounts"));
+                }
+            } catch (ExecutionException e) {
+                for (Map.Entry<String, PendingLoad> load : owned.entrySet()) {
+                    long key = encode(load.getKey());
+                    segmentFor(key).abandonLoad(key, load.getValue());
+                    load.getValue().fail(e);
+                }
+                throw e;
+            }
+            for (String accountId : toLoad) {
+                LoadedBalance balance = loaded.get(accountId);
+                PendingLoad pending = owned.get(accountId);
+                long key = encode(accountId);
+                balances.put(accountId, pending == null ? balance.balance
+                    : pending.complete(
+                        segmentFor(key).finishLoad(key, pending, balance)));
+            }
+        }
+        for (Map.Entry<String, PendingLoad> load : waiting.entrySet()) {
+            balances.put(load.getKey(), load.getValue().await());
+        }
+        return balances;
+    }
+
+    /**
+     * Returns the balance of an account, loading it if missing, with the
+     * id of the latest transaction it reflects. Equal ids always come
+     * with equal balances, so the id can serve as a version.
+     *
+     * @param accountId the account number
+     * @return the balance, with an asOf of UNVERSIONED if it was loaded
+     *         but not cached
+     * @throws ExecutionException if the balance could not be loaded
+     */
+    LoadedBalance getVersioned(String accountId) throws ExecutionException {
+        long key = encode(accountId);
+        long[] found = new long[2];
+        if (key != EMPTY && segmentFor(key).get(key, found)) {
+            hits.increment();
+            refreshIfStale(segmentFor(key), key, accountId, found);
+            return new LoadedBalance(found[0], found[1]);
+        }
+        long balance = get(accountId);
+        if (key != EMPTY && segmentFor(key).get(key, found)) {
+            // cached by the load
+            return new LoadedBalance(found[0], found[1]);
+        }
+        return new LoadedBalance(balance, UNVERSIONED);
+    }
+
+    /**
+     * @param accountId the account number
+     * @return the cached balance, or null if missing
+     */
+    public Long getIfPresent(String accountId) {
+        long key = encode(accountId);
+        long[] found = new long[1];
+        if (key != EMPTY && segmentFor(key).get(key, found)) {
+            return found[0];
+        }
+        return null;
+    }
+
+    /**
+     * Caches a balance that reflects every transaction the ledger reader
+     * will not apply, e.g. a materialized or checkpointed balance.
+     *
+     * @param accountId the account number
+     * @param balance the balance
+     * @param asOf the id of the latest transaction the balance reflects
+     */
+    public void put(String accountId, long balance, long asOf) {
+        long key = encode(accountId);
+        if (key != EMPTY) {
+            segmentFor(key).put(key, balance, asOf);
+        }
+    }
+
+    /**
+     * Adds a transaction to a cached or loading balance, unless the
+     * balance already reflects it.
+     *
+     * Transactions for one account must be added in transaction id
+     * order, from one thread at a time, as the LedgerReader does.
+     *
+     * @param accountId the account number
+     * @param transactionId the id of the transaction
+     * @param delta the amount to add
+     * @return false if the balance is neither cached nor loading
+     */
+    public boolean addIfPresent(String accountId, long transactionId,
+        long delta) {
+        long key = encode(accountId);
+        return key != EMPTY
+            && segmentFor(key).add(key, transactionId, delta, false);
+    }
+
+    /**
+     * Adds a transaction to a balance, caching it from zero if it is
+     * neither cached nor loading. See addIfPresent.
+     *
+     * @param accountId the account number
+     * @param transactionId the id of the transaction
+     * @param delta the amount to add
+     */
+    public void add(String accountId, long transactionId, long delta) {
+        long key = encode(accountId);
+        if (key != EMPTY) {
+            segmentFor(key).add(key, transactionId, delta, true);
+        }
+    }
+
+    /**
+     * Discards a cached balance, e.g. one that may not reflect a
+     * transaction it claims by id. A load in flight still returns its
+     * balance, but no longer caches it.
+     *
+     * @param accountId the account number
+     */
+    public void invalidate(String accountId) {
+        long key = encode(accountId);
+        if (key != EMPTY) {
+            segmentFor(key).invalidate(key);
+        }
+    }
+
+    /**
+     * Discards every cached balance. Loads in flight still return their
+     * balance, but no longer cache it.
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Calls an action for every cached balance. Each segment is read
+     * consistently, but not the store as a whole.
+     *
+     * @param action called with each account number, balance, and id of
+     *        the latest transaction the balance reflects
+     */
+    public void forEach(BalanceConsumer action) {
+        for (Segment segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    /**
+     * @return the number of cached balances
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    long putCount() {
+        return puts.sum();
+    }
+
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+    long loadSuccessCount() {
+        return loadSuccesses.sum();
+    }
+
+    long loadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    long totalLoadTime() {
+        return loadNanos.sum();
+    }
+
+    long refreshSuccessCount() {
+        return refreshSuccesses.sum();
+    }
+
+    long refreshFailureCount() {
+        return refreshFailures.sum();
+    }
+
+    long totalRefreshTime() {
+        return refreshNanos.sum();
+    }
+
+    /**
+     * Starts refreshing a cached balance if it is stale. Unless stale
+     * balances may be served, waits for the refresh and reads the
+     * refreshed balance, and its asOf if found has room for it, into
+     * found.
+     */
+    private void refreshIfStale(Segment segment, long key, String accountId,
+        long[] found) throws ExecutionException {
+        if (refreshPolicy == null) {
+            return;
+        }
+        long maxAge = refreshPolicy.maxAgeNanos();
+        if (maxAge == Long.MAX_VALUE
+            || !segment.isStale(key, System.nanoTime() - maxAge)) {
+            return;
+        }
+        CompletableFuture<LoadedBalance> refresh =
+            refresh(segment, key, accountId);
+        if (refreshPolicy.serveStale) {
+            return;
+        }
+        LoadedBalance refreshed = await(refresh);
+        found[0] = refreshed.balance;
+        if (found.length > 1) {
+            found[1] = refreshed.asOf;
+        }
+    }
+
+    /**
+     * Reloads a cached balance on the refresh executor, or joins the
+     * refresh in flight.
+     *
+     * @return the balance cached by the refresh
+     */
+    private CompletableFuture<LoadedBalance> refresh(Segment segment,
+        long key, String accountId) {
+        CompletableFuture<LoadedBalance> refresh = new CompletableFuture<>();
+        CompletableFuture<LoadedBalance> running =
+            refreshes.putIfAbsent(key, refresh);
+        if (running != null) {
+            return running;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    LoadedBalance loaded = loader.load(accountId);
+                    refreshSuccesses.increment();
+                    refresh.complete(segment.refresh(key, loaded));
+                } catch (RuntimeException e) {
+                    refreshFailures.increment();
+                    refresh.completeExceptionally(e);
+                } finally {
+                    refreshNanos.add(System.nanoTime() - start);
+                    refreshes.remove(key, refresh);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor is saturated: try again on a later read
+            refreshFailures.increment();
+            refreshes.remove(key, refresh);
+            refresh.completeExceptionally(e);
+        }
+        return refresh;
+    }
+
+    /**
+     * Waits for a load or refresh, even if interrupted.
+     */
+    private static <T> T await(CompletableFuture<T> result)
+        throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Map<String, LoadedBalance> loadAll(List<String> accountIds)
+        throws ExecutionException {
+        long start = System.nanoTime();
+        Map<String, LoadedBalance> loaded;
+        try {
+            loaded = loader.loadAll(accountIds);
+        } catch (RuntimeException e) {
+            loadFailures.add(accountIds.size());
+            throw new ExecutionException(e);
+        } finally {
+            loadNanos.add(System.nanoTime() - start);
+        }
+        loadSuccesses.add(accountIds.size());
+        return loaded;
+    }
+
+    private LoadedBalance load(String accountId) throws ExecutionException {
+        long start = System.nanoTime();
+        LoadedBalance loaded;
+        try {
+            loaded = loader.load(accountId);
+        } catch (RuntimeException e) {
+            loadFailures.increment();
+            throw new ExecutionException(e);
+        } finally {
+            loadNanos.add(System.nanoTime() - start);
+        }
+        loadSuccesses.increment();
+        return loaded;
+    }
+
+    /**
+     * @param accountId an account id
+     * @return the account number as a long, or EMPTY if it is not a
+     *         10-digit number
+     */
+    static long encode(String accountId) {
+        if (accountId == null || accountId.length() != ACCOUNT_DIGITS) {
+            return EMPTY;
+        }
+        long key = 0;
+        for (int i = 0; i < ACCOUNT_DIGITS; i++) {
+            char c = accountId.charAt(i);
+            if (c < '0' || c > '9') {
+                return EMPTY;
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+
+    /**
+     * @param key an encoded account number
+     * @return the 10-digit account number
+     */
+    static String decode(long key) {
+        char[] digits = new char[ACCOUNT_DIGITS];
+        for (int i = ACCOUNT_DIGITS - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + key % 10);
+            key /= 10;
+        }
+        return new String(digits);
+    }
+
+    private static long hash(long key) {
+        // murmur3 finalizer, so that sequential account numbers spread
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Segment segmentFor(long key) {
+        return segments.length == 1
+            ? segments[0] : segments[(int) (hash(key) >>> segmentShift)];
+    }
+
+    /**
+     * A balance being loaded, and the transactions added to it meanwhile.
+     */
+    private static final class PendingLoad {
+        private final boolean owner;
+        private final CompletableFuture<Long> result;
+        private long[] transactionIds = new long[4];
+        private long[] deltas = new long[4];
+        private int count;
+
+        PendingLoad(CompletableFuture<Long> result, boolean owner) {
+            this.result = result;
+            this.owner = owner;
+        }
+
+        synchronized void add(long transactionId, long delta) {
+            if (count == deltas.length) {
+                transactionIds = Arrays.copyOf(transactionIds, count * 2);
+                deltas = Arrays.copyOf(deltas, count * 2);
+            }
+            transactionIds[count] = transactionId;
+            deltas[count] = delta;
+            count++;
+        }
+
+        synchronized long lastTransactionId() {
+            return count == 0 ? 0 : transactionIds[count - 1];
+        }
+
+        synchronized long sumAfter(long asOf) {
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                if (transactionIds[i] > asOf) {
+                    sum += deltas[i];
+                }
+            }
+            return sum;
+        }
+
+        long complete(long balance) {
+            result.complete(balance);
+            return balance;
+        }
+
+        void fail(Exception e) {
+            result.completeExceptionally(
+                e instanceof ExecutionException ? e.getCause() : e);
+        }
+
+        long await() throws ExecutionException {
+            return BalanceStore.await(result);
+        }
+
+        /**
+         * A view of this load for callers waiting on its owner.
+         */
+        PendingLoad waiter() {
+            return new PendingLoad(result, false);
+        }
+    }
+
+    /**
+     * The arrays of a segment, published together so that an optimistic
+     * reader always sees arrays of the same length.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final long[] values;
+        // id of the latest transaction reflected in each balance
+        private final long[] asOf;
+        // System.nanoTime() of the latest load of each balance, or null
+        // if balances are never refreshed
+        private final long[] refreshedAt;
+        // set on read, cleared by the eviction clock hand
+        private final byte[] referenced;
+
+        Table(int capacity, boolean timed) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            values = new long[capacity];
+            asOf = new long[capacity];
+            refreshedAt = timed ? new long[capacity] : null;
+            referenced = new byte[capacity];
+        }
+
+        int indexOf(long key) {
+            int mask = keys.length - 1;
+            int index = (int) hash(key) & mask;
+            for (int probes = 0; probes < keys.length; probes++) {
+                long candidate = keys[index];
+                if (candidate == key) {
+                    return index;
+                }
+                if (candidate == EMPTY) {
+                    return -1;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        long value(int index) {
+            return (long) LONGS.getAcquire(values, index);
+        }
+
+        long asOf(int index) {
+            return (long) LONGS.getAcquire(asOf, index);
+        }
+
+        void insert(long key, long value, long transactionId,
+            long refreshTime, byte reference) {
+            int mask = keys.length - 1;
+            int index = (int) hash(key) & mask;
+            while (keys[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+            asOf[index] = transactionId;
+            if (refreshedAt != null) {
+                refreshedAt[index] = refreshTime;
+            }
+            referenced[index] = reference;
+        }
+    }
+
+    /**
+     * A linear probing hash table. EMPTY marks a free slot; deletions
+     * shift later entries back instead of leaving tombstones.
+     *
+     * Keys, table and loads change only under the write lock. Balances of
+     * existing entries also change under the read lock, one account at a
+     * time per thread, so they are read and written atomically.
+     */
+    private final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private final int maximumSize;
+        private final Map<Long, PendingLoad> loads = new HashMap<>();
+        private Table table = newTable(INITIAL_CAPACITY);
+        private int size;
+        private int hand;
+
+        Segment(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        /**
+         * Reads a cached balance into found[0], and, if found has room
+         * for it, the id of the latest transaction it reflects into
+         * found[1]. The id is read first: adds publish it after the
+         * balance, so the balance reflects at least that transaction.
+         */
+        boolean get(long key, long[] found) {
+            long stamp = lock.tryOptimisticRead();
+            Table t = table;
+            int index = t.indexOf(key);
+            long asOf = index >= 0 ? t.asOf(index) : 0;
+            long value = index >= 0 ? t.value(index) : 0;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    t = table;
+                    index = t.indexOf(key);
+                    asOf = index >= 0 ? t.asOf(index) : 0;
+                    value = index >= 0 ? t.value(index) : 0;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            // benign race: only a hint for eviction
+            t.referenced[index] = 1;
+            found[0] = value;
+            if (found.length > 1) {
+                found[1] = asOf;
+            }
+            return true;
+        }
+
+        /**
+         * Registers a load, or joins the one in flight.
+         *
+         * @return null, with the balance in found, if it is now cached
+         */
+        PendingLoad startLoad(long key, long[] found) {
+            long stamp = lock.writeLock();
+            try {
+                int index = table.indexOf(key);
+                if (index >= 0) {
+                    found[0] = table.values[index];
+                    return null;
+                }
+                PendingLoad pending = loads.get(key);
+                if (pending != null) {
+                    return pending.waiter();
+                }
+                pending = new PendingLoad(new CompletableFuture<>(), true);
+                loads.put(key, pending);
+                return pending;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Caches a loaded balance, with the transactions added while it
+         * was loading that it does not reflect.
+         *
+         * @return the cached balance
+         */
+        long finishLoad(long key, PendingLoad pending, LoadedBalance loaded) {
+            long stamp = lock.writeLock();
+            try {
+                long balance = loaded.balance + pending.sumAfter(loaded.asOf);
+                if (loads.get(key) != pending) {
+                    // invalidated while loading
+                    return balance;
+                }
+                loads.remove(key);
+                int index = table.indexOf(key);
+                if (index >= 0) {
+                    // put while loading
+                    return table.values[index];
+                }
+                insert(key, balance,
+                    Math.max(loaded.asOf, pending.lastTransactionId()));
+                puts.increment();
+                return balance;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @return true if the balance is cached, and was last loaded
+         *         before the given System.nanoTime()
+         */
+        boolean isStale(long key, long loadedBefore) {
+            long stamp = lock.tryOptimisticRead();
+            Table t = table;
+            int index = t.indexOf(key);
+            long refreshedAt = index >= 0 ? t.refreshedAt[index] : 0;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    t = table;
+                    index = t.indexOf(key);
+                    refreshedAt = index >= 0 ? t.refreshedAt[index] : 0;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return index >= 0 && refreshedAt - loadedBefore < 0;
+        }
+
+        /**
+         * Replaces a cached balance with a reloaded one, unless the cached
+         * balance already reflects the same or later transactions.
+         *
+         * @return the cached balance, or the reloaded one if the balance
+         *         is no longer cached
+         */
+        LoadedBalance refresh(long key, LoadedBalance loaded) {
+            long stamp = lock.writeLock();
+            try {
+                int index = table.indexOf(key);
+                if (index < 0) {
+                    // evicted or invalidated while refreshing
+                    return loaded;
+                }
+                if (loaded.asOf > table.asOf[index]) {
+                    table.values[index] = loaded.balance;
+                    table.asOf[index] = loaded.asOf;
+                    puts.increment();
+                }
+                table.refreshedAt[index] = System.nanoTime();
+                return new LoadedBalance(table.values[index],
+                    table.asOf[index]);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void abandonLoad(long key, PendingLoad pending) {
+            long stamp = lock.writeLock();
+            try {
+                if (loads.get(key) == pending) {
+                    loads.remove(key);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void put(long key, long value, long transactionId) {
+            long stamp = lock.writeLock();
+            try {
+                int index = table.indexOf(key);
+                if (index >= 0) {
+                    table.values[index] = value;
+                    table.asOf[index] = transactionId;
+                    if (table.refreshedAt != null) {
+                        table.refreshedAt[index] = System.nanoTime();
+                    }
+                } else {
+                    insert(key, value, transactionId);
+                }
+                puts.increment();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean add(long key, long transactionId, long delta,
+            boolean insertIfAbsent) {
+            long stamp = lock.readLock();
+            try {
+                if (addShared(key, transactionId, delta)) {
+                    return true;
+                }
+                if (!insertIfAbsent) {
+                    return false;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            stamp = lock.writeLock();
+            try {
+                if (!addShared(key, transactionId, delta)) {
+                    insert(key, delta, transactionId);
+                    puts.increment();
+                }
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Adds a transaction to a cached or loading balance, under either
+         * lock.
+         */
+        private boolean addShared(long key, long transactionId, long delta) {
+            Table t = table;
+            int index = t.indexOf(key);
+            if (index >= 0) {
+                if (transactionId > (long) LONGS.getAcquire(t.asOf, index)) {
+                    LONGS.getAndAdd(t.values, index, delta);
+                    LONGS.setRelease(t.asOf, index, transactionId);
+                    puts.increment();
+                }
+                return true;
+            }
+            PendingLoad pending = loads.get(key);
+            if (pending != null) {
+                pending.add(transactionId, delta);
+                return true;
+            }
+            return false;
+        }
+
+        void invalidate(long key) {
+            long stamp = lock.writeLock();
+            try {
+                int index = table.indexOf(key);
+                if (index >= 0) {
+                    removeAt(index);
+                }
+                loads.remove(key);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                table = newTable(INITIAL_CAPACITY);
+                loads.clear();
+                size = 0;
+                hand = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(BalanceConsumer action) {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.keys[i] != EMPTY) {
+                        action.accept(decode(t.keys[i]), t.value(i),
+                            t.asOf(i));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void insert(long key, long value, long transactionId) {
+            if (size >= maximumSize) {
+                evict();
+            } else if (size + 1 > table.keys.length * LOAD_FACTOR) {
+                resize(table.keys.length * 2);
+            }
+            table.insert(key, value, transactionId, System.nanoTime(),
+                (byte) 0);
+            size++;
+        }
+
+        private Table newTable(int capacity) {
+            return new Table(capacity, refreshPolicy != null);
+        }
+
+        private void evict() {
+            long[] keys = table.keys;
+            byte[] referenced = table.referenced;
+            int mask = keys.length - 1;
+            while (true) {
+                hand = (hand + 1) & mask;
+                if (keys[hand] == EMPTY) {
+                    continue;
+                }
+                if (referenced[hand] != 0) {
+                    referenced[hand] = 0;
+                    continue;
+                }
+                removeAt(hand);
+                evictions.increment();
+                return;
+            }
+        }
+
+        private void removeAt(int slot) {
+            long[] keys = table.keys;
+            long[] values = table.values;
+            long[] asOf = table.asOf;
+            long[] refreshedAt = table.refreshedAt;
+            byte[] referenced = table.referenced;
+            int mask = keys.length - 1;
+            int free = slot;
+            int index = slot;
+            while (true) {
+                index = (index + 1) & mask;
+                long key = keys[index];
+                if (key == EMPTY) {
+                    break;
+                }
+                int home = (int) hash(key) & mask;
+                // move the entry back unless its home slot lies
+                // cyclically in (free, index]
+                boolean stays = free <= index
+                    ? free < home && home <= index
+                    : free < home || home <= index;
+                if (!stays) {
+                    keys[free] = key;
+                    values[free] = values[index];
+                    asOf[free] = asOf[index];
+                    if (refreshedAt != null) {
+                        refreshedAt[free] = refreshedAt[index];
+                    }
+                    referenced[free] = referenced[index];
+                    free = index;
+                }
+            }
+            keys[free] = EMPTY;
+            referenced[free] = 0;
+            size--;
+        }
+
+        private void resize(int capacity) {
+            Table old = table;
+            Table resized = newTable(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.keys[i] != EMPTY) {
+                    resized.insert(old.keys[i], old.values[i], old.asOf[i],
+                        old.refreshedAt == null ? 0 : old.refreshedAt[i],
+                        old.referenced[i]);
+                }
+            }
+            table = resized;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.cache.CacheMeterBinder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers the standard cache.* meters for a BalanceStore, the same way
+ * GuavaCacheMetrics does for a Guava cache.
+ */
+public final class BalanceStoreMetrics extends CacheMeterBinder<BalanceStore> {
+
+    private static final String DESCRIPTION_CACHE_LOAD =
+        "The number of times cache lookup methods have successfully loaded "
+        + "a new value or failed to load a new value because an exception "
+        + "was thrown while loading";
+    private static final String DESCRIPTION_CACHE_REFRESH =
+        "The number of times stale values have been reloaded successfully, "
+        + "or have failed to reload or to be scheduled for reloading";
+
+    /**
+     * @param store the store to instrument
+     * @param cacheName the value of the cache tag
+     * @param tags additional tags
+     */
+    public BalanceStoreMetrics(BalanceStore store, String cacheName,
+        Iterable<Tag> tags) {
+        super(store, cacheName, tags);
+    }
+
+    /**
+     * Instruments a BalanceStore.
+     *
+     * @param registry the registry to bind the meters to
+     * @param store the store to instrument
+     * @param cacheName the value of the cache tag
+     * @return the store
+     */
+    public static BalanceStore monitor(MeterRegistry registry,
+        BalanceStore store, String cacheName) {
+        new BalanceStoreMetrics(store, cacheName, Tags.empty())
+            .bindTo(registry);
+        return store;
+    }
+
+    @Override
+    protected Long size() {
+        BalanceStore store = getCache();
+        return store == null ? null : store.size();
+    }
+
+    @Override
+    protected long hitCount() {
+        BalanceStore store = getCache();
+        return store == null ? 0 : store.hitCount();
+    }
+
+    @Override
+    protected Long missCount() {
+        BalanceStore store = getCache();
+        return store == null ? null : store.missCount();
+    }
+
+    @Override
+    protected Long evictionCount() {
+        BalanceStore store = getCache();
+        return store == null ? null : store.evictionCount();
+    }
+
+    @Override
+    protected long putCount() {
+        BalanceStore store = getCache();
+        return store == null ? 0 : store.putCount();
+    }
+
+    @Override
+    protected void bindImplementationSpecificMetrics(MeterRegistry registry) {
+        BalanceStore store = getCache();
+        TimeGauge.builder("cache.load.duration", store,
+            TimeUnit.NANOSECONDS, BalanceStore::totalLoadTime)
+            .tags(getTagsWithCacheName())
+            .description("The time the cache has spent loading new values")
+            .register(registry);
+        FunctionCounter.builder("cache.load", store,
+            BalanceStore::loadSuccessCount)
+            .tags(getTagsWithCacheName())
+            .tags("result", "success")
+            .description(DESCRIPTION_CACHE_LOAD)
+            .register(registry);
+        FunctionCounter.builder("cache.load", store,
+            BalanceStore::loadFailureCount)
+            .tags(getTagsWithCacheName())
+            .tags("result", "failure")
+            .description(DESCRIPTION_CACHE_LOAD)
+            .register(registry);
+        TimeGauge.builder("cache.refresh.duration", store,
+            TimeUnit.NANOSECONDS, BalanceStore::totalRefreshTime)
+            .tags(getTagsWithCacheName())
+            .description("The time the cache has spent reloading stale "
+                + "values")
+            .register(registry);
+        FunctionCounter.builder("cache.refresh", store,
+            BalanceStore::refreshSuccessCount)
+            .tags(getTagsWithCacheName())
+            .tags("result", "success")
+            .description(DESCRIPTION_CACHE_REFRESH)
+            .register(registry);
+        FunctionCounter.builder("cache.refresh", store,
+            BalanceStore::refreshFailureCount)
+            .tags(getTagsWithCacheName())
+            .tags("result", "failure")
+            .description(DESCRIPTION_CACHE_REFRESH)
+            .register(registry);
+    }
+}
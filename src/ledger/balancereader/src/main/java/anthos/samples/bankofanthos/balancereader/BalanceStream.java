@@ -0,0 +1,236 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * BalanceStream pushes the balance of an account to server-sent event
+ * subscribers whenever the LedgerReader changes it.
+ *
+ * Subscribers are indexed by account. Each connection is an async
+ * request, so it holds no Tomcat thread while open: events, and a
+ * heartbeat every BALANCE_STREAM_HEARTBEAT_MS, are written by a single
+ * sender thread. Changes to an account made while its event is waiting
+ * to be sent are coalesced into that event, which carries the latest
+ * cached balance, so a burst of transactions never queues up more than
+ * one event per account.
+ */
+@Component
+public class BalanceStream {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(BalanceStream.class);
+
+    static final String EVENT_NAME = "balance";
+
+    private final BalanceStore cache;
+    private final int maxConnections;
+    private final long timeoutMs;
+
+    private final Map<String, Set<SseEmitter>> subscribers =
+        new ConcurrentHashMap<>();
+    // accounts with an event waiting for the sender
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ExecutorService sender =
+        Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "balance-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    private final Counter events;
+
+    /**
+     * @param cache the balances to push
+     * @param meterRegistry the registry of the stream meters
+     * @param maxConnections max number of open streams
+     * @param timeoutMs how long a stream stays open before the client
+     *        has to reconnect
+     */
+    @Autowired
+    public BalanceStream(BalanceStore cache, MeterRegistry meterRegistry,
+        @Value("${BALANCE_STREAM_MAX_CONNECTIONS:1000}") int maxConnections,
+        @Value("${BALANCE_STREAM_TIMEOUT_MS:1800000}") long timeoutMs) {
+        this.cache = cache;
+        this.maxConnections = maxConnections;
+        this.timeoutMs = timeoutMs;
+        Gauge.builder("balancereader.stream.connections", connections,
+            AtomicInteger::get)
+            .description("Open balance streams")
+            .register(meterRegistry);
+        this.events = Counter.builder("balancereader.stream.events")
+            .description("Balance events sent to streams")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Opens a stream of the balance of an account, starting with the
+     * current balance.
+     *
+     * @param accountId the account to stream the balance of
+     * @return the stream, or null if BALANCE_STREAM_MAX_CONNECTIONS are
+     *         already open
+     */
+    public SseEmitter subscribe(String accountId) {
+        int open;
+        do {
+            open = connections.get();
+            if (open >= maxConnections) {
+                return null;
+            }
+        } while (!connections.compareAndSet(open, open + 1));
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        AtomicBoolean closed = new AtomicBoolean();
+        Runnable unsubscribe = () -> {
+            if (closed.compareAndSet(false, true)) {
+                connections.decrementAndGet();
+                subscribers.computeIfPresent(accountId, (key, emitters) -> {
+                    emitters.remove(emitter);
+                    return emitters.isEmpty() ? null : emitters;
+                });
+            }
+        };
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(e -> unsubscribe.run());
+        subscribers.compute(accountId, (key, emitters) -> {
+            Set<SseEmitter> updated = emitters != null
+                ? emitters : ConcurrentHashMap.newKeySet();
+            updated.add(emitter);
+            return updated;
+        });
+        publish(accountId);
+        return emitter;
+    }
+
+    /**
+     * Schedules an event with the latest balance of an account, if it
+     * has subscribers. Called by the LedgerReader, so it never blocks.
+     *
+     * @param accountId the account whose balance changed
+     */
+    public void publish(String accountId) {
+        if (subscribers.containsKey(accountId) && pending.add(accountId)) {
+            sender.execute(() -> send(accountId));
+        }
+    }
+
+    /**
+     * Sends a heartbeat to every stream, so that idle connections are
+     * neither closed by proxies nor kept open after the client left.
+     */
+    @Scheduled(fixedDelayString = "${BALANCE_STREAM_HEARTBEAT_MS:15000}",
+        initialDelayString = "${BALANCE_STREAM_HEARTBEAT_MS:15000}")
+    public void heartbeat() {
+        if (connections.get() == 0) {
+            return;
+        }
+        sender.execute(() -> {
+            for (Set<SseEmitter> emitters : subscribers.values()) {
+                for (SseEmitter emitter : emitters) {
+                    send(emitter, SseEmitter.event().comment("heartbeat"));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of open streams
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    @PreDestroy
+    void close() {
+        sender.shutdownNow();
+        for (Set<SseEmitter> emitters : subscribers.values()) {
+            for (SseEmitter emitter : emitters) {
+                emitter.complete();
+            }
+        }
+    }
+
+    private void send(String accountId) {
+        // changes from now on need another event
+        pending.remove(accountId);
+        Set<SseEmitter> emitters = subscribers.get(accountId);
+        if (emitters == null) {
+            return;
+        }
+        BalanceStore.LoadedBalance balance;
+        try {
+            balance = cache.getVersioned(accountId);
+        } catch (ExecutionException e) {
+            LOGGER.error(String.format("Failed to stream balance: %s",
+                e.getMessage()));
+            return;
+        }
+        for (SseEmitter emitter : emitters) {
+            if (send(emitter, event(balance))) {
+                events.increment();
+            }
+        }
+    }
+
+    /**
+     * Builds a balance event, with the id of the latest transaction it
+     * reflects as its id. A builder is only sent once.
+     */
+    static SseEmitter.SseEventBuilder event(
+        BalanceStore.LoadedBalance balance) {
+        SseEmitter.SseEventBuilder event = SseEmitter.event()
+            .name(EVENT_NAME)
+            .data(balance.getBalance());
+        if (balance.getAsOf() != BalanceStore.UNVERSIONED) {
+            event.id(Long.toString(balance.getAsOf()));
+        }
+        return event;
+    }
+
+    private static boolean send(SseEmitter emitter,
+        SseEmitter.SseEventBuilder event) {
+        try {
+            emitter.send(event);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            // the client left, or the stream already completed
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * CheckpointFile stores a cache snapshot with the LedgerReader watermark
+ * it is consistent with.
+ *
+ * Layout (big-endian): magic, format version, watermark, body, and a
+ * CRC32 of everything before it. The file is written to a temporary file
+ * and atomically moved into place, so a reader sees either the previous
+ * checkpoint or the new one.
+ */
+final class CheckpointFile {
+
+    private static final int MAGIC = 0x424f4143;
+    // magic, version, watermark
+    private static final int HEADER_BYTES = 16;
+    private static final int CRC_BYTES = 4;
+
+    /**
+     * Serializes a checkpoint body.
+     */
+    interface BodyWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Deserializes a checkpoint body.
+     */
+    interface BodyReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * A checkpoint read back from disk.
+     */
+    static final class Contents<T> {
+        private final long watermark;
+        private final T body;
+
+        Contents(long watermark, T body) {
+            this.watermark = watermark;
+            this.body = body;
+        }
+
+        long getWatermark() {
+            return watermark;
+        }
+
+        T getBody() {
+            return body;
+        }
+    }
+
+    private final Path path;
+    private final int version;
+
+    /**
+     * @param path location of the checkpoint
+     * @param version format version of the body
+     */
+    CheckpointFile(Path path, int version) {
+        this.path = path;
+        this.version = version;
+    }
+
+    /**
+     * Replaces the checkpoint.
+     *
+     * @param watermark id of the latest transaction reflected in the body
+     * @param body writes the cache contents
+     * @return the size of the checkpoint, in bytes
+     * @throws IOException if the checkpoint could not be written
+     */
+    long write(long watermark, BodyWriter body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+        out.writeLong(watermark);
+        body.write(out);
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return bytes.size();
+    }
+
+    /**
+     * Reads the checkpoint back.
+     *
+     * @param body reads the cache contents
+     * @return the checkpoint, or null if there is none
+     * @throws IOException if the checkpoint is unreadable, corrupt, or
+     *         of another format version
+     */
+    <T> Contents<T> read(BodyReader<T> body) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < HEADER_BYTES + CRC_BYTES) {
+            throw new IOException("Checkpoint is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - CRC_BYTES);
+        int expected = ByteBuffer.wrap(bytes, bytes.length - CRC_BYTES,
+            CRC_BYTES).getInt();
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Checkpoint checksum mismatch");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            bytes, 0, bytes.length - CRC_BYTES));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint");
+        }
+        int fileVersion = in.readInt();
+        if (fileVersion != version) {
+            throw new IOException(String.format(
+                "Unsupported checkpoint version %d", fileVersion));
+        }
+        long watermark = in.readLong();
+        return new Contents<>(watermark, body.read(in));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * CoalescingBalanceLoader gathers the balances missed by concurrent
+ * requests into batches, and loads each batch with one loadAll call.
+ *
+ * A miss while no batch is loading is loaded at once, on its own. A miss
+ * while batches are loading opens a batch, or joins the open one. The
+ * first miss of a batch waits until the loads in flight are over, the
+ * batch is full, or the window has passed, whichever comes first, then
+ * loads the batch on its own thread while the other requests wait for
+ * it. Sparse misses do not wait, no thread is added, and a cold cache
+ * issues one query per batch instead of one per account.
+ *
+ * The leader waits on a ReentrantLock condition rather than a monitor,
+ * so that a virtual thread waiting for its batch does not pin its
+ * carrier thread.
+ */
+final class CoalescingBalanceLoader implements BalanceStore.BalanceLoader {
+
+    private final BalanceStore.BalanceLoader delegate;
+    private final long windowNanos;
+    private final int batchSize;
+    private final DistributionSummary batchSizes;
+    private final Timer queueWait;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when the open batch is full, or a batch is loaded
+    private final Condition changed = lock.newCondition();
+    // the batch accepting misses, if any
+    private Batch open;
+    // the number of batches loading
+    private int loading;
+
+    /**
+     * @param delegate loads each batch with loadAll
+     * @param windowMs max time the first miss of a batch waits for the
+     *        loads in flight
+     * @param batchSize max number of accounts in a batch
+     * @param meterRegistry registry for the batch size and wait meters
+     */
+    CoalescingBalanceLoader(BalanceStore.BalanceLoader delegate,
+        long windowMs, int batchSize, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.batchSize = batchSize;
+        this.batchSizes = DistributionSummary
+            .builder("balancereader.load.batch.size")
+            .description("Accounts loaded by one coalesced query")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        this.queueWait = Timer.builder("balancereader.load.queue.wait")
+            .description("Time a cache miss waited for its batch to start")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+
+    @Override
+    public BalanceStore.LoadedBalance load(String accountId) {
+        long enqueued = System.nanoTime();
+        Batch batch;
+        boolean leader = false;
+        boolean coalesce = false;
+        lock.lock();
+        try {
+            if (open != null) {
+                batch = open;
+            } else {
+                batch = new Batch(enqueued + windowNanos);
+                leader = true;
+                // only wait for other misses while a load is in flight
+                coalesce = loading > 0;
+                if (coalesce) {
+                    open = batch;
+                } else {
+                    loading++;
+                }
+            }
+            batch.accountIds.add(accountId);
+            if (batch == open && batch.accountIds.size() >= batchSize) {
+                open = null;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (leader) {
+            if (coalesce) {
+                awaitBatch(batch);
+            }
+            batch.run();
+        }
+        Map<String, BalanceStore.LoadedBalance> balances;
+        try {
+            balances = batch.result.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException
+                ? (RuntimeException) e.getCause() : e;
+        }
+        queueWait.record(batch.started - enqueued, TimeUnit.NANOSECONDS);
+        return balances.get(accountId);
+    }
+
+    @Override
+    public Map<String, BalanceStore.LoadedBalance> loadAll(
+        List<String> accountIds) {
+        // already a batch
+        batchSizes.record(accountIds.size());
+        return delegate.loadAll(accountIds);
+    }
+
+    /**
+     * Waits until no batch is loading, a batch is full or its window has
+     * passed, then closes it to further misses.
+     */
+    private void awaitBatch(Batch batch) {
+        lock.lock();
+        try {
+            boolean interrupted = false;
+            long remaining;
+            while (open == batch && loading > 0
+                && (remaining = batch.deadline - System.nanoTime()) > 0) {
+                try {
+                    changed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (open == batch) {
+                open = null;
+            }
+            loading++;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Misses loaded by one query.
+     */
+    private final class Batch {
+        private final long deadline;
+        // guarded by lock until the batch is closed
+        private final Set<String> accountIds = new LinkedHashSet<>();
+        private final CompletableFuture<Map<String, BalanceStore.LoadedBalance>>
+            result = new CompletableFuture<>();
+        private volatile long started;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Loads the batch, once it is closed and counted as loading.
+         */
+        void run() {
+            started = System.nanoTime();
+            try {
+                result.complete(loadAll(new ArrayList<>(accountIds)));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                lock.lock();
+                try {
+                    loading--;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
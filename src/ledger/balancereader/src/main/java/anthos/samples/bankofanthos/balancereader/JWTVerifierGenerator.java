@@ -17,8 +17,10 @@
 package anthos.samples.bankofanthos.balancereader;
 
 import com.auth0.jwt.JWT;
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -41,9 +43,17 @@ public class JWTVerifierGenerator {
     private static final Logger LOGGER =
         LogManager.getLogger(JWTVerifierGenerator.class);
 
+    /**
+     * Builds the verifier of the RSA256-signed JWTs issued by userservice.
+     * Verified tokens are cached, up to JWT_CACHE_SIZE of them for at most
+     * JWT_CACHE_TTL_MS, or not at all if JWT_CACHE_SIZE is 0.
+     */
     @Bean (name = "verifier")
     public JWTVerifier generateJWTVerifier(
-            @Value("${PUB_KEY_PATH}") final String publicKeyPath) {
+            @Value("${PUB_KEY_PATH}") final String publicKeyPath,
+            @Value("${JWT_CACHE_SIZE:10000}") final Long cacheSize,
+            @Value("${JWT_CACHE_TTL_MS:300000}") final long cacheTtlMs,
+            MeterRegistry meterRegistry) {
         // load public key from file
         try {
             LOGGER.debug("Generating JWT token verifier");
@@ -59,7 +69,15 @@ public class JWTVerifierGenerator {
                     (RSAPublicKey) kf.generatePublic(keySpecX509);
             // Initialize JWT verifier.
             Algorithm algorithm = Algorithm.RSA256(publicKey, null);
-            return JWT.require(algorithm).build();
+            JWTVerifier verifier = JWT.require(algorithm).build();
+            if (cacheSize <= 0) {
+                return verifier;
+            }
+            CachingJWTVerifier cachingVerifier =
+                new CachingJWTVerifier(verifier, cacheSize, cacheTtlMs);
+            GuavaCacheMetrics.monitor(meterRegistry,
+                cachingVerifier.getCache(), "jwt");
+            return cachingVerifier;
         } catch (IOException
                 | NoSuchAlgorithmException
                 | InvalidKeySpecException e) {
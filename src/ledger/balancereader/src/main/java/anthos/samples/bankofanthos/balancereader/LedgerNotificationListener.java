@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * LedgerNotificationListener holds a dedicated connection to the ledger
+ * database and LISTENs on the channel notified by the TRANSACTIONS
+ * insert trigger (see ledger-db/initdb/0_init_tables.sql).
+ *
+ * The connection is opened outside of the JPA connection pool, so that
+ * blocking on notifications never holds a pooled connection.
+ */
+final class LedgerNotificationListener {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(LedgerNotificationListener.class);
+
+    static final String CHANNEL = "ledger_transactions";
+    static final long NO_NOTIFICATION = -1;
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    private Connection connection;
+    private PGConnection pgConnection;
+
+    LedgerNotificationListener(String url, String username, String password) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Blocks until at least one notification arrives or the timeout expires.
+     * (Re)connects to the database if there is no open listener connection.
+     *
+     * @param timeoutMs max number of milliseconds to wait, must be positive;
+     *                  getNotifications(0) would block indefinitely
+     * @return the highest transaction id notified,
+     *         or NO_NOTIFICATION if the timeout expired
+     * @throws SQLException if the listener connection failed
+     */
+    long await(long timeoutMs) throws SQLException {
+        try {
+            if (connection == null) {
+                connect();
+            }
+            PGNotification[] notifications =
+                pgConnection.getNotifications((int) timeoutMs);
+            long latestId = NO_NOTIFICATION;
+            if (notifications == null) {
+                return latestId;
+            }
+            for (PGNotification notification : notifications) {
+                latestId = Math.max(latestId,
+                    parseTransactionId(notification.getParameter()));
+            }
+            return latestId;
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the listener connection, if open.
+     */
+    void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Failed to close listener connection");
+            }
+        }
+        connection = null;
+        pgConnection = null;
+    }
+
+    private void connect() throws SQLException {
+        connection = DriverManager.getConnection(url, username, password);
+        pgConnection = connection.unwrap(PGConnection.class);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("LISTEN " + CHANNEL);
+        }
+        LOGGER.info(String.format("Listening for ledger notifications on %s",
+            CHANNEL));
+    }
+
+    private static long parseTransactionId(String payload) {
+        try {
+            return Long.parseLong(payload);
+        } catch (NumberFormatException e) {
+            // unexpected payload; left to the fallback poll
+            return NO_NOTIFICATION;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint reporting the LedgerReader watermark and lag,
+ * exposed at /actuator/ledgerreader.
+ */
+@Component
+@Endpoint(id = "ledgerreader")
+public class LedgerReaderEndpoint {
+
+    private final LedgerReader ledgerReader;
+
+    public LedgerReaderEndpoint(LedgerReader ledgerReader) {
+        this.ledgerReader = ledgerReader;
+    }
+
+    /**
+     * @return the reader state, as reported to the ledgerreader.* meters
+     */
+    @ReadOperation
+    public Map<String, Object> ledgerReader() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("mode", ledgerReader.getMode());
+        state.put("alive", ledgerReader.isAlive());
+        state.put("latestTransactionId",
+            ledgerReader.getLatestAppliedTransactionId());
+        state.put("remoteTransactionId",
+            ledgerReader.getRemoteTransactionId());
+        state.put("lagTransactions", ledgerReader.getLagTransactions());
+        state.put("lagSeconds", ledgerReader.getLagSeconds());
+        return state;
+    }
+}
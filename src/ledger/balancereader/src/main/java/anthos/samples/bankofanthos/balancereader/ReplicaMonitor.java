@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.sql.SQLException;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * ReplicaMonitor checks the ledger-db replicas every LEDGER_REPLICA_CHECK_MS
+ * and keeps replica reads at or past the LedgerReader watermark.
+ *
+ * Does nothing unless the DataSource routes reads to replicas (see
+ * ReplicaRoutingDataSource). Checks run on their own thread, so that a
+ * replica that does not answer holds up neither other scheduled tasks,
+ * nor, for longer than LEDGER_REPLICA_TIMEOUT_MS, the other replicas.
+ */
+@Component
+public class ReplicaMonitor {
+
+    private final ReplicaRoutingDataSource routing;
+    private final ThreadPoolTaskScheduler scheduler;
+
+    /**
+     * @param dataSource the ledger-db DataSource
+     * @param ledgerReader the reader whose watermark replica reads keep up
+     *        with
+     * @param meterRegistry the registry of the replica meters
+     * @param checkMs the interval between rounds of checks
+     * @throws SQLException if the DataSource cannot be unwrapped
+     */
+    @Autowired
+    public ReplicaMonitor(DataSource dataSource, LedgerReader ledgerReader,
+        MeterRegistry meterRegistry,
+        @Value("${LEDGER_REPLICA_CHECK_MS:1000}") long checkMs)
+        throws SQLException {
+        if (!dataSource.isWrapperFor(ReplicaRoutingDataSource.class)) {
+            this.routing = null;
+            this.scheduler = null;
+            return;
+        }
+        this.routing = dataSource.unwrap(ReplicaRoutingDataSource.class);
+        routing.setMinTransactionId(
+            ledgerReader::getLatestAppliedTransactionId);
+        FunctionCounter.builder("ledgerreplica.connections", routing,
+            ReplicaRoutingDataSource::getPrimaryConnections)
+            .description("Connections routed to a ledger-db node")
+            .tag("node", ReplicaRoutingDataSource.PRIMARY)
+            .register(meterRegistry);
+        for (ReplicaRoutingDataSource.Replica replica
+            : routing.getReplicas()) {
+            FunctionCounter.builder("ledgerreplica.connections", replica,
+                ReplicaRoutingDataSource.Replica::getConnections)
+                .description("Connections routed to a ledger-db node")
+                .tag("node", replica.getName())
+                .register(meterRegistry);
+            Gauge.builder("ledgerreplica.lag.millis", replica,
+                ReplicaRoutingDataSource.Replica::getLagMs)
+                .description("Replay lag of a replica at the last check")
+                .tag("node", replica.getName())
+                .register(meterRegistry);
+            Gauge.builder("ledgerreplica.transaction", replica,
+                ReplicaRoutingDataSource.Replica::getTransactionId)
+                .description("Latest transaction id on a replica at the "
+                    + "last check")
+                .tag("node", replica.getName())
+                .register(meterRegistry);
+        }
+        this.scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setThreadNamePrefix("replica-monitor-");
+        scheduler.initialize();
+        scheduler.scheduleWithFixedDelay(routing::checkReplicas,
+            Duration.ofMillis(checkMs));
+    }
+
+    @PreDestroy
+    void close() {
+        if (routing != null) {
+            scheduler.shutdown();
+            routing.close();
+        }
+    }
+}
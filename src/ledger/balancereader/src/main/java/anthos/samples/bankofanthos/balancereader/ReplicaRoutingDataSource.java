@@ -0,0 +1,307 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.sql.DataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * ReplicaRoutingDataSource sends reads to ledger-db replicas, and
+ * everything else to the primary.
+ *
+ * A connection goes to the primary inside a read-write transaction, and
+ * to the next eligible replica otherwise. A replica is eligible while its
+ * replay lag is at most the max lag, and it has replicated at least the
+ * minimum transaction id: the watermark of the LedgerReader. Reads on a
+ * replica then never see an older ledger than the reader has applied,
+ * so neither the reader nor cache loads go backwards in transaction id
+ * when they switch between nodes. Without an eligible replica, reads go
+ * to the primary.
+ *
+ * Replica lag and watermarks are measured by checkReplicas(), which gives
+ * up on a replica after the check timeout. Until the first check, after a
+ * failed one, and once the last successful check is older than a round
+ * of checks should take, a replica is not eligible.
+ */
+final class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(ReplicaRoutingDataSource.class);
+
+    static final String PRIMARY = "primary";
+    // replay lag in ms, 0 once every received WAL record was replayed;
+    // and the latest transaction id replicated
+    static final String CHECK_QUERY = "SELECT CAST(CASE "
+        + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+        + "ELSE COALESCE(EXTRACT(EPOCH FROM now() "
+        + "- pg_last_xact_replay_timestamp()) * 1000, 0) END AS BIGINT), "
+        + "(SELECT COALESCE(MAX(TRANSACTION_ID), -1) FROM TRANSACTIONS)";
+
+    private final List<Replica> replicas;
+    private final long maxLagMs;
+    private final int checkTimeoutMs;
+    private final long maxCheckAgeNanos;
+    private volatile LongSupplier nanoTime = System::nanoTime;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong primaryConnections = new AtomicLong();
+    private volatile LongSupplier minTransactionId = () -> -1;
+
+    /**
+     * @param primary the primary ledger-db
+     * @param replicas the replicas, by name
+     * @param maxLagMs max replay lag of an eligible replica
+     * @param checkMs the interval between rounds of checks
+     * @param checkTimeoutMs max duration of the check of one replica
+     */
+    ReplicaRoutingDataSource(DataSource primary,
+        Map<String, DataSource> replicas, long maxLagMs, long checkMs,
+        int checkTimeoutMs) {
+        this.maxLagMs = maxLagMs;
+        this.checkTimeoutMs = checkTimeoutMs;
+        // a round waits the interval, then checks the replicas one
+        // after another
+        this.maxCheckAgeNanos = TimeUnit.MILLISECONDS.toNanos(
+            checkMs + (long) (replicas.size() + 1) * checkTimeoutMs);
+        List<Replica> list = new ArrayList<>();
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+            list.add(new Replica(replica.getKey(), replica.getValue()));
+            targets.put(replica.getKey(), replica.getValue());
+        }
+        this.replicas = Collections.unmodifiableList(list);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    /**
+     * Routes the DataSource bean when replica URLs are configured. The
+     * replicas are pooled like the primary, with the same credentials,
+     * but wait at most the check timeout for a connection.
+     *
+     * @param replicaUrls comma-separated JDBC URLs of the replicas, or
+     *        empty to leave the DataSource as is
+     * @param maxLagMs max replay lag of an eligible replica
+     * @param checkMs the interval between rounds of checks
+     * @param checkTimeoutMs max duration of the check of one replica
+     * @return the bean post processor
+     */
+    static BeanPostProcessor postProcessor(String replicaUrls,
+        long maxLagMs, long checkMs, int checkTimeoutMs) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean,
+                String beanName) {
+                HikariDataSource pool = replicaUrls.isBlank()
+                    ? null : unwrapPool(bean);
+                if (pool == null) {
+                    return bean;
+                }
+                DataSource primary = (DataSource) bean;
+                Map<String, DataSource> replicas = new LinkedHashMap<>();
+                for (String url : replicaUrls.split(",")) {
+                    String name = "replica-" + replicas.size();
+                    // started on first use, so that a replica that is
+                    // down does not fail startup
+                    HikariDataSource replica = new HikariDataSource();
+                    pool.copyStateTo(replica);
+                    replica.setJdbcUrl(url.trim());
+                    replica.setPoolName(name);
+                    replica.setConnectionTimeout(checkTimeoutMs);
+                    replicas.put(name, replica);
+                }
+                LOGGER.info(String.format("Routing reads to %d replicas",
+                    replicas.size()));
+                // defer the choice of node until a statement runs, once
+                // the transaction, if any, has started
+                return new LazyConnectionDataSourceProxy(
+                    new ReplicaRoutingDataSource(primary, replicas,
+                        maxLagMs, checkMs, checkTimeoutMs));
+            }
+        };
+    }
+
+    /**
+     * @return the Hikari pool of a DataSource bean that is not routed
+     *         yet, or null
+     */
+    private static HikariDataSource unwrapPool(Object bean) {
+        try {
+            if (bean instanceof DataSource
+                && !((DataSource) bean).isWrapperFor(
+                    ReplicaRoutingDataSource.class)
+                && ((DataSource) bean).isWrapperFor(HikariDataSource.class)) {
+                return ((DataSource) bean).unwrap(HikariDataSource.class);
+            }
+        } catch (SQLException e) {
+            LOGGER.warn(String.format("Cannot route %s: %s", bean,
+                e.getMessage()));
+        }
+        return null;
+    }
+
+    /**
+     * @param minTransactionId the min transaction id that an eligible
+     *        replica has replicated
+     */
+    void setMinTransactionId(LongSupplier minTransactionId) {
+        this.minTransactionId = minTransactionId;
+    }
+
+    /**
+     * @param nanoTime the clock of the checks, System::nanoTime by default
+     */
+    void setNanoTime(LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Measures the lag and the watermark of every replica.
+     */
+    void checkReplicas() {
+        for (Replica replica : replicas) {
+            try (Connection connection =
+                    replica.dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+                // the query timeout is cancelled over another connection,
+                // and does not help if the replica stops answering
+                connection.setNetworkTimeout(Runnable::run, checkTimeoutMs);
+                statement.setQueryTimeout(
+                    (int) Math.ceil(checkTimeoutMs / 1000.0));
+                try (ResultSet result = statement.executeQuery(CHECK_QUERY)) {
+                    result.next();
+                    replica.transactionId = result.getLong(2);
+                    replica.lagMs = result.getLong(1);
+                    replica.checkedAt = nanoTime.getAsLong();
+                }
+            } catch (SQLException e) {
+                replica.lagMs = Long.MAX_VALUE;
+                LOGGER.warn(String.format("Failed to check %s: %s",
+                    replica.name, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return the replicas, in the order they are tried
+     */
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the number of connections routed to the primary
+     */
+    long getPrimaryConnections() {
+        return primaryConnections.get();
+    }
+
+    /**
+     * Closes the replica pools.
+     */
+    void close() {
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof HikariDataSource) {
+                ((HikariDataSource) replica.dataSource).close();
+            }
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (TransactionSynchronizationManager.isActualTransactionActive()
+            && !TransactionSynchronizationManager
+                .isCurrentTransactionReadOnly()) {
+            primaryConnections.incrementAndGet();
+            return PRIMARY;
+        }
+        long minId = minTransactionId.getAsLong();
+        long checkedSince = nanoTime.getAsLong() - maxCheckAgeNanos;
+        int start = next.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(
+                Math.floorMod(start + i, replicas.size()));
+            if (replica.isEligible(maxLagMs, minId, checkedSince)) {
+                replica.connections.incrementAndGet();
+                return replica.name;
+            }
+        }
+        primaryConnections.incrementAndGet();
+        return PRIMARY;
+    }
+
+    /**
+     * A replica, and its state as of the latest check.
+     */
+    static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private final AtomicLong connections = new AtomicLong();
+        private volatile long lagMs = Long.MAX_VALUE;
+        private volatile long transactionId = -1;
+        private volatile long checkedAt;
+
+        Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        boolean isEligible(long maxLagMs, long minTransactionId,
+            long checkedSince) {
+            return lagMs <= maxLagMs && transactionId >= minTransactionId
+                && checkedAt - checkedSince >= 0;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getLagMs() {
+            return lagMs;
+        }
+
+        long getTransactionId() {
+            return transactionId;
+        }
+
+        long getConnections() {
+            return connections.get();
+        }
+    }
+}
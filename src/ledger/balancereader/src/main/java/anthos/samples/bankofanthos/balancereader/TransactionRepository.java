@@ -14,8 +14,10 @@
 
 package anthos.samples.bankofanthos.balancereader;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
@@ -27,18 +29,52 @@ import org.springframework.stereotype.Repository;
 public interface TransactionRepository
     extends CrudRepository<Transaction, Long> {
 
-    @Query(value = "SELECT "
-    + "(SELECT SUM(AMOUNT) FROM TRANSACTIONS t "
-    + "     WHERE (TO_ACCT = ?1 AND TO_ROUTE = ?2)) - "
-    + " (SELECT COALESCE((SELECT SUM(AMOUNT) FROM TRANSACTIONS t "
-    + "     WHERE (FROM_ACCT = ?1 AND FROM_ROUTE = ?2)),0))",
+    /**
+     * Returns the balance of an account, and the id of the latest
+     * transaction it includes, from the ACCOUNT_BALANCES summary that is
+     * updated with every insert. Accounts without transactions have no
+     * row.
+     */
+    @Query(value = "SELECT BALANCE AS balance, LAST_TXN_ID AS \"asOf\" "
+        + "FROM ACCOUNT_BALANCES WHERE ACCT = ?1 AND ROUTE = ?2",
+        nativeQuery = true)
+    BalanceAsOf findBalanceAsOf(String accountNum, String routeNum);
+
+    /**
+     * Returns the balances of several accounts, as findBalanceAsOf.
+     */
+    @Query(value = "SELECT ACCT AS \"accountId\", BALANCE AS balance, "
+        + "LAST_TXN_ID AS \"asOf\" FROM ACCOUNT_BALANCES "
+        + "WHERE ACCT IN (?1) AND ROUTE = ?2",
         nativeQuery = true)
-    Long findBalance(String accountNum, String routeNum);
+    List<AccountBalanceAsOf> findBalancesAsOf(Collection<String> accountNums,
+        String routeNum);
 
+    /**
+     * A balance, and the id of the latest transaction it includes.
+     */
+    interface BalanceAsOf {
+        Long getBalance();
+
+        Long getAsOf();
+    }
+
+    /**
+     * The balance of one of several accounts.
+     */
+    interface AccountBalanceAsOf extends BalanceAsOf {
+        String getAccountId();
+    }
+
+    /**
+     * Returns the page of transactions after the given transaction id,
+     * in transaction id order. Page 0 of a bounded Pageable is a keyset
+     * page: WHERE id > ? ORDER BY id LIMIT n.
+     */
     @Query("SELECT t FROM Transaction t "
         + "WHERE t.transactionId > ?1 "
         + "ORDER BY t.transactionId ASC")
-    List<Transaction> findLatest(long latestTransaction);
+    List<Transaction> findLatest(long latestTransaction, Pageable pager);
 
     /**
      * Returns the id of the latest transaction, or NULL if none exist.
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongFunction;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+class BalanceCheckpointTest {
+
+    private static final String ACCOUNT_NUM = "0012345678";
+    private static final long WATERMARK = 100;
+
+    @TempDir
+    Path dir;
+
+    @Mock
+    private LedgerReader ledgerReader;
+    @Mock
+    private BalanceMaterializer materializer;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        when(ledgerReader.getMode()).thenReturn(LedgerReader.POLL_MODE);
+        when(ledgerReader.isAlive()).thenReturn(true);
+        when(ledgerReader.atWatermark(any())).thenAnswer(invocation ->
+            invocation.<LongFunction<?>>getArgument(0).apply(WATERMARK));
+    }
+
+    @Test
+    @DisplayName("Given a balance loaded ahead of the watermark, replay only "
+        + "transactions it does not reflect after a restore")
+    void restoresAsOf() throws ExecutionException {
+        String path = dir.resolve("balances").toString();
+        BalanceStore cache = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(0, 0));
+        BalanceCheckpoint checkpoint =
+            new BalanceCheckpoint(cache, ledgerReader, materializer, path);
+        assertNull(checkpoint.restore());
+        // loaded by a request while the reader was at the watermark
+        cache.put(ACCOUNT_NUM, 500, 105);
+        checkpoint.checkpoint();
+
+        BalanceStore restored = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(0, 0));
+        Long watermark = new BalanceCheckpoint(restored, ledgerReader,
+            materializer, path).restore();
+        assertEquals(WATERMARK, watermark);
+        // the reader replays from the watermark
+        for (long id = WATERMARK + 1; id <= 106; id++) {
+            restored.addIfPresent(ACCOUNT_NUM, id, 10);
+        }
+
+        BalanceStore.LoadedBalance balance = restored.getVersioned(ACCOUNT_NUM);
+        assertEquals(510, balance.getBalance());
+        assertEquals(106, balance.getAsOf());
+    }
+}
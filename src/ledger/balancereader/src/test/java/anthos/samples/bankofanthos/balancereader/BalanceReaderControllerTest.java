@@ -17,20 +17,22 @@
 package anthos.samples.bankofanthos.balancereader;
 
 import com.google.common.cache.CacheLoader;
-import com.google.common.cache.CacheStats;
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import io.micrometer.core.lang.Nullable;
 import io.micrometer.stackdriver.StackdriverConfig;
 import io.micrometer.stackdriver.StackdriverMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -39,6 +41,9 @@ import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -59,15 +64,22 @@ class BalanceReaderControllerTest {
     @Mock
     private Clock clock;
     @Mock
-    private LoadingCache<String, Long> cache;
+    private BalanceStore cache;
     @Mock
-    private CacheStats stats;
+    private BalanceCheckpoint checkpoint;
+    @Mock
+    private BalanceMaterializer materializer;
+    @Mock
+    private WebRequest webRequest;
+    @Mock
+    private BalanceStream stream;
 
     private static final String VERSION = "v0.2.0";
     private static final String LOCAL_ROUTING_NUM = "123456789";
     private static final String OK_CODE = "ok";
     private static final String JWT_ACCOUNT_KEY = "acct";
     private static final long BALANCE = 100l;
+    private static final long TRANSACTION_ID = 42l;
     private static final String AUTHED_ACCOUNT_NUM = "1234567890";
     private static final String NON_AUTHED_ACCOUNT_NUM = "9876543210";
     private static final String BEARER_TOKEN = "Bearer abc";
@@ -94,9 +106,9 @@ class BalanceReaderControllerTest {
             }
         }, clock);
 
-        when(cache.stats()).thenReturn(stats);
         balanceReaderController = new BalanceReaderController(ledgerReader, verifier,
-            meterRegistry, cache, LOCAL_ROUTING_NUM, VERSION);
+            meterRegistry, cache, checkpoint, materializer, stream, LOCAL_ROUTING_NUM,
+            VERSION);
 
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
@@ -119,11 +131,27 @@ class BalanceReaderControllerTest {
     @DisplayName("Given the server is serving requests, return HTTP Status 200")
     void readiness() {
         // When
-        final String actualResult = balanceReaderController.readiness();
+        final ResponseEntity actualResult = balanceReaderController.readiness();
+
+        // Then
+        assertNotNull(actualResult);
+        assertEquals(OK_CODE, actualResult.getBody());
+        assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Given balances are still being materialized, return HTTP Status 503")
+    void readinessFailsWhileMaterializing() {
+        // Given
+        when(materializer.isEnabled()).thenReturn(true);
+        when(materializer.isLoaded()).thenReturn(false);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.readiness();
 
         // Then
         assertNotNull(actualResult);
-        assertEquals(OK_CODE, actualResult);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, actualResult.getStatusCode());
     }
 
     @Test
@@ -162,10 +190,12 @@ class BalanceReaderControllerTest {
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
-        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(BALANCE);
+        when(cache.getVersioned(AUTHED_ACCOUNT_NUM))
+            .thenReturn(new BalanceStore.LoadedBalance(BALANCE, TRANSACTION_ID));
 
         // When
-        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
 
         // Then
         assertNotNull(actualResult);
@@ -179,15 +209,51 @@ class BalanceReaderControllerTest {
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
-        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(BALANCE);
+        when(cache.getVersioned(AUTHED_ACCOUNT_NUM))
+            .thenReturn(new BalanceStore.LoadedBalance(BALANCE, TRANSACTION_ID));
 
         // When
-        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
 
         // Then
         assertNotNull(actualResult);
         assertEquals(BALANCE, actualResult.getBody());
     }
+    @Test
+    @DisplayName("Given the balance has not changed since the If-None-Match ETag, return 304")
+    void getBalanceNotModifiedWhenETagMatches() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.getVersioned(AUTHED_ACCOUNT_NUM))
+            .thenReturn(new BalanceStore.LoadedBalance(BALANCE, TRANSACTION_ID));
+        when(webRequest.checkNotModified(Long.toString(TRANSACTION_ID))).thenReturn(true);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
+
+        // Then
+        assertNull(actualResult);
+    }
+
+    @Test
+    @DisplayName("Given a balance without a version, return it without an ETag")
+    void getBalanceSkipsETagWhenUnversioned() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.getVersioned(AUTHED_ACCOUNT_NUM))
+            .thenReturn(new BalanceStore.LoadedBalance(BALANCE, BalanceStore.UNVERSIONED));
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
+
+        // Then
+        assertEquals(BALANCE, actualResult.getBody());
+        verify(webRequest, never()).checkNotModified(anyString());
+    }
+
     @Test
     @DisplayName("Given the user is authenticated but cannot access the account, return 401")
     void getBalanceFailsWhenAccountDoesNotMatchAuthenticatedUser() {
@@ -197,7 +263,8 @@ class BalanceReaderControllerTest {
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
 
         // When
-        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, NON_AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, NON_AUTHED_ACCOUNT_NUM,
+            webRequest);
 
         // Then
         assertNotNull(actualResult);
@@ -211,7 +278,8 @@ class BalanceReaderControllerTest {
         when(verifier.verify(TOKEN)).thenThrow(JWTVerificationException.class);
 
         // When
-        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
 
         // Then
         assertNotNull(actualResult);
@@ -225,14 +293,162 @@ class BalanceReaderControllerTest {
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
-        when(cache.get(AUTHED_ACCOUNT_NUM)).thenThrow(ExecutionException.class);
+        when(cache.getVersioned(AUTHED_ACCOUNT_NUM)).thenThrow(ExecutionException.class);
 
         // When
-        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = balanceReaderController.getBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+            webRequest);
 
         // Then
         assertNotNull(actualResult);
         assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, actualResult.getStatusCode());
     }
 
+    @Test
+    @DisplayName("Given the user is authenticated for the account, open a balance stream")
+    void streamBalanceSucceedsWhenAccountMatchesAuthenticatedUser() {
+        // Given
+        SseEmitter emitter = new SseEmitter();
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(stream.subscribe(AUTHED_ACCOUNT_NUM)).thenReturn(emitter);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.streamBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+
+        // Then
+        assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+        assertSame(emitter, actualResult.getBody());
+    }
+
+    @Test
+    @DisplayName("Given the user cannot access the account, do not open a balance stream")
+    void streamBalanceFailsWhenAccountDoesNotMatchAuthenticatedUser() {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.streamBalance(BEARER_TOKEN, NON_AUTHED_ACCOUNT_NUM);
+
+        // Then
+        assertEquals(HttpStatus.UNAUTHORIZED, actualResult.getStatusCode());
+        verify(stream, never()).subscribe(anyString());
+    }
+
+    @Test
+    @DisplayName("Given too many open streams, return 503")
+    void streamBalanceFailsWhenTooManyStreams() {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.streamBalance(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+
+        // Then
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, actualResult.getStatusCode());
+    }
+
+    @Test
+    @DisplayName("Given a batch of accounts, stream balances only for the authorized ones")
+    void batchGetBalancesAuthorizesEachAccount() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.getAll(List.of(AUTHED_ACCOUNT_NUM)))
+            .thenReturn(Map.of(AUTHED_ACCOUNT_NUM, BALANCE));
+        BatchGetBalancesRequest request = new BatchGetBalancesRequest();
+        request.setAccountIds(List.of(AUTHED_ACCOUNT_NUM, NON_AUTHED_ACCOUNT_NUM));
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.batchGetBalances(BEARER_TOKEN, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) actualResult.getBody()).writeTo(out);
+
+        // Then
+        assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals("{\"balances\":["
+            + "{\"accountId\":\"" + AUTHED_ACCOUNT_NUM + "\",\"balance\":" + BALANCE + "},"
+            + "{\"accountId\":\"" + NON_AUTHED_ACCOUNT_NUM + "\",\"error\":\"not authorized\"}]}",
+            out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Given a batch and a token listing several accounts, stream balances for each of them")
+    void batchGetBalancesReadsListedAccounts() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        Claim accounts = mock(Claim.class);
+        when(accounts.asList(String.class)).thenReturn(List.of("1111111111"));
+        when(jwt.getClaim(BalanceReaderController.ACCOUNTS_CLAIM)).thenReturn(accounts);
+        when(cache.getAll(List.of(AUTHED_ACCOUNT_NUM, "1111111111")))
+            .thenReturn(Map.of(AUTHED_ACCOUNT_NUM, BALANCE, "1111111111", 7L));
+        BatchGetBalancesRequest request = new BatchGetBalancesRequest();
+        request.setAccountIds(List.of(AUTHED_ACCOUNT_NUM, "1111111111", NON_AUTHED_ACCOUNT_NUM));
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.batchGetBalances(BEARER_TOKEN, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) actualResult.getBody()).writeTo(out);
+
+        // Then
+        assertEquals("{\"balances\":["
+            + "{\"accountId\":\"" + AUTHED_ACCOUNT_NUM + "\",\"balance\":" + BALANCE + "},"
+            + "{\"accountId\":\"1111111111\",\"balance\":7},"
+            + "{\"accountId\":\"" + NON_AUTHED_ACCOUNT_NUM + "\",\"error\":\"not authorized\"}]}",
+            out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Given a batch and a token with the read-all scope, stream balances for every account")
+    void batchGetBalancesReadsAllAccountsWithScope() throws Exception {
+        // Given
+        Claim scope = mock(Claim.class);
+        when(scope.asString()).thenReturn("openid " + BalanceReaderController.READ_ALL_SCOPE);
+        when(jwt.getClaim(BalanceReaderController.SCOPE_CLAIM)).thenReturn(scope);
+        when(cache.getAll(List.of(AUTHED_ACCOUNT_NUM, NON_AUTHED_ACCOUNT_NUM)))
+            .thenReturn(Map.of(AUTHED_ACCOUNT_NUM, BALANCE, NON_AUTHED_ACCOUNT_NUM, 7L));
+        BatchGetBalancesRequest request = new BatchGetBalancesRequest();
+        request.setAccountIds(List.of(AUTHED_ACCOUNT_NUM, NON_AUTHED_ACCOUNT_NUM));
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.batchGetBalances(BEARER_TOKEN, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) actualResult.getBody()).writeTo(out);
+
+        // Then
+        assertEquals("{\"balances\":["
+            + "{\"accountId\":\"" + AUTHED_ACCOUNT_NUM + "\",\"balance\":" + BALANCE + "},"
+            + "{\"accountId\":\"" + NON_AUTHED_ACCOUNT_NUM + "\",\"balance\":7}]}",
+            out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Given a batch and a cache error, return an error for the failed accounts")
+    void batchGetBalancesReportsCacheErrors() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.getAll(List.of(AUTHED_ACCOUNT_NUM))).thenThrow(ExecutionException.class);
+        BatchGetBalancesRequest request = new BatchGetBalancesRequest();
+        request.setAccountIds(List.of(AUTHED_ACCOUNT_NUM));
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.batchGetBalances(BEARER_TOKEN, request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) actualResult.getBody()).writeTo(out);
+
+        // Then
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("\"error\":\"cache error\""));
+    }
+
+    @Test
+    @DisplayName("Given a batch and the user is not authenticated, return 401")
+    void batchGetBalancesFailsWhenUserNotAuthenticated() {
+        // Given
+        when(verifier.verify(TOKEN)).thenThrow(JWTVerificationException.class);
+
+        // When
+        final ResponseEntity actualResult = balanceReaderController.batchGetBalances(BEARER_TOKEN,
+            new BatchGetBalancesRequest());
+
+        // Then
+        assertEquals(HttpStatus.UNAUTHORIZED, actualResult.getStatusCode());
+    }
 }
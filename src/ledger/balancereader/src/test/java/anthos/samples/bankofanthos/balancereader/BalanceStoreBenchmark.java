@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the BalanceStore with the Guava LoadingCache it replaced:
+ * lookup latency of cached balances, and heap used per balance (printed
+ * once per fork).
+ *
+ * Not run by the test suite. To run it:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=anthos.samples.bankofanthos.balancereader.BalanceStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceStoreBenchmark {
+
+    @Param({"guava", "store"})
+    public String cache;
+
+    @Param({"1000000"})
+    public int accounts;
+
+    private LoadingCache<String, Long> guava;
+    private BalanceStore store;
+    private String[] accountIds;
+
+    @Setup
+    public void setUp() {
+        accountIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = BalanceStore.decode(1000000000L + i * 7L);
+        }
+        long before = usedHeap();
+        if ("guava".equals(cache)) {
+            guava = CacheBuilder.newBuilder()
+                .recordStats()
+                .maximumSize(accounts)
+                .build(CacheLoader.from(accountId -> 0L));
+            for (int i = 0; i < accounts; i++) {
+                guava.put(accountIds[i], (long) i);
+            }
+        } else {
+            store = new BalanceStore(accounts, 64,
+                accountId -> new BalanceStore.LoadedBalance(0, 0));
+            for (int i = 0; i < accounts; i++) {
+                store.put(accountIds[i], i, 0);
+            }
+        }
+        long used = usedHeap() - before;
+        System.out.println(String.format("%n%s: %d bytes per balance",
+            cache, used / accounts));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long get() throws ExecutionException {
+        String accountId =
+            accountIds[ThreadLocalRandom.current().nextInt(accounts)];
+        return guava != null ? guava.get(accountId) : store.get(accountId);
+    }
+
+    private static long usedHeap() {
+        // account ids are allocated before measuring, so only the cache
+        // entries themselves are counted
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(BalanceStoreBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceStoreTest {
+
+    private static final String ACCOUNT_NUM = "0012345678";
+    private static final BalanceStore.LoadedBalance ZERO =
+        new BalanceStore.LoadedBalance(0, 0);
+
+    @Test
+    @DisplayName("Given a 10-digit account number, encode and decode it")
+    void encodeDecode() {
+        long key = BalanceStore.encode(ACCOUNT_NUM);
+
+        assertEquals(12345678L, key);
+        assertEquals(ACCOUNT_NUM, BalanceStore.decode(key));
+        assertEquals(-1, BalanceStore.encode("12345"));
+        assertEquals(-1, BalanceStore.encode("12345abcde"));
+    }
+
+    @Test
+    @DisplayName("Given a missing balance, load it once and then hit")
+    void loadsOnce() throws ExecutionException {
+        AtomicInteger loads = new AtomicInteger();
+        BalanceStore store = new BalanceStore(0, 4, accountId -> {
+            loads.incrementAndGet();
+            return new BalanceStore.LoadedBalance(100, 0);
+        });
+
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        assertEquals(100, store.get(ACCOUNT_NUM));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, store.missCount());
+        assertEquals(1, store.hitCount());
+        assertEquals(1, store.loadSuccessCount());
+    }
+
+    @Test
+    @DisplayName("Given an account id that is not 10 digits, never cache it")
+    void bypassesOtherIds() throws ExecutionException {
+        AtomicInteger loads = new AtomicInteger();
+        BalanceStore store = new BalanceStore(0, 4, accountId -> {
+            loads.incrementAndGet();
+            return new BalanceStore.LoadedBalance(100, 0);
+        });
+
+        store.get("abc");
+        store.get("abc");
+
+        assertEquals(2, loads.get());
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    @DisplayName("Given the loader throws, throw ExecutionException")
+    void loadFailure() {
+        BalanceStore store = new BalanceStore(0, 4, accountId -> {
+            throw new IllegalStateException("db down");
+        });
+
+        assertThrows(ExecutionException.class, () -> store.get(ACCOUNT_NUM));
+        assertEquals(1, store.loadFailureCount());
+        assertNull(store.getIfPresent(ACCOUNT_NUM));
+    }
+
+    @Test
+    @DisplayName("Given a delta, only update cached balances unless forced")
+    void adds() {
+        BalanceStore store = new BalanceStore(0, 4, accountId -> ZERO);
+
+        assertFalse(store.addIfPresent(ACCOUNT_NUM, 1, 5));
+        assertNull(store.getIfPresent(ACCOUNT_NUM));
+
+        store.add(ACCOUNT_NUM, 2, 5);
+        assertTrue(store.addIfPresent(ACCOUNT_NUM, 3, -2));
+        assertEquals(3L, store.getIfPresent(ACCOUNT_NUM));
+    }
+
+    @Test
+    @DisplayName("Given more balances than the maximum size, evict some")
+    void evicts() {
+        BalanceStore store = new BalanceStore(100, 4, accountId -> ZERO);
+
+        for (int i = 0; i < 1000; i++) {
+            store.put(BalanceStore.decode(i), i, 0);
+        }
+
+        assertTrue(store.size() <= 100);
+        assertEquals(1000 - store.size(), store.evictionCount());
+        // entries that survived eviction are still reachable
+        store.forEach((accountId, balance, asOf) -> assertEquals(balance,
+            store.getIfPresent(accountId)));
+    }
+
+    @Test
+    @DisplayName("Given an unbounded store, keep every balance across resizes")
+    void resizes() {
+        BalanceStore store = new BalanceStore(0, 1, accountId -> ZERO);
+        Map<String, Long> balances = new HashMap<>();
+        for (long i = 0; i < 10000; i++) {
+            balances.put(BalanceStore.decode(i * 7919), i);
+        }
+
+        balances.forEach((accountId, balance) ->
+            store.put(accountId, balance, balance + 1));
+
+        assertEquals(balances.size(), store.size());
+        Map<String, Long> copy = new HashMap<>();
+        store.forEach((accountId, balance, asOf) -> {
+            assertEquals(balance + 1, asOf);
+            copy.put(accountId, balance);
+        });
+        assertEquals(balances, copy);
+
+        store.invalidateAll();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    @DisplayName("Given several accounts, read hits and load every miss at once")
+    void getAllLoadsMissesTogether() throws ExecutionException {
+        List<List<String>> batches = new ArrayList<>();
+        BalanceStore store = new BalanceStore(0, 4,
+            new BalanceStore.BalanceLoader() {
+                @Override
+                public BalanceStore.LoadedBalance load(String accountId) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Map<String, BalanceStore.LoadedBalance> loadAll(
+                    List<String> accountIds) {
+                    batches.add(accountIds);
+                    Map<String, BalanceStore.LoadedBalance> balances =
+                        new HashMap<>();
+                    for (String accountId : accountIds) {
+                        balances.put(accountId,
+                            new BalanceStore.LoadedBalance(7, 0));
+                    }
+                    return balances;
+                }
+            });
+        store.put("0000000001", 1, 0);
+
+        Map<String, Long> balances = store.getAll(List.of("0000000003",
+            "0000000001", "0000000002", "0000000003", "abc"));
+
+        assertEquals(List.of("0000000003", "0000000001", "0000000002", "abc"),
+            new ArrayList<>(balances.keySet()));
+        assertEquals(List.of(7L, 1L, 7L, 7L),
+            new ArrayList<>(balances.values()));
+        assertEquals(List.of(List.of("0000000003", "0000000002", "abc")),
+            batches);
+        assertEquals(7L, store.getIfPresent("0000000002"));
+    }
+
+    @Test
+    @DisplayName("Given a loaded balance, skip transactions it already includes")
+    void skipsLoadedTransactions() throws ExecutionException {
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(100, 7));
+
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        store.addIfPresent(ACCOUNT_NUM, 7, 10);
+        store.addIfPresent(ACCOUNT_NUM, 8, 10);
+
+        assertEquals(110L, store.getIfPresent(ACCOUNT_NUM));
+    }
+
+    @Test
+    @DisplayName("Given a late transaction, reload the balance that claims it")
+    void invalidatesLateTransactions() throws ExecutionException {
+        long[] ledger = {100, 105};
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(ledger[0], ledger[1]));
+
+        // loaded with 105, before 104 committed
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        store.addIfPresent(ACCOUNT_NUM, 104, 10);
+        assertEquals(100L, store.getIfPresent(ACCOUNT_NUM));
+
+        // applied as late instead: reloaded once 104 is in the ledger
+        ledger[0] = 110;
+        store.invalidate(ACCOUNT_NUM);
+        assertNull(store.getIfPresent(ACCOUNT_NUM));
+        assertEquals(110, store.get(ACCOUNT_NUM));
+        assertEquals(2, store.loadSuccessCount());
+    }
+
+    @Test
+    @DisplayName("Given a versioned read, return the latest transaction id reflected")
+    void getVersioned() throws ExecutionException {
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(100, 7));
+
+        BalanceStore.LoadedBalance loaded = store.getVersioned(ACCOUNT_NUM);
+        assertEquals(100, loaded.getBalance());
+        assertEquals(7, loaded.getAsOf());
+        store.addIfPresent(ACCOUNT_NUM, 9, 10);
+        assertEquals(9, store.getVersioned(ACCOUNT_NUM).getAsOf());
+        store.put(ACCOUNT_NUM, 50, 12);
+        store.addIfPresent(ACCOUNT_NUM, 11, 10);
+        loaded = store.getVersioned(ACCOUNT_NUM);
+        assertEquals(50, loaded.getBalance());
+        assertEquals(12, loaded.getAsOf());
+        assertEquals(BalanceStore.UNVERSIONED,
+            store.getVersioned("abc").getAsOf());
+    }
+
+    @Test
+    @DisplayName("Given a stale balance, serve it while it is refreshed in the background")
+    void refreshesStaleBalances() throws Exception {
+        long[] ledger = {100, 1};
+        List<Runnable> refreshes = new ArrayList<>();
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(ledger[0], ledger[1]),
+            new BalanceStore.RefreshPolicy(1, 0, () -> 0, true),
+            refreshes::add);
+
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        Thread.sleep(5);
+        ledger[0] = 150;
+        ledger[1] = 3;
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+        // already reflected by the refreshed balance
+        store.addIfPresent(ACCOUNT_NUM, 2, 50);
+        assertEquals(150, store.get(ACCOUNT_NUM));
+        assertEquals(1, store.refreshSuccessCount());
+        assertEquals(1, store.loadSuccessCount());
+    }
+
+    @Test
+    @DisplayName("Given a refresh older than the cached balance, keep the cached balance")
+    void keepsNewerBalanceOverRefresh() throws Exception {
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(100, 1),
+            new BalanceStore.RefreshPolicy(1, 0, () -> 0, false),
+            Runnable::run);
+
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        store.addIfPresent(ACCOUNT_NUM, 2, 50);
+        Thread.sleep(5);
+
+        BalanceStore.LoadedBalance balance = store.getVersioned(ACCOUNT_NUM);
+        assertEquals(150, balance.getBalance());
+        assertEquals(2, balance.getAsOf());
+        assertEquals(1, store.refreshSuccessCount());
+    }
+
+    @Test
+    @DisplayName("Given the reader lags, refresh balances older than the lag")
+    void refreshesWhileReaderLags() throws Exception {
+        long[] lagMs = {0};
+        BalanceStore store = new BalanceStore(0, 4,
+            accountId -> new BalanceStore.LoadedBalance(100, 1),
+            new BalanceStore.RefreshPolicy(0, 1, () -> lagMs[0], true),
+            runnable -> {
+                throw new RejectedExecutionException();
+            });
+
+        store.get(ACCOUNT_NUM);
+        Thread.sleep(5);
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        assertEquals(0, store.refreshFailureCount());
+
+        lagMs[0] = 2;
+        // the refresh is rejected, and the cached balance still served
+        assertEquals(100, store.get(ACCOUNT_NUM));
+        assertEquals(1, store.refreshFailureCount());
+    }
+
+    @Test
+    @DisplayName("Given transactions applied during a load, keep those it misses")
+    void keepsTransactionsAppliedWhileLoading() throws Exception {
+        AtomicBoolean loading = new AtomicBoolean();
+        AtomicBoolean applied = new AtomicBoolean();
+        BalanceStore store = new BalanceStore(0, 4, accountId -> {
+            loading.set(true);
+            while (!applied.get()) {
+                Thread.onSpinWait();
+            }
+            // the load read the ledger up to transaction 1
+            return new BalanceStore.LoadedBalance(10, 1);
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> balance = executor.submit(() -> store.get(ACCOUNT_NUM));
+            while (!loading.get()) {
+                Thread.onSpinWait();
+            }
+            assertTrue(store.addIfPresent(ACCOUNT_NUM, 1, 10));
+            assertTrue(store.addIfPresent(ACCOUNT_NUM, 2, 5));
+            applied.set(true);
+
+            assertEquals(15, balance.get(10, TimeUnit.SECONDS));
+            assertEquals(15L, store.getIfPresent(ACCOUNT_NUM));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Given concurrent loads, transactions and evictions, never "
+        + "lose or repeat a transaction")
+    void stress() throws Exception {
+        int accounts = 8;
+        int transactions = 200000;
+        // the ledger: balance and latest transaction id of each account
+        long[][] ledger = new long[accounts][2];
+        BalanceStore store = new BalanceStore(accounts / 2, 2, accountId -> {
+            int account = Integer.parseInt(accountId);
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(20000));
+            synchronized (ledger) {
+                return new BalanceStore.LoadedBalance(ledger[account][0],
+                    ledger[account][1]);
+            }
+        });
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                for (long id = 1; id <= transactions; id++) {
+                    int account = (int) (id % accounts);
+                    synchronized (ledger) {
+                        ledger[account][0] += id;
+                        ledger[account][1] = id;
+                    }
+                    // applied after the commit, like the LedgerReader
+                    store.addIfPresent(BalanceStore.decode(account), id, id);
+                }
+                done.set(true);
+                return null;
+            });
+            AtomicInteger errors = new AtomicInteger();
+            for (int i = 0; i < 4; i++) {
+                executor.submit(() -> {
+                    while (!done.get()) {
+                        int account = ThreadLocalRandom.current()
+                            .nextInt(accounts);
+                        long balance = store.get(BalanceStore.decode(account));
+                        synchronized (ledger) {
+                            // balances only grow, so a repeated transaction
+                            // shows as a balance ahead of the ledger
+                            if (balance > ledger[account][0]) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                });
+            }
+            reader.get(60, TimeUnit.SECONDS);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+            assertEquals(0, errors.get());
+            // a lost transaction shows as a cached balance behind the ledger
+            for (int account = 0; account < accounts; account++) {
+                Long balance = store.getIfPresent(BalanceStore.decode(account));
+                if (balance != null) {
+                    assertEquals(ledger[account][0], balance);
+                }
+            }
+            assertTrue(store.evictionCount() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
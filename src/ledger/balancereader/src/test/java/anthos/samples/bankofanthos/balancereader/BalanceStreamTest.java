@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceStreamTest {
+
+    private static final String ACCOUNT_NUM = "0012345678";
+
+    private AtomicInteger loads;
+    private SimpleMeterRegistry meterRegistry;
+    private BalanceStream stream;
+
+    @BeforeEach
+    void setUp() {
+        loads = new AtomicInteger();
+        BalanceStore cache = new BalanceStore(0, 4, accountId -> {
+            loads.incrementAndGet();
+            return new BalanceStore.LoadedBalance(100, 7);
+        });
+        meterRegistry = new SimpleMeterRegistry();
+        stream = new BalanceStream(cache, meterRegistry, 2, 60000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        stream.close();
+    }
+
+    @Test
+    @DisplayName("Given the max number of open streams, refuse another one")
+    void capsConnections() {
+        assertNotNull(stream.subscribe(ACCOUNT_NUM));
+        assertNotNull(stream.subscribe("0098765432"));
+
+        assertNull(stream.subscribe(ACCOUNT_NUM));
+        assertEquals(2, stream.getConnections());
+        assertEquals(2, meterRegistry.get("balancereader.stream.connections")
+            .gauge().value());
+    }
+
+    @Test
+    @DisplayName("Given an account without subscribers, do not load its balance")
+    void ignoresUnsubscribedAccounts() throws InterruptedException {
+        stream.publish(ACCOUNT_NUM);
+        stream.heartbeat();
+        Thread.sleep(100);
+
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    @DisplayName("Given a versioned balance, use its transaction id as the event id")
+    void buildsEvents() {
+        String event = render(new BalanceStore.LoadedBalance(100, 7));
+
+        assertTrue(event.contains("id:7\n"), event);
+        assertTrue(event.contains("event:balance\n"), event);
+        assertTrue(event.contains("data:100"), event);
+        assertFalse(render(new BalanceStore.LoadedBalance(100,
+            BalanceStore.UNVERSIONED)).contains("id:"));
+    }
+
+    private static String render(BalanceStore.LoadedBalance balance) {
+        return BalanceStream.event(balance).build().stream()
+            .map(part -> part.getData().toString())
+            .collect(Collectors.joining());
+    }
+}
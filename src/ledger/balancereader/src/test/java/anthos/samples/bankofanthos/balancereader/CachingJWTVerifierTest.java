@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.exceptions.TokenExpiredException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingJWTVerifierTest {
+
+    private static final Instant NOW = Instant.parse("2026-01-01T00:00:00Z");
+    private static final long TTL_SECONDS = 300;
+
+    private Algorithm algorithm;
+    private MutableClock clock;
+    private AtomicInteger verifications;
+    private CachingJWTVerifier verifier;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        algorithm = Algorithm.RSA256((RSAPublicKey) keys.getPublic(),
+            (RSAPrivateKey) keys.getPrivate());
+        clock = new MutableClock();
+        verifications = new AtomicInteger();
+        JWTVerifier rsa = ((com.auth0.jwt.JWTVerifier.BaseVerification)
+            JWT.require(algorithm)).build(clock);
+        JWTVerifier counting = new JWTVerifier() {
+            @Override
+            public DecodedJWT verify(String token) {
+                verifications.incrementAndGet();
+                return rsa.verify(token);
+            }
+
+            @Override
+            public DecodedJWT verify(DecodedJWT jwt) {
+                return verify(jwt.getToken());
+            }
+        };
+        verifier = new CachingJWTVerifier(counting, 100,
+            TTL_SECONDS * 1000, clock);
+    }
+
+    @Test
+    @DisplayName("Given a token verified before, return its claims without verifying it again")
+    void verifiesOnce() {
+        String token = sign("1234567890", NOW.plusSeconds(60));
+
+        DecodedJWT first = verifier.verify(token);
+        DecodedJWT second = verifier.verify(token);
+
+        assertEquals("1234567890", second.getClaim("acct").asString());
+        assertSame(first, second);
+        assertEquals(1, verifications.get());
+        assertEquals("9876543210", verifier.verify(
+            sign("9876543210", NOW.plusSeconds(60))).getClaim("acct").asString());
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    @DisplayName("Given an invalid token, reject it every time")
+    void neverCachesRejectedTokens() {
+        String token = sign("1234567890", NOW.plusSeconds(60)) + "x";
+
+        assertThrows(JWTVerificationException.class, () -> verifier.verify(token));
+        assertThrows(JWTVerificationException.class, () -> verifier.verify(token));
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    @DisplayName("Given a cached token that expired, reject it")
+    void expiresWithToken() {
+        String token = sign("1234567890", NOW.plusSeconds(60));
+        verifier.verify(token);
+
+        clock.now = NOW.plusSeconds(59);
+        verifier.verify(token);
+        assertEquals(1, verifications.get());
+
+        clock.now = NOW.plusSeconds(61);
+        assertThrows(TokenExpiredException.class, () -> verifier.verify(token));
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    @DisplayName("Given a cached token without an expiry, verify it again after the TTL")
+    void expiresWithoutExpiry() {
+        String token = sign("1234567890", null);
+        verifier.verify(token);
+
+        clock.now = NOW.plusSeconds(TTL_SECONDS - 1);
+        verifier.verify(token);
+        assertEquals(1, verifications.get());
+
+        clock.now = NOW.plusSeconds(TTL_SECONDS);
+        assertEquals("1234567890", verifier.verify(token).getClaim("acct").asString());
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    @DisplayName("Given a cached token expiring after the TTL, verify it again after the TTL")
+    void expiresWithTtl() {
+        String token = sign("1234567890", NOW.plusSeconds(TTL_SECONDS * 2));
+        verifier.verify(token);
+
+        clock.now = NOW.plusSeconds(TTL_SECONDS);
+        verifier.verify(token);
+        assertEquals(2, verifications.get());
+    }
+
+    private String sign(String accountId, Instant expiresAt) {
+        return JWT.create()
+            .withClaim("acct", accountId)
+            .withExpiresAt(expiresAt)
+            .sign(algorithm);
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now = NOW;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
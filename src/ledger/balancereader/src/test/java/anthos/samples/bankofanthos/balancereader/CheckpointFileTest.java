@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Given a written checkpoint, read back watermark and body")
+    void roundTrip() throws IOException {
+        CheckpointFile file = new CheckpointFile(dir.resolve("cp"), 1);
+        file.write(42, out -> out.writeUTF("1234567890"));
+
+        CheckpointFile.Contents<String> contents = file.read(in -> in.readUTF());
+
+        assertEquals(42, contents.getWatermark());
+        assertEquals("1234567890", contents.getBody());
+    }
+
+    @Test
+    @DisplayName("Given no checkpoint, return null")
+    void missing() throws IOException {
+        CheckpointFile file = new CheckpointFile(dir.resolve("cp"), 1);
+
+        assertNull(file.read(in -> in.readUTF()));
+    }
+
+    @Test
+    @DisplayName("Given a corrupt checkpoint, throw IOException")
+    void corrupt() throws IOException {
+        Path path = dir.resolve("cp");
+        CheckpointFile file = new CheckpointFile(path, 1);
+        file.write(42, out -> out.writeLong(100));
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[20] ^= 1;
+        Files.write(path, bytes);
+
+        assertThrows(IOException.class, () -> file.read(in -> in.readLong()));
+    }
+
+    @Test
+    @DisplayName("Given a checkpoint of another version, throw IOException")
+    void otherVersion() throws IOException {
+        Path path = dir.resolve("cp");
+        new CheckpointFile(path, 1).write(42, out -> out.writeLong(100));
+
+        assertThrows(IOException.class,
+            () -> new CheckpointFile(path, 2).read(in -> in.readLong()));
+    }
+}
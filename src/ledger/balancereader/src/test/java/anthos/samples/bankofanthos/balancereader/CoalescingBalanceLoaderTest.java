@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.balancereader;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CoalescingBalanceLoaderTest {
+
+    private final List<List<String>> batches =
+        Collections.synchronizedList(new ArrayList<>());
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newFixedThreadPool(16);
+    // counted down when account "0" starts loading
+    private final CountDownLatch loadingZero = new CountDownLatch(1);
+    // holds the load of account "0" until counted down
+    private final CountDownLatch releaseZero = new CountDownLatch(1);
+
+    private final BalanceStore.BalanceLoader delegate =
+        new BalanceStore.BalanceLoader() {
+            @Override
+            public BalanceStore.LoadedBalance load(String accountId) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Map<String, BalanceStore.LoadedBalance> loadAll(
+                List<String> accountIds) {
+                batches.add(accountIds);
+                if (accountIds.contains("0")) {
+                    loadingZero.countDown();
+                    try {
+                        releaseZero.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (accountIds.contains("fail")) {
+                    throw new IllegalStateException("db down");
+                }
+                Map<String, BalanceStore.LoadedBalance> balances =
+                    new HashMap<>();
+                for (String accountId : accountIds) {
+                    balances.put(accountId, new BalanceStore.LoadedBalance(
+                        Long.parseLong(accountId), 0));
+                }
+                return balances;
+            }
+        };
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Given concurrent misses while a load is in flight, load them with one query")
+    void coalescesMisses() throws Exception {
+        CoalescingBalanceLoader loader = new CoalescingBalanceLoader(delegate,
+            60000, 8, meterRegistry);
+        Future<BalanceStore.LoadedBalance> zero =
+            executor.submit(() -> loader.load("0"));
+        loadingZero.await();
+
+        List<Future<BalanceStore.LoadedBalance>> balances = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            String accountId = String.valueOf(i);
+            balances.add(executor.submit(() -> loader.load(accountId)));
+        }
+
+        // the batch is full, and loads before the first load is over
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(i, balances.get(i - 1).get(10, TimeUnit.SECONDS)
+                .getBalance());
+        }
+        releaseZero.countDown();
+        assertEquals(0, zero.get(10, TimeUnit.SECONDS).getBalance());
+        assertEquals(2, batches.size());
+        assertEquals(List.of("0"), batches.get(0));
+        assertEquals(8, batches.get(1).size());
+        assertEquals(2, meterRegistry.get("balancereader.load.batch.size")
+            .summary().count());
+        assertEquals(9, meterRegistry.get("balancereader.load.queue.wait")
+            .timer().count());
+    }
+
+    @Test
+    @DisplayName("Given misses waiting for a load in flight, load them once it is over")
+    void loadsAfterLoadInFlight() throws Exception {
+        CoalescingBalanceLoader loader = new CoalescingBalanceLoader(delegate,
+            60000, 100, meterRegistry);
+        Future<BalanceStore.LoadedBalance> zero =
+            executor.submit(() -> loader.load("0"));
+        loadingZero.await();
+        Future<BalanceStore.LoadedBalance> one =
+            executor.submit(() -> loader.load("1"));
+
+        releaseZero.countDown();
+
+        // well before the window has passed
+        assertEquals(1, one.get(10, TimeUnit.SECONDS).getBalance());
+        assertEquals(0, zero.get(10, TimeUnit.SECONDS).getBalance());
+    }
+
+    @Test
+    @DisplayName("Given a single miss, load it without waiting for the window")
+    void loadsLoneMissAtOnce() {
+        CoalescingBalanceLoader loader = new CoalescingBalanceLoader(delegate,
+            60000, 100, meterRegistry);
+
+        long start = System.nanoTime();
+        assertEquals(42, loader.load("42").getBalance());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(List.of(List.of("42")), batches);
+    }
+
+    @Test
+    @DisplayName("Given the batch query fails, fail every miss in the batch")
+    void propagatesFailure() {
+        CoalescingBalanceLoader loader = new CoalescingBalanceLoader(delegate,
+            1, 100, meterRegistry);
+
+        assertThrows(IllegalStateException.class, () -> loader.load("fail"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ConcurrencyLimitingDataSourceTest {
+
+    private DataSource pool;
+    private Connection connection;
+    private ConcurrencyLimitingDataSource dataSource;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        pool = mock(DataSource.class);
+        connection = mock(Connection.class);
+        when(pool.getConnection()).thenReturn(connection);
+        dataSource = new ConcurrencyLimitingDataSource(pool, 2, 10);
+    }
+
+    @Test
+    @DisplayName("Given every permit in use, time out until a connection is closed")
+    void capsBorrowedConnections() throws SQLException {
+        Connection first = dataSource.getConnection();
+        Connection second = dataSource.getConnection();
+
+        assertThrows(SQLTransientConnectionException.class,
+            () -> dataSource.getConnection());
+        verify(pool, times(2)).getConnection();
+
+        first.close();
+        first.close();
+        verify(connection, times(2)).close();
+        assertEquals(1, dataSource.availablePermits());
+        assertNotNull(dataSource.getConnection());
+        second.close();
+        assertEquals(1, dataSource.availablePermits());
+    }
+
+    @Test
+    @DisplayName("Given the pool fails to return a connection, release the permit")
+    void releasesOnFailure() throws SQLException {
+        when(pool.getConnection()).thenThrow(new SQLException("pool down"));
+
+        assertThrows(SQLException.class, () -> dataSource.getConnection());
+        assertEquals(2, dataSource.availablePermits());
+    }
+
+    @Test
+    @DisplayName("Given a zero limit, leave the DataSource as is")
+    void postProcessor() {
+        assertSame(pool, ConcurrencyLimitingDataSource.postProcessor(0, 10)
+            .postProcessAfterInitialization(pool, "dataSource"));
+        assertTrue(ConcurrencyLimitingDataSource.postProcessor(2, 10)
+            .postProcessAfterInitialization(pool, "dataSource")
+            instanceof ConcurrencyLimitingDataSource);
+    }
+}
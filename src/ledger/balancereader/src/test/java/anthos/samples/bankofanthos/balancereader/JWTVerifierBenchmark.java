@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares verifying a reused token with the RSA256 JWTVerifier alone,
+ * and through the CachingJWTVerifier.
+ *
+ * Not run by the test suite. To run it:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=anthos.samples.bankofanthos.balancereader.JWTVerifierBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JWTVerifierBenchmark {
+
+    @Param({"rsa", "cached"})
+    public String verifier;
+
+    // distinct tokens in use, e.g. one per logged in user
+    @Param({"1000"})
+    public int tokens;
+
+    private JWTVerifier jwtVerifier;
+    private String[] signed;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        Algorithm algorithm = Algorithm.RSA256(
+            (RSAPublicKey) keys.getPublic(), (RSAPrivateKey) keys.getPrivate());
+        signed = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            signed[i] = JWT.create()
+                .withClaim("acct", BalanceStore.decode(1000000000L + i))
+                .withExpiresAt(Instant.now().plusSeconds(3600))
+                .sign(algorithm);
+        }
+        JWTVerifier rsa = JWT.require(algorithm).build();
+        jwtVerifier = "cached".equals(verifier)
+            ? new CachingJWTVerifier(rsa, tokens, 300000) : rsa;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DecodedJWT verify() {
+        return jwtVerifier.verify(
+            signed[ThreadLocalRandom.current().nextInt(tokens)]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(JWTVerifierBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
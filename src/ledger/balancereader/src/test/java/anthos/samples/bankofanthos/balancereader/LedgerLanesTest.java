@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LedgerLanesTest {
+
+    private static final String LOCAL_ROUTING_NUM = "123456789";
+    private static final String EXTERNAL_ROUTING_NUM = "987654321";
+    private static final int ACCOUNTS = 50;
+
+    @Test
+    @DisplayName("Given several lanes, apply each account in ledger order")
+    void dispatchKeepsPerAccountOrder() throws InterruptedException {
+        Map<String, List<Long>> applied = new ConcurrentHashMap<>();
+        LedgerLanes lanes = new LedgerLanes(4, 8, (accountId, transaction) ->
+            applied.computeIfAbsent(accountId,
+                id -> Collections.synchronizedList(new ArrayList<>()))
+                .add(transaction.getTransactionId()), LOCAL_ROUTING_NUM);
+
+        List<Transaction> batch = new ArrayList<>();
+        for (long id = 0; id < 1000; id++) {
+            batch.add(transfer(id, account(id), account(id + 1)));
+        }
+        lanes.dispatch(batch);
+
+        // every lane has drained the batch once dispatch returns
+        assertEquals(0, lanes.queued());
+        assertEquals(ACCOUNTS, applied.size());
+        for (List<Long> ids : applied.values()) {
+            assertEquals(40, ids.size());
+            for (int i = 1; i < ids.size(); i++) {
+                assertTrue(ids.get(i - 1) < ids.get(i));
+            }
+        }
+        assertTrue(lanes.isAlive());
+    }
+
+    @Test
+    @DisplayName("Given an external account, only apply the local account")
+    void dispatchSkipsExternalAccounts() throws InterruptedException {
+        List<String> applied = new ArrayList<>();
+        LedgerLanes lanes = new LedgerLanes(1, 8,
+            (accountId, transaction) -> applied.add(accountId),
+            LOCAL_ROUTING_NUM);
+
+        lanes.dispatch(List.of(new Transaction(1, "1111111111",
+            EXTERNAL_ROUTING_NUM, "2222222222", LOCAL_ROUTING_NUM, 100,
+            new Timestamp(0))));
+
+        assertEquals(List.of("2222222222"), applied);
+    }
+
+    @Test
+    @DisplayName("Given a failing callback, stop the lanes")
+    void dispatchFailure() {
+        LedgerLanes lanes = new LedgerLanes(2, 8, (accountId, transaction) -> {
+            throw new IllegalArgumentException("boom");
+        }, LOCAL_ROUTING_NUM);
+
+        assertThrows(IllegalStateException.class, () -> lanes.dispatch(
+            List.of(transfer(1, account(1), account(2)))));
+        assertFalse(lanes.isAlive());
+    }
+
+    private static String account(long id) {
+        return String.format("%010d", id % ACCOUNTS);
+    }
+
+    private static Transaction transfer(long id, String from, String to) {
+        return new Transaction(id, from, LOCAL_ROUTING_NUM, to,
+            LOCAL_ROUTING_NUM, 100, new Timestamp(0));
+    }
+}
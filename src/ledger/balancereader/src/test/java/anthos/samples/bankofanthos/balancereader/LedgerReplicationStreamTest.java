@@ -0,0 +1,171 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LedgerReplicationStreamTest {
+
+    private static final int RELATION_ID = 16385;
+    private static final String[] COLUMNS = {"transaction_id", "from_acct",
+        "from_route", "to_acct", "to_route", "amount", "timestamp"};
+
+    private LedgerReplicationStream stream;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stream = new LedgerReplicationStream("jdbc:postgresql://unused",
+            "user", "password", "slot");
+        stream.decode(relation("transactions"));
+    }
+
+    @Test
+    @DisplayName("Given a committed insert, decode it into a Transaction")
+    void decodeCommittedInsert() throws IOException {
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID, "7", "1234567890"));
+        stream.decode(commit(100));
+
+        List<Transaction> batch = stream.takeCommitted();
+
+        assertEquals(1, batch.size());
+        Transaction transaction = batch.get(0);
+        assertEquals(7, transaction.getTransactionId());
+        assertEquals("1234567890", transaction.getFromAccountNum());
+        assertEquals("123456789", transaction.getFromRoutingNum());
+        assertEquals("0987654321", transaction.getToAccountNum());
+        assertEquals(2500, transaction.getAmount());
+        assertNotNull(transaction.getTimestamp());
+    }
+
+    @Test
+    @DisplayName("Given an uncommitted insert, return nothing")
+    void withholdUncommittedInsert() throws IOException {
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID, "7", "1234567890"));
+
+        assertTrue(stream.takeCommitted().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Given an insert into another table, ignore it")
+    void ignoreOtherRelations() throws IOException {
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID + 1, "7", "1234567890"));
+        stream.decode(commit(100));
+
+        assertTrue(stream.takeCommitted().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Given a commit replayed after reconnecting, skip it")
+    void skipReplayedCommit() throws Exception {
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID, "7", "1234567890"));
+        stream.decode(commit(100));
+        assertEquals(1, stream.takeCommitted().size());
+        stream.acknowledge();
+        stream.close();
+        stream.decode(relation("transactions"));
+
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID, "7", "1234567890"));
+        stream.decode(commit(100));
+        stream.decode(begin());
+        stream.decode(insert(RELATION_ID, "8", "1234567890"));
+        stream.decode(commit(200));
+
+        List<Transaction> batch = stream.takeCommitted();
+        assertEquals(1, batch.size());
+        assertEquals(8, batch.get(0).getTransactionId());
+    }
+
+    private static ByteBuffer relation(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('R');
+        out.writeInt(RELATION_ID);
+        writeString(out, "public");
+        writeString(out, name);
+        out.writeByte('d');
+        out.writeShort(COLUMNS.length);
+        for (String column : COLUMNS) {
+            out.writeByte(0);
+            writeString(out, column);
+            out.writeInt(0);
+            out.writeInt(-1);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static ByteBuffer begin() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('B');
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeInt(1);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static ByteBuffer insert(int relationId, String transactionId,
+        String fromAccount) throws IOException {
+        String[] values = {transactionId, fromAccount, "123456789",
+            "0987654321", "123456789", "2500", "2020-06-01 12:00:00.123"};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('I');
+        out.writeInt(relationId);
+        out.writeByte('N');
+        out.writeShort(values.length);
+        for (String value : values) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            out.writeByte('t');
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static ByteBuffer commit(long endLsn) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte('C');
+        out.writeByte(0);
+        out.writeLong(endLsn - 1);
+        out.writeLong(endLsn);
+        out.writeLong(0);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException {
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+    }
+}
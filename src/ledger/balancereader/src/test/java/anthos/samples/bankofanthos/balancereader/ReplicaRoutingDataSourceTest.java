@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.balancereader;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ReplicaRoutingDataSourceTest {
+
+    private static final long MAX_LAG_MS = 1000;
+    private static final long CHECK_MS = 1000;
+    private static final int TIMEOUT_MS = 500;
+
+    private Connection connection;
+    private Statement statement;
+    private ResultSet result;
+    private AtomicLong watermark;
+    private AtomicLong nanoTime;
+    private ReplicaRoutingDataSource routing;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        DataSource replica = mock(DataSource.class);
+        connection = mock(Connection.class);
+        statement = mock(Statement.class);
+        result = mock(ResultSet.class);
+        when(replica.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery(ReplicaRoutingDataSource.CHECK_QUERY))
+            .thenReturn(result);
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        replicas.put("replica-0", replica);
+        routing = new ReplicaRoutingDataSource(mock(DataSource.class),
+            replicas, MAX_LAG_MS, CHECK_MS, TIMEOUT_MS);
+        watermark = new AtomicLong(50);
+        routing.setMinTransactionId(watermark::get);
+        nanoTime = new AtomicLong();
+        routing.setNanoTime(nanoTime::get);
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.clear();
+    }
+
+    @Test
+    @DisplayName("Given a replica that was never checked, read from the primary")
+    void primaryUntilChecked() {
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+    }
+
+    @Test
+    @DisplayName("Given a replica within lag and past the watermark, read from it")
+    void readsFromReplica() throws SQLException {
+        check(10, 100);
+
+        assertEquals("replica-0", routing.determineCurrentLookupKey());
+        assertEquals(1, routing.getReplicas().get(0).getConnections());
+        assertEquals(100, routing.getReplicas().get(0).getTransactionId());
+    }
+
+    @Test
+    @DisplayName("Given a replica behind the reader watermark, read from the primary")
+    void neverGoesBackwards() throws SQLException {
+        check(10, 100);
+        watermark.set(101);
+
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+        watermark.set(100);
+        assertEquals("replica-0", routing.determineCurrentLookupKey());
+    }
+
+    @Test
+    @DisplayName("Given a replica lagging past the max lag, read from the primary")
+    void fallsBackOnLag() throws SQLException {
+        check(MAX_LAG_MS + 1, 100);
+
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+        assertEquals(1, routing.getPrimaryConnections());
+    }
+
+    @Test
+    @DisplayName("Given a read-write transaction, use the primary")
+    void writesToPrimary() throws SQLException {
+        check(0, 100);
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        assertEquals("replica-0", routing.determineCurrentLookupKey());
+    }
+
+    @Test
+    @DisplayName("Given a failed check, stop reading from the replica")
+    void failedCheck() throws SQLException {
+        check(0, 100);
+        when(result.next()).thenThrow(new SQLException("replica down"));
+        routing.checkReplicas();
+
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+    }
+
+    @Test
+    @DisplayName("Given a check that does not finish, stop reading from the replica once it is stale")
+    void staleCheck() throws SQLException {
+        check(0, 100);
+        // a round of checks takes at most CHECK_MS + TIMEOUT_MS
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(
+            CHECK_MS + TIMEOUT_MS));
+        assertEquals("replica-0", routing.determineCurrentLookupKey());
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS + 1));
+        assertEquals(ReplicaRoutingDataSource.PRIMARY,
+            routing.determineCurrentLookupKey());
+        check(0, 100);
+        assertEquals("replica-0", routing.determineCurrentLookupKey());
+    }
+
+    @Test
+    @DisplayName("Given a check, bound it by the check timeout")
+    void checkTimeout() throws SQLException {
+        check(0, 100);
+
+        verify(connection).setNetworkTimeout(any(), eq(TIMEOUT_MS));
+        verify(statement).setQueryTimeout(1);
+    }
+
+    @Test
+    @DisplayName("Given replica URLs, route the pool even if it is wrapped")
+    void postProcessor() throws SQLException {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setJdbcUrl("jdbc:postgresql://ledger-db:5432/postgresdb");
+        DataSource limited = new ConcurrencyLimitingDataSource(pool, 10, 10);
+
+        assertSame(limited, ReplicaRoutingDataSource.postProcessor("", 1000,
+            1000, 1000)
+            .postProcessAfterInitialization(limited, "dataSource"));
+        DataSource routed = (DataSource) ReplicaRoutingDataSource
+            .postProcessor("jdbc:postgresql://ledger-db-replica:5432/"
+                + "postgresdb", 1000, 1000, 1000)
+            .postProcessAfterInitialization(limited, "dataSource");
+        assertTrue(routed.isWrapperFor(ReplicaRoutingDataSource.class));
+        assertSame(routed, ReplicaRoutingDataSource.postProcessor(
+            "jdbc:postgresql://ledger-db-replica:5432/postgresdb", 1000,
+            1000, 1000)
+            .postProcessAfterInitialization(routed, "dataSource"));
+        routed.unwrap(ReplicaRoutingDataSource.class).close();
+    }
+
+    private void check(long lagMs, long transactionId) throws SQLException {
+        when(result.next()).thenReturn(true);
+        when(result.getLong(1)).thenReturn(lagMs);
+        when(result.getLong(2)).thenReturn(transactionId);
+        routing.checkReplicas();
+    }
+}
@@ -31,3 +31,72 @@ CREATE RULE PREVENT_UPDATE AS
 CREATE RULE PREVENT_DELETE AS
   ON DELETE TO TRANSACTIONS
   DO INSTEAD NOTHING;
+-- notify ledger readers of new transactions; delivered on commit
+CREATE FUNCTION NOTIFY_TRANSACTION() RETURNS TRIGGER AS $$
+BEGIN
+  PERFORM pg_notify('ledger_transactions', NEW.TRANSACTION_ID::text);
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER NOTIFY_TRANSACTION
+  AFTER INSERT ON TRANSACTIONS
+  FOR EACH ROW EXECUTE FUNCTION NOTIFY_TRANSACTION();
+-- publish inserts for ledger readers tailing logical replication
+CREATE PUBLICATION LEDGER_TRANSACTIONS FOR TABLE TRANSACTIONS
+  WITH (publish = 'insert');
+-- running balance of each account, maintained by the insert trigger below
+CREATE TABLE ACCOUNT_BALANCES (
+    ACCT CHAR(10) NOT NULL,
+    ROUTE CHAR(9) NOT NULL,
+    BALANCE BIGINT NOT NULL,
+    LAST_TXN_ID BIGINT NOT NULL,
+    PRIMARY KEY (ACCT, ROUTE)
+);
+CREATE FUNCTION ADD_TO_BALANCE(ACCOUNT CHAR(10), ROUTING CHAR(9),
+    DELTA BIGINT, TXN_ID BIGINT) RETURNS VOID AS $$
+BEGIN
+  INSERT INTO ACCOUNT_BALANCES AS B (ACCT, ROUTE, BALANCE, LAST_TXN_ID)
+    VALUES (ACCOUNT, ROUTING, DELTA, TXN_ID)
+    ON CONFLICT (ACCT, ROUTE) DO UPDATE
+    SET BALANCE = B.BALANCE + EXCLUDED.BALANCE,
+        LAST_TXN_ID = GREATEST(B.LAST_TXN_ID, EXCLUDED.LAST_TXN_ID);
+END;
+$$ LANGUAGE plpgsql;
+-- update both balances in the inserting transaction; rows are locked in
+-- key order so that opposite transfers cannot deadlock
+CREATE FUNCTION UPDATE_ACCOUNT_BALANCES() RETURNS TRIGGER AS $$
+BEGIN
+  IF (NEW.FROM_ACCT, NEW.FROM_ROUTE) < (NEW.TO_ACCT, NEW.TO_ROUTE) THEN
+    PERFORM ADD_TO_BALANCE(NEW.FROM_ACCT, NEW.FROM_ROUTE, -NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+    PERFORM ADD_TO_BALANCE(NEW.TO_ACCT, NEW.TO_ROUTE, NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+  ELSE
+    PERFORM ADD_TO_BALANCE(NEW.TO_ACCT, NEW.TO_ROUTE, NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+    PERFORM ADD_TO_BALANCE(NEW.FROM_ACCT, NEW.FROM_ROUTE, -NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+CREATE TRIGGER UPDATE_ACCOUNT_BALANCES
+  AFTER INSERT ON TRANSACTIONS
+  FOR EACH ROW EXECUTE FUNCTION UPDATE_ACCOUNT_BALANCES();
+-- closing balance of each account on each day it had transactions, filled
+-- in by transactionhistory once the day is over; statements start from the
+-- nearest checkpoint instead of summing the whole history
+CREATE TABLE BALANCE_CHECKPOINTS (
+    ACCT CHAR(10) NOT NULL,
+    ROUTE CHAR(9) NOT NULL,
+    DAY DATE NOT NULL,
+    CLOSING_BALANCE BIGINT NOT NULL,
+    PRIMARY KEY (ACCT, ROUTE, DAY)
+);
+-- the first day not in BALANCE_CHECKPOINTS yet; a single row, moved forward
+-- in the same transaction as the checkpoints
+CREATE TABLE BALANCE_CHECKPOINTS_UNTIL (
+    ONLY_ROW BOOLEAN PRIMARY KEY DEFAULT TRUE CHECK (ONLY_ROW),
+    DAY DATE NOT NULL
+);
+CREATE INDEX ON TRANSACTIONS (TIMESTAMP);
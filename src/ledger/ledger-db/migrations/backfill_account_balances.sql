@@ -0,0 +1,71 @@
+-- Copyright 2020 Google LLC
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+-- One-time backfill of ACCOUNT_BALANCES for a ledger created before it
+-- existed. Safe to run again: balances are recomputed from TRANSACTIONS.
+--
+-- Inserts into TRANSACTIONS wait while this runs, so that every
+-- transaction is counted exactly once, by the backfill or by the trigger.
+
+BEGIN;
+LOCK TABLE TRANSACTIONS IN SHARE ROW EXCLUSIVE MODE;
+-- running balance of each account, maintained by the insert trigger below
+CREATE TABLE IF NOT EXISTS ACCOUNT_BALANCES (
+    ACCT CHAR(10) NOT NULL,
+    ROUTE CHAR(9) NOT NULL,
+    BALANCE BIGINT NOT NULL,
+    LAST_TXN_ID BIGINT NOT NULL,
+    PRIMARY KEY (ACCT, ROUTE)
+);
+CREATE OR REPLACE FUNCTION ADD_TO_BALANCE(ACCOUNT CHAR(10), ROUTING CHAR(9),
+    DELTA BIGINT, TXN_ID BIGINT) RETURNS VOID AS $$
+BEGIN
+  INSERT INTO ACCOUNT_BALANCES AS B (ACCT, ROUTE, BALANCE, LAST_TXN_ID)
+    VALUES (ACCOUNT, ROUTING, DELTA, TXN_ID)
+    ON CONFLICT (ACCT, ROUTE) DO UPDATE
+    SET BALANCE = B.BALANCE + EXCLUDED.BALANCE,
+        LAST_TXN_ID = GREATEST(B.LAST_TXN_ID, EXCLUDED.LAST_TXN_ID);
+END;
+$$ LANGUAGE plpgsql;
+-- update both balances in the inserting transaction; rows are locked in
+-- key order so that opposite transfers cannot deadlock
+CREATE OR REPLACE FUNCTION UPDATE_ACCOUNT_BALANCES() RETURNS TRIGGER AS $$
+BEGIN
+  IF (NEW.FROM_ACCT, NEW.FROM_ROUTE) < (NEW.TO_ACCT, NEW.TO_ROUTE) THEN
+    PERFORM ADD_TO_BALANCE(NEW.FROM_ACCT, NEW.FROM_ROUTE, -NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+    PERFORM ADD_TO_BALANCE(NEW.TO_ACCT, NEW.TO_ROUTE, NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+  ELSE
+    PERFORM ADD_TO_BALANCE(NEW.TO_ACCT, NEW.TO_ROUTE, NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+    PERFORM ADD_TO_BALANCE(NEW.FROM_ACCT, NEW.FROM_ROUTE, -NEW.AMOUNT,
+      NEW.TRANSACTION_ID);
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+DROP TRIGGER IF EXISTS UPDATE_ACCOUNT_BALANCES ON TRANSACTIONS;
+CREATE TRIGGER UPDATE_ACCOUNT_BALANCES
+  AFTER INSERT ON TRANSACTIONS
+  FOR EACH ROW EXECUTE FUNCTION UPDATE_ACCOUNT_BALANCES();
+TRUNCATE ACCOUNT_BALANCES;
+INSERT INTO ACCOUNT_BALANCES (ACCT, ROUTE, BALANCE, LAST_TXN_ID)
+  SELECT ACCT, ROUTE, SUM(DELTA), MAX(TRANSACTION_ID) FROM (
+    SELECT TO_ACCT AS ACCT, TO_ROUTE AS ROUTE, AMOUNT AS DELTA,
+        TRANSACTION_ID FROM TRANSACTIONS
+    UNION ALL
+    SELECT FROM_ACCT, FROM_ROUTE, -AMOUNT, TRANSACTION_ID FROM TRANSACTIONS
+  ) DELTAS GROUP BY ACCT, ROUTE;
+COMMIT;
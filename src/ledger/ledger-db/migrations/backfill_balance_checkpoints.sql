@@ -0,0 +1,61 @@
+-- Copyright 2020 Google LLC
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+-- Creates BALANCE_CHECKPOINTS and BALANCE_CHECKPOINTS_UNTIL in a ledger
+-- created before they existed, and backfills the closing balance of every
+-- account for every day before today. Safe to run again: existing
+-- checkpoints are kept.
+--
+-- transactionhistory backfills an empty BALANCE_CHECKPOINTS by itself, a
+-- month at a time; this does it in one statement, e.g. ahead of a rollout.
+-- Days end in UTC, the default BALANCE_CHECKPOINTS_ZONE; replace it below if
+-- ledgerwriter stamps transactions in another zone.
+
+CREATE TABLE IF NOT EXISTS BALANCE_CHECKPOINTS (
+    ACCT CHAR(10) NOT NULL,
+    ROUTE CHAR(9) NOT NULL,
+    DAY DATE NOT NULL,
+    CLOSING_BALANCE BIGINT NOT NULL,
+    PRIMARY KEY (ACCT, ROUTE, DAY)
+);
+CREATE TABLE IF NOT EXISTS BALANCE_CHECKPOINTS_UNTIL (
+    ONLY_ROW BOOLEAN PRIMARY KEY DEFAULT TRUE CHECK (ONLY_ROW),
+    DAY DATE NOT NULL
+);
+-- built without blocking inserts into the ledger
+CREATE INDEX CONCURRENTLY IF NOT EXISTS TRANSACTIONS_TIMESTAMP_IDX
+  ON TRANSACTIONS (TIMESTAMP);
+
+BEGIN;
+INSERT INTO BALANCE_CHECKPOINTS (ACCT, ROUTE, DAY, CLOSING_BALANCE)
+  SELECT ACCT, ROUTE, DAY,
+      SUM(DELTA) OVER (PARTITION BY ACCT, ROUTE ORDER BY DAY) FROM (
+    SELECT ACCT, ROUTE, DAY, SUM(DELTA) AS DELTA FROM (
+      SELECT TO_ACCT AS ACCT, TO_ROUTE AS ROUTE,
+          CAST(TIMESTAMP AS DATE) AS DAY, AMOUNT AS DELTA
+        FROM TRANSACTIONS
+        WHERE TIMESTAMP < CAST(now() AT TIME ZONE 'UTC' AS DATE)
+      UNION ALL
+      SELECT FROM_ACCT, FROM_ROUTE, CAST(TIMESTAMP AS DATE), -AMOUNT
+        FROM TRANSACTIONS
+        WHERE TIMESTAMP < CAST(now() AT TIME ZONE 'UTC' AS DATE)
+    ) T GROUP BY ACCT, ROUTE, DAY
+  ) D
+  ON CONFLICT DO NOTHING;
+-- transactionhistory carries on from there
+INSERT INTO BALANCE_CHECKPOINTS_UNTIL (DAY)
+  VALUES (CAST(now() AT TIME ZONE 'UTC' AS DATE))
+  ON CONFLICT (ONLY_ROW)
+  DO UPDATE SET DAY = GREATEST(BALANCE_CHECKPOINTS_UNTIL.DAY, EXCLUDED.DAY);
+COMMIT;
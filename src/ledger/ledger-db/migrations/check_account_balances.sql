@@ -0,0 +1,38 @@
+-- Copyright 2020 Google LLC
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+-- Consistency check of ACCOUNT_BALANCES against the raw ledger.
+-- Returns one row per account where they disagree, and no rows if the
+-- summary is consistent. Both sides are read from the same snapshot.
+
+WITH LEDGER AS (
+  SELECT ACCT, ROUTE, SUM(DELTA) AS BALANCE,
+      MAX(TRANSACTION_ID) AS LAST_TXN_ID FROM (
+    SELECT TO_ACCT AS ACCT, TO_ROUTE AS ROUTE, AMOUNT AS DELTA,
+        TRANSACTION_ID FROM TRANSACTIONS
+    UNION ALL
+    SELECT FROM_ACCT, FROM_ROUTE, -AMOUNT, TRANSACTION_ID FROM TRANSACTIONS
+  ) DELTAS GROUP BY ACCT, ROUTE
+)
+SELECT COALESCE(L.ACCT, B.ACCT) AS ACCT,
+    COALESCE(L.ROUTE, B.ROUTE) AS ROUTE,
+    L.BALANCE AS LEDGER_BALANCE,
+    B.BALANCE AS SUMMARY_BALANCE,
+    L.LAST_TXN_ID AS LEDGER_LAST_TXN_ID,
+    B.LAST_TXN_ID AS SUMMARY_LAST_TXN_ID
+  FROM LEDGER L
+  FULL OUTER JOIN ACCOUNT_BALANCES B
+    ON L.ACCT = B.ACCT AND L.ROUTE = B.ROUTE
+  WHERE L.BALANCE IS DISTINCT FROM B.BALANCE
+    OR L.LAST_TXN_ID IS DISTINCT FROM B.LAST_TXN_ID;
@@ -25,6 +25,8 @@ import javax.annotation.PreDestroy;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.actuate.autoconfigure.tracing.zipkin.ZipkinAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -79,6 +81,26 @@ public class LedgerWriterApplication {
         LOGGER.info("LedgerWriter service shutting down");
     }
 
+    /**
+     * Caps the database connections borrowed at once when requests are
+     * served on virtual threads (VIRTUAL_THREADS).
+     *
+     * @return a post processor wrapping the DataSource
+     */
+    @Bean
+    public static BeanPostProcessor dataSourceConcurrencyLimit(
+        @Value("${spring.threads.virtual.enabled:false}")
+        boolean virtualThreads,
+        @Value("${DB_MAX_CONCURRENCY:"
+            + "${spring.datasource.hikari.maximum-pool-size:10}}")
+        int maxConcurrency,
+        @Value("${spring.datasource.hikari.connection-timeout:30000}")
+        long timeoutMs) {
+        return ConcurrencyLimitingDataSource.postProcessor(
+            VirtualThreads.isActive(virtualThreads) ? maxConcurrency : 0,
+            timeoutMs);
+    }
+
     /**
      * Initializes Meter Registry with custom Stackdriver configuration
      *
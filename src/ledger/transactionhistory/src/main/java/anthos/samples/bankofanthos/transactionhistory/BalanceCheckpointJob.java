@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * BalanceCheckpointJob fills BALANCE_CHECKPOINTS with the closing balance
+ * of every account, for each day that is over, so that statements add
+ * up at most a day of transactions on top of a checkpoint.
+ *
+ * Each run carries on from BALANCE_CHECKPOINTS_UNTIL, the first day not
+ * checkpointed yet. The first run backfills the whole ledger,
+ * BACKFILL_DAYS at a time. Each batch of days is checkpointed in one
+ * transaction, which also moves BALANCE_CHECKPOINTS_UNTIL past them, so
+ * an interrupted run carries on from the first batch it did not commit.
+ * Batches hold a database lock, and a run stops when another instance
+ * holds it: one instance checkpoints at a time.
+ *
+ * Days are cut in BALANCE_CHECKPOINTS_ZONE, the zone transactions are
+ * stamped in: the bounds go to the database as dates, and are compared
+ * with the TIMESTAMP column as is, whatever the zone of the JVM or of
+ * the database session.
+ *
+ * Off unless BALANCE_CHECKPOINTS_ENABLED. Runs on its own thread, so that
+ * a long backfill does not hold up the shared @Scheduled thread.
+ */
+@Component
+public class BalanceCheckpointJob {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(BalanceCheckpointJob.class);
+
+    // days checkpointed by one statement
+    private static final int BACKFILL_DAYS = 31;
+    // transactions are stamped before they commit, so wait a little
+    // after midnight before treating a day as over
+    private static final long GRACE_MINUTES = 60;
+
+    @Autowired
+    private TransactionRepository dbRepo;
+    @Autowired
+    private TransactionTemplate transactions;
+
+    @Value("${BALANCE_CHECKPOINTS_ENABLED:false}")
+    private boolean enabled;
+    @Value("${BALANCE_CHECKPOINTS_INTERVAL_MS:3600000}")
+    private long intervalMs;
+    @Value("${BALANCE_CHECKPOINTS_ZONE:UTC}")
+    private ZoneId zone;
+
+    private ThreadPoolTaskScheduler scheduler;
+
+    /**
+     * Schedules a run every BALANCE_CHECKPOINTS_INTERVAL_MS, if enabled.
+     */
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setThreadNamePrefix("balance-checkpoints-");
+        scheduler.initialize();
+        scheduler.scheduleWithFixedDelay(this::run,
+            Instant.now().plusMillis(intervalMs),
+            Duration.ofMillis(intervalMs));
+    }
+
+    @PreDestroy
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Checkpoints every day that is over.
+     */
+    void run() {
+        try {
+            checkpoint(LocalDateTime.now(zone).minusMinutes(GRACE_MINUTES)
+                .toLocalDate());
+        } catch (DataAccessException e) {
+            LOGGER.warn(String.format("Failed to checkpoint balances: %s",
+                e.getMessage()));
+        }
+    }
+
+    /**
+     * Checkpoints every day before a given day.
+     *
+     * @param until the first day not to checkpoint
+     * @return the number of checkpoints added
+     */
+    public long checkpoint(LocalDate until) {
+        long added = 0;
+        while (true) {
+            Integer batch =
+                transactions.execute(status -> checkpointBatch(until));
+            if (batch == null || batch < 0) {
+                break;
+            }
+            added += batch;
+        }
+        if (added > 0) {
+            LOGGER.info(String.format("Added %d balance checkpoints up to %s",
+                added, until));
+        }
+        return added;
+    }
+
+    /**
+     * Checkpoints the next BACKFILL_DAYS before a given day, within the
+     * current transaction.
+     *
+     * @param until the first day not to checkpoint
+     * @return the number of checkpoints added, or -1 if there are no days
+     *         left, or another instance is checkpointing
+     */
+    private int checkpointBatch(LocalDate until) {
+        if (!dbRepo.tryLockBalanceCheckpoints()) {
+            LOGGER.debug("Another instance is checkpointing balances");
+            return -1;
+        }
+        Date next = dbRepo.balanceCheckpointsUntil();
+        if (next == null) {
+            next = dbRepo.earliestTransactionDay();
+            if (next == null) {
+                return -1;
+            }
+        }
+        LocalDate from = toLocalDate(next);
+        if (!from.isBefore(until)) {
+            return -1;
+        }
+        LocalDate to = from.plusDays(BACKFILL_DAYS);
+        if (to.isAfter(until)) {
+            to = until;
+        }
+        int added = dbRepo.addBalanceCheckpoints(from, to);
+        dbRepo.setBalanceCheckpointsUntil(to);
+        return added;
+    }
+
+    /**
+     * @param day a DATE read by JDBC, as midnight in the zone of the JVM
+     * @return the day, read back in the same zone
+     */
+    private static LocalDate toLocalDate(Date day) {
+        return new java.sql.Date(day.getTime()).toLocalDate();
+    }
+}
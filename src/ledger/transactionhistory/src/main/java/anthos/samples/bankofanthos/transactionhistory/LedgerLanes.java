@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * LedgerLanes applies transactions to the LedgerReaderCallback from a
+ * fixed number of worker threads ("lanes").
+ *
+ * Each local account is always applied on the same lane, chosen by
+ * account hash, so the transactions of an account are applied in ledger
+ * order. Lane queues are bounded: dispatch() blocks while a lane is full,
+ * which holds back the reader instead of buffering an unbounded backlog.
+ * dispatch() returns only once every lane has applied the whole batch,
+ * so the reader can advance its watermark after it returns.
+ *
+ * With a single lane, transactions are applied on the calling thread.
+ */
+final class LedgerLanes {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(LedgerLanes.class);
+
+    private final LedgerReaderCallback callback;
+    private final String localRoutingNum;
+    private final List<BlockingQueue<Entry>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile RuntimeException failure;
+
+    /**
+     * @param laneCount number of worker threads
+     * @param capacity max number of queued account updates per lane
+     * @param callback applied to each local account of each transaction
+     * @param localRoutingNum routing number of accounts held by this bank
+     */
+    LedgerLanes(int laneCount, int capacity, LedgerReaderCallback callback,
+        String localRoutingNum) {
+        this(laneCount, capacity, callback, localRoutingNum, null);
+    }
+
+    /**
+     * @param laneCount number of worker threads
+     * @param capacity max number of queued account updates per lane
+     * @param callback applied to each local account of each transaction
+     * @param localRoutingNum routing number of accounts held by this bank
+     * @param threadFactory creates the worker threads, or null for
+     *        daemon platform threads
+     */
+    LedgerLanes(int laneCount, int capacity, LedgerReaderCallback callback,
+        String localRoutingNum, ThreadFactory threadFactory) {
+        this.callback = callback;
+        this.localRoutingNum = localRoutingNum;
+        if (laneCount <= 1) {
+            return;
+        }
+        for (int i = 0; i < laneCount; i++) {
+            BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(capacity);
+            Thread worker;
+            if (threadFactory != null) {
+                worker = threadFactory.newThread(() -> drain(queue));
+                worker.setName("ledger-lane-" + i);
+            } else {
+                worker = new Thread(() -> drain(queue), "ledger-lane-" + i);
+                worker.setDaemon(true);
+            }
+            worker.start();
+            queues.add(queue);
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Applies a batch of transactions, in ledger order per account.
+     * Blocks until every lane has applied the batch.
+     *
+     * @param batch transactions in ledger order
+     * @throws IllegalStateException if the callback failed on any lane
+     * @throws InterruptedException if interrupted while waiting on a lane
+     */
+    void dispatch(List<Transaction> batch) throws InterruptedException {
+        if (queues.isEmpty()) {
+            for (Transaction transaction : batch) {
+                forEachLocalAccount(transaction, callback);
+            }
+            return;
+        }
+        for (Transaction transaction : batch) {
+            forEachLocalAccount(transaction, (accountId, t) -> {
+                try {
+                    laneOf(accountId).put(new Entry(accountId, t, null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        CountDownLatch barrier = new CountDownLatch(queues.size());
+        for (BlockingQueue<Entry> queue : queues) {
+            queue.put(new Entry(null, null, barrier));
+        }
+        barrier.await();
+        if (failure != null) {
+            throw new IllegalStateException("Ledger lane failed", failure);
+        }
+    }
+
+    /**
+     * @return number of account updates waiting on all lanes
+     */
+    int queued() {
+        int queued = 0;
+        for (BlockingQueue<Entry> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * @return false if the callback failed on any lane
+     */
+    boolean isAlive() {
+        if (failure != null) {
+            return false;
+        }
+        for (Thread worker : workers) {
+            if (!worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void forEachLocalAccount(Transaction transaction,
+        LedgerReaderCallback target) {
+        String fromId = transaction.getFromAccountNum();
+        String toId = transaction.getToAccountNum();
+        boolean fromLocal =
+            localRoutingNum.equals(transaction.getFromRoutingNum());
+        boolean toLocal = localRoutingNum.equals(transaction.getToRoutingNum());
+        if (fromLocal) {
+            target.processTransaction(fromId, transaction);
+        }
+        if (toLocal && !(fromLocal && toId.equals(fromId))) {
+            target.processTransaction(toId, transaction);
+        }
+    }
+
+    private BlockingQueue<Entry> laneOf(String accountId) {
+        return queues.get(Math.floorMod(accountId.hashCode(), queues.size()));
+    }
+
+    private void drain(BlockingQueue<Entry> queue) {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                LOGGER.warn("Ledger lane interrupted");
+                return;
+            }
+            if (entry.barrier != null) {
+                entry.barrier.countDown();
+            } else if (failure == null) {
+                try {
+                    callback.processTransaction(entry.accountId,
+                        entry.transaction);
+                } catch (RuntimeException e) {
+                    LOGGER.error(String.format("Failed to apply transaction "
+                        + "%d", entry.transaction.getTransactionId()), e);
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * An account update, or a barrier marking the end of a batch.
+     */
+    private static final class Entry {
+        private final String accountId;
+        private final Transaction transaction;
+        private final CountDownLatch barrier;
+
+        Entry(String accountId, Transaction transaction,
+            CountDownLatch barrier) {
+            this.accountId = accountId;
+            this.transaction = transaction;
+            this.barrier = barrier;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGProperty;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+
+/**
+ * LedgerReplicationStream tails inserts into TRANSACTIONS through a
+ * logical replication slot decoded by the pgoutput plugin.
+ *
+ * Transactions are delivered in commit order, and only once their commit
+ * has been received. Commit order is not transaction id order: a
+ * transaction may be delivered after one with a higher id. The slot
+ * position is only acknowledged up to the last commit that the caller has
+ * applied, so after a restart the slot resumes where the previous process
+ * stopped, replaying commits that state loaded since may already reflect.
+ */
+final class LedgerReplicationStream {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(LedgerReplicationStream.class);
+
+    static final String PUBLICATION = "ledger_transactions";
+    private static final String OUTPUT_PLUGIN = "pgoutput";
+    private static final String TABLE = "transactions";
+    private static final String DUPLICATE_OBJECT = "42710";
+    private static final int STATUS_INTERVAL_SECONDS = 10;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final String slotName;
+
+    private Connection connection;
+    private PGReplicationStream stream;
+
+    // relation id -> column names, from pgoutput Relation messages
+    private final Map<Integer, String[]> relations = new HashMap<>();
+    // rows of the database transaction currently being received
+    private final List<Transaction> pending = new ArrayList<>();
+    // rows of committed database transactions not yet returned by read()
+    private final List<Transaction> committed = new ArrayList<>();
+    private long committedLsn;
+    // end of the last commit returned by read(), and of the last commit
+    // acknowledged to the server
+    private long readLsn;
+    private long appliedLsn;
+    // whether a connection was opened before, and whether the slot had
+    // to be created again after that
+    private boolean connected;
+    private boolean slotRecreated;
+
+    LedgerReplicationStream(String url, String username, String password,
+        String slotName) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.slotName = slotName;
+    }
+
+    /**
+     * Reads committed transactions from the slot.
+     * Blocks until at least one database transaction has committed, then
+     * returns everything that is already buffered, up to roughly
+     * maxTransactions rows (a database transaction is never split).
+     *
+     * @param maxTransactions soft limit on the number of rows returned
+     * @return committed ledger transactions, in commit order
+     * @throws SQLException if the replication connection failed
+     */
+    List<Transaction> read(int maxTransactions) throws SQLException {
+        try {
+            if (stream == null) {
+                connect();
+            }
+            while (committed.size() < maxTransactions) {
+                // block while there is nothing to return, or while in the
+                // middle of a database transaction
+                ByteBuffer message = committed.isEmpty() || !pending.isEmpty()
+                    ? stream.read() : stream.readPending();
+                if (message == null) {
+                    break;
+                }
+                decode(message);
+            }
+            return takeCommitted();
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Acknowledges everything returned by the last read() as applied,
+     * allowing the server to discard the WAL behind it.
+     *
+     * @throws SQLException if the replication connection failed
+     */
+    void acknowledge() throws SQLException {
+        if (readLsn <= appliedLsn) {
+            return;
+        }
+        // remember the applied position even if the status update fails,
+        // so that commits replayed after reconnecting are skipped
+        appliedLsn = readLsn;
+        if (stream == null) {
+            return;
+        }
+        try {
+            LogSequenceNumber lsn = LogSequenceNumber.valueOf(appliedLsn);
+            stream.setAppliedLSN(lsn);
+            stream.setFlushedLSN(lsn);
+            stream.forceUpdateStatus();
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the replication connection, if open.
+     * Rows received after the last acknowledged commit are dropped, and
+     * will be streamed again after reconnecting.
+     */
+    void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Failed to close replication connection");
+            }
+        }
+        connection = null;
+        stream = null;
+        pending.clear();
+        committed.clear();
+        readLsn = appliedLsn;
+    }
+
+    /**
+     * Decodes a single pgoutput (protocol version 1) message.
+     * Only Relation, Insert and Commit messages carry state we need.
+     */
+    void decode(ByteBuffer message) {
+        byte type = message.get();
+        switch (type) {
+            case 'B':
+                // Begin: final lsn, commit timestamp, xid
+                pending.clear();
+                break;
+            case 'R':
+                decodeRelation(message);
+                break;
+            case 'I':
+                decodeInsert(message);
+                break;
+            case 'C':
+                // Commit: flags, commit lsn, end lsn, commit timestamp
+                message.get();
+                message.getLong();
+                long endLsn = message.getLong();
+                if (endLsn > appliedLsn) {
+                    committed.addAll(pending);
+                    committedLsn = endLsn;
+                } else {
+                    // already applied before a reconnect
+                    LOGGER.debug("Skipping replayed ledger transaction");
+                }
+                pending.clear();
+                break;
+            default:
+                // Origin, Type, Update, Delete, Truncate: not published
+                // or not relevant to the ledger
+                break;
+        }
+    }
+
+    /**
+     * Returns true, once, if reconnecting had to create the replication
+     * slot again, e.g. after a database failover. Transactions committed
+     * while there was no slot are never streamed.
+     */
+    boolean takeSlotRecreated() {
+        boolean recreated = slotRecreated;
+        slotRecreated = false;
+        return recreated;
+    }
+
+    /**
+     * Returns the committed rows decoded so far and marks their commit
+     * as read, ready to be acknowledged.
+     */
+    List<Transaction> takeCommitted() {
+        List<Transaction> batch = new ArrayList<>(committed);
+        committed.clear();
+        if (committedLsn > readLsn) {
+            readLsn = committedLsn;
+        }
+        return batch;
+    }
+
+    private void decodeRelation(ByteBuffer message) {
+        int relationId = message.getInt();
+        readString(message);
+        String relationName = readString(message);
+        // replica identity
+        message.get();
+        short columnCount = message.getShort();
+        String[] columns = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            // flags
+            message.get();
+            columns[i] = readString(message).toLowerCase(Locale.ROOT);
+            // type oid, type modifier
+            message.getInt();
+            message.getInt();
+        }
+        if (TABLE.equalsIgnoreCase(relationName)) {
+            relations.put(relationId, columns);
+        }
+    }
+
+    private void decodeInsert(ByteBuffer message) {
+        int relationId = message.getInt();
+        // 'N': new tuple
+        message.get();
+        String[] columns = relations.get(relationId);
+        short columnCount = message.getShort();
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < columnCount; i++) {
+            byte kind = message.get();
+            if (kind == 't') {
+                byte[] value = new byte[message.getInt()];
+                message.get(value);
+                if (columns != null && i < columns.length) {
+                    values.put(columns[i],
+                        new String(value, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (columns == null) {
+            return;
+        }
+        pending.add(new Transaction(
+            Long.parseLong(values.get("transaction_id")),
+            values.get("from_acct"),
+            values.get("from_route"),
+            values.get("to_acct"),
+            values.get("to_route"),
+            Integer.valueOf(values.get("amount")),
+            Timestamp.valueOf(values.get("timestamp"))));
+    }
+
+    private static String readString(ByteBuffer message) {
+        int start = message.position();
+        while (message.get() != 0) {
+            // scan to the null terminator
+        }
+        int length = message.position() - start - 1;
+        byte[] bytes = new byte[length];
+        message.position(start);
+        message.get(bytes);
+        message.get();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void connect() throws SQLException {
+        Properties props = new Properties();
+        PGProperty.USER.set(props, username);
+        PGProperty.PASSWORD.set(props, password);
+        PGProperty.ASSUME_MIN_SERVER_VERSION.set(props, "10");
+        PGProperty.REPLICATION.set(props, "database");
+        PGProperty.PREFER_QUERY_MODE.set(props, "simple");
+        connection = DriverManager.getConnection(url, props);
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        try {
+            pgConnection.getReplicationAPI()
+                .createReplicationSlot()
+                .logical()
+                .withSlotName(slotName)
+                .withOutputPlugin(OUTPUT_PLUGIN)
+                .make();
+            LOGGER.info(String.format("Created replication slot %s",
+                slotName));
+            slotRecreated = connected;
+            // positions of the previous slot mean nothing for the new one
+            committedLsn = 0;
+            readLsn = 0;
+            appliedLsn = 0;
+        } catch (SQLException e) {
+            if (!DUPLICATE_OBJECT.equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+        stream = pgConnection.getReplicationAPI()
+            .replicationStream()
+            .logical()
+            .withSlotName(slotName)
+            .withSlotOption("proto_version", 1)
+            .withSlotOption("publication_names", PUBLICATION)
+            .withStatusInterval(STATUS_INTERVAL_SECONDS, TimeUnit.SECONDS)
+            .start();
+        connected = true;
+        LOGGER.info(String.format("Streaming ledger from replication slot %s",
+            slotName));
+    }
+}
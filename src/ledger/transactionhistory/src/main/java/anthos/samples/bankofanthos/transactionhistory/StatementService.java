@@ -1,10 +1,20 @@
 package anthos.samples.bankofanthos.transactionhistory;
 
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -17,6 +27,12 @@ public class StatementService {
     @Autowired // automatically connects to the TransactionRepository
     private TransactionRepository transactionRepository;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     public BankStatement generateStatement(
             String accountId,
             String userName,
@@ -80,4 +96,74 @@ public class StatementService {
 
         return statement;
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the same statement as generateStatement, as JSON, while its
+     * transactions stream from the ledger: only the row being written is
+     * held in memory, whatever the date range. The totals are summed by
+     * the database first, so that the fields keep the order of
+     * BankStatement, with the closing balance before the transactions.
+     * The sums and the stream read the same repeatable-read snapshot.
+     *
+     * @param out the response body, left open
+     * @throws IOException if the response cannot be written
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public void writeStatement(
+            String accountId,
+            String userName,
+            String routingNum,
+            Date startDate,
+            Date endDate,
+            OutputStream out) throws IOException {
+
+        LOGGER.info("Streaming statement for account {} from {} to {}",
+                    accountId, startDate, endDate);
+
+        Long openingBalance = transactionRepository.getBalanceAsOf(accountId, routingNum, startDate);
+        Object[] totals = transactionRepository.sumTransactionsForDateRange(
+            accountId, routingNum, startDate, endDate).get(0);
+        long totalDeposits = totals[0] == null ? 0 : ((Number) totals[0]).longValue();
+        long totalWithdrawals = totals[1] == null ? 0 : ((Number) totals[1]).longValue();
+        LOGGER.debug("Total deposits: {}, Total withdrawals: {}",
+                    totalDeposits, totalWithdrawals);
+
+        long closingBalance = openingBalance + totalDeposits - totalWithdrawals;
+        Long databaseClosingBalance = transactionRepository.getBalanceAsOf(accountId, routingNum, endDate);
+        if (databaseClosingBalance != closingBalance) {
+            LOGGER.warn("Balance calculation discrepancy: Database closing balance is {}, but calculated balance is {}",
+                       databaseClosingBalance, closingBalance);
+        }
+        long count = 0;
+
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartObject();
+            json.writeStringField("accountId", accountId);
+            json.writeStringField("userName", userName);
+            json.writePOJOField("startDate", startDate);
+            json.writePOJOField("endDate", endDate);
+            json.writeNumberField("openingBalance", openingBalance);
+            json.writeNumberField("closingBalance", closingBalance);
+
+            json.writeArrayFieldStart("transactions");
+            try (Stream<Transaction> transactions = transactionRepository
+                    .streamTransactionsForDateRange(accountId, routingNum, startDate, endDate)) {
+                Iterator<Transaction> rows = transactions.iterator();
+                while (rows.hasNext()) {
+                    Transaction transaction = rows.next();
+                    json.writePOJO(transaction);
+                    // the persistence context would otherwise keep every row
+                    entityManager.detach(transaction);
+                    count++;
+                }
+            }
+            json.writeEndArray();
+
+            json.writeNumberField("totalCredits", totalDeposits);
+            json.writeNumberField("totalDebits", totalWithdrawals);
+            json.writeEndObject();
+        }
+        LOGGER.debug("Streamed {} transactions for account {}", count, accountId);
+    }
+}
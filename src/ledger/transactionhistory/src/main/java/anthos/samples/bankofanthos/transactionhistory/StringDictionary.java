@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StringDictionary assigns a small int code to each distinct string,
+ * so that account and routing numbers can be stored as ints.
+ *
+ * Codes are never reused: the dictionary grows with the number of
+ * distinct accounts seen, which is bounded by the accounts of the bank
+ * and their counterparties. Decoding returns the same String instance
+ * for every occurrence.
+ */
+final class StringDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    // guarded by this for writes; a code is only handed out after its
+    // value is stored
+    private volatile String[] values = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param value a non-null string
+     * @return the code of the string, assigned on first use
+     */
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            String[] current = values;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = value;
+            values = current;
+            codes.put(value, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param code a code returned by encode
+     * @return the string with that code
+     */
+    String decode(int code) {
+        return values[code];
+    }
+
+    /**
+     * @return the number of distinct strings
+     */
+    synchronized int size() {
+        return size;
+    }
+}
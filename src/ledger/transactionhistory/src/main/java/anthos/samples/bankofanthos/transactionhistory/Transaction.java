@@ -60,6 +60,22 @@ public final class Transaction {
 
     private static final double CENTS_PER_DOLLAR = 100.0;
 
+    public Transaction() {
+        // Required by JPA.
+    }
+
+    Transaction(long transactionId, String fromAccountNum,
+        String fromRoutingNum, String toAccountNum, String toRoutingNum,
+        Integer amount, Date timestamp) {
+        this.transactionId = transactionId;
+        this.fromAccountNum = fromAccountNum;
+        this.fromRoutingNum = fromRoutingNum;
+        this.toAccountNum = toAccountNum;
+        this.toRoutingNum = toRoutingNum;
+        this.amount = amount;
+        this.timestamp = timestamp;
+    }
+
     public long getTransactionId() {
         return transactionId;
     }
@@ -19,7 +19,6 @@ package anthos.samples.bankofanthos.transactionhistory;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import java.util.Deque;
 import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -55,21 +54,20 @@ public class TransactionCache {
      * @return the LoadingCache storing accountIds and their transactions
      */
     @Bean(name = "cache")
-    public LoadingCache<String, Deque<Transaction>> initializeCache(
+    public LoadingCache<String, TransactionHistory> initializeCache(
         @Value("${CACHE_SIZE:1000000}") final Integer expireSize,
         @Value("${CACHE_MINUTES:60}") final Integer expireMinutes,
         @Value("${LOCAL_ROUTING_NUM}") String localRoutingNum,
         @Value("${HISTORY_LIMIT:100}") Integer historyLimit) {
-        CacheLoader load = new CacheLoader<String, Deque<Transaction>>() {
+        CacheLoader load = new CacheLoader<String, TransactionHistory>() {
           @Override
-          public Deque<Transaction> load(String accountId)
+          public TransactionHistory load(String accountId)
               throws ResourceAccessException,
               DataAccessResourceFailureException  {
             LOGGER.debug("Cache loaded from db");
             Pageable request = PageRequest.of(0, historyLimit);
-            return dbRepo.findForAccount(accountId,
-                localRoutingNum,
-                request);
+            return TransactionHistory.of(historyLimit,
+                dbRepo.findForAccount(accountId, localRoutingNum, request));
           }
         };
       return CacheBuilder.newBuilder()
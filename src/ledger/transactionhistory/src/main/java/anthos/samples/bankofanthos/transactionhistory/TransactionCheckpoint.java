@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import com.google.common.cache.LoadingCache;
+import jakarta.annotation.PreDestroy;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * TransactionCheckpoint periodically saves the transaction history cache,
+ * with the LedgerReader watermark, to CHECKPOINT_PATH, and restores it at
+ * startup so that a restarted service only replays the transactions since.
+ *
+ * Disabled unless CHECKPOINT_PATH is set.
+ */
+@Component
+public class TransactionCheckpoint {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(TransactionCheckpoint.class);
+
+    // format version of the checkpoint body
+    private static final int VERSION = 1;
+
+    private final LoadingCache<String, TransactionHistory> cache;
+    private final LedgerReader ledgerReader;
+    private final CheckpointFile file;
+    private final int historyLimit;
+
+    private volatile boolean started;
+
+    @Autowired
+    public TransactionCheckpoint(
+        LoadingCache<String, TransactionHistory> cache,
+        LedgerReader ledgerReader,
+        @Value("${CHECKPOINT_PATH:}") String path,
+        @Value("${HISTORY_LIMIT:100}") int historyLimit) {
+        this.cache = cache;
+        this.ledgerReader = ledgerReader;
+        this.historyLimit = historyLimit;
+        this.file = path.isEmpty()
+            ? null : new CheckpointFile(Paths.get(path), VERSION);
+    }
+
+    /**
+     * Loads the checkpoint into the cache. Must be called before the
+     * LedgerReader is started; the cache is left empty on failure.
+     *
+     * @return the watermark to resume the LedgerReader from,
+     *         or null to start from the latest ledger transaction
+     */
+    public Long restore() {
+        started = true;
+        if (file == null) {
+            return null;
+        }
+        if (LedgerReader.REPLICATION_MODE.equals(ledgerReader.getMode())) {
+            LOGGER.warn("Checkpoints are not restored in replication mode");
+            return null;
+        }
+        try {
+            CheckpointFile.Contents<Map<String, TransactionHistory>>
+                checkpoint = file.read(this::readHistories);
+            if (checkpoint == null) {
+                LOGGER.info("No checkpoint, starting with an empty cache");
+                return null;
+            }
+            cache.putAll(checkpoint.getBody());
+            LOGGER.info(String.format("Restored %d histories as of "
+                + "transaction %d", checkpoint.getBody().size(),
+                checkpoint.getWatermark()));
+            return checkpoint.getWatermark();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn(String.format("Ignoring unreadable checkpoint: %s",
+                e.getMessage()));
+            cache.invalidateAll();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the cache every CHECKPOINT_INTERVAL_MS.
+     */
+    @Scheduled(fixedDelayString = "${CHECKPOINT_INTERVAL_MS:60000}",
+        initialDelayString = "${CHECKPOINT_INTERVAL_MS:60000}")
+    public void checkpoint() {
+        if (file == null || !started || !ledgerReader.isAlive()) {
+            return;
+        }
+        // snapshot the cache between two reader batches, copy and write
+        // it after
+        Map<String, TransactionHistory.Snapshot> snapshots = new HashMap<>();
+        long watermark = ledgerReader.atWatermark(latest -> {
+            for (Map.Entry<String, TransactionHistory> entry
+                : cache.asMap().entrySet()) {
+                snapshots.put(entry.getKey(), entry.getValue().snapshot());
+            }
+            return latest;
+        });
+        Map<String, List<Transaction>> histories = new HashMap<>();
+        snapshots.forEach((accountId, snapshot) ->
+            histories.put(accountId, snapshot.toList()));
+        try {
+            long size = file.write(watermark,
+                out -> writeHistories(out, histories));
+            LOGGER.debug(String.format("Checkpointed %d histories as of "
+                + "transaction %d (%d bytes)", histories.size(), watermark,
+                size));
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Failed to write checkpoint: %s",
+                e.getMessage()));
+        }
+    }
+
+    /**
+     * Saves the cache on shutdown, e.g. during a rollout.
+     */
+    @PreDestroy
+    public void shutdown() {
+        checkpoint();
+    }
+
+    private static void writeHistories(DataOutputStream out,
+        Map<String, List<Transaction>> histories) throws IOException {
+        out.writeInt(histories.size());
+        for (Map.Entry<String, List<Transaction>> history
+            : histories.entrySet()) {
+            out.writeUTF(history.getKey());
+            out.writeInt(history.getValue().size());
+            for (Transaction transaction : history.getValue()) {
+                out.writeLong(transaction.getTransactionId());
+                out.writeUTF(transaction.getFromAccountNum());
+                out.writeUTF(transaction.getFromRoutingNum());
+                out.writeUTF(transaction.getToAccountNum());
+                out.writeUTF(transaction.getToRoutingNum());
+                out.writeInt(transaction.getAmount());
+                out.writeLong(transaction.getTimestamp().getTime());
+            }
+        }
+    }
+
+    private Map<String, TransactionHistory> readHistories(
+        DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, TransactionHistory> histories = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String accountId = in.readUTF();
+            int size = in.readInt();
+            List<Transaction> history = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                history.add(new Transaction(in.readLong(), in.readUTF(),
+                    in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(),
+                    new Date(in.readLong())));
+            }
+            histories.put(accountId,
+                TransactionHistory.of(historyLimit, history));
+        }
+        return histories;
+    }
+}
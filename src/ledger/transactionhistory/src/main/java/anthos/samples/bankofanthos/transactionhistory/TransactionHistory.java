@@ -0,0 +1,382 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * TransactionHistory holds the latest transactions of an account, up to
+ * a fixed capacity (HISTORY_LIMIT), newest first.
+ *
+ * Transactions are stored as primitive columns: ids and timestamps as
+ * longs, amounts as ints, and account and routing numbers as
+ * StringDictionary codes. Transaction objects are only created when a
+ * response is built.
+ *
+ * The columns are a ring buffer. Once a history is full, the newest
+ * transaction overwrites the oldest slot in place, without allocating.
+ * Until then the columns grow by doubling, so that accounts with few
+ * transactions do not pay for HISTORY_LIMIT slots up front.
+ *
+ * Writers synchronize, and publish each transaction under the write lock
+ * of a StampedLock, which no reader takes: snapshot() copies the columns
+ * under an optimistic read, and copies them again if a write overlapped,
+ * so readers never block the writer and never see a partial update.
+ *
+ * The JSON of the latest snapshot is kept once serialized, so that
+ * requests for an account that did not change since reuse the same
+ * bytes.
+ */
+public final class TransactionHistory {
+
+    private static final int MIN_SLOTS = 8;
+    // shared by every history: numbers repeat across accounts
+    private static final StringDictionary NUMBERS = new StringDictionary();
+
+    private final int capacity;
+    private final StampedLock lock = new StampedLock();
+    // guarded by lock, and only written by addFirst
+    private Columns columns;
+    // slot of the newest transaction, and number of transactions
+    private int head;
+    private int size;
+    // number of transactions added since the history was created
+    private long version;
+    // highest transaction id held, guarded by this
+    private long maxTransactionId = Long.MIN_VALUE;
+    // JSON of the latest snapshot serialized
+    private volatile Json json;
+
+    /**
+     * @param capacity the max number of transactions kept
+     */
+    TransactionHistory(int capacity) {
+        this.capacity = capacity;
+        this.columns = new Columns(0);
+    }
+
+    /**
+     * @param capacity the max number of transactions kept
+     * @param transactions the transactions to keep, newest first
+     * @return the history of the transactions, up to capacity
+     */
+    static TransactionHistory of(int capacity,
+        List<Transaction> transactions) {
+        int count = Math.min(capacity, transactions.size());
+        TransactionHistory history = new TransactionHistory(capacity);
+        history.columns = new Columns(count);
+        for (int i = 0; i < count; i++) {
+            history.columns.set(i, transactions.get(i));
+            history.maxTransactionId = Math.max(history.maxTransactionId,
+                transactions.get(i).getTransactionId());
+        }
+        history.size = count;
+        return history;
+    }
+
+    /**
+     * Adds the newest transaction, dropping the oldest one if the history
+     * is full. Only writers synchronize: readers use snapshot().
+     *
+     * A transaction at or below the highest id held is skipped: the
+     * history was loaded after it, e.g. on a cache miss while the reader
+     * catches up, or from a checkpoint ahead of its watermark.
+     *
+     * @param transaction the transaction
+     * @return false if the history already held the transaction
+     */
+    synchronized boolean addFirst(Transaction transaction) {
+        if (transaction.getTransactionId() <= maxTransactionId) {
+            return false;
+        }
+        maxTransactionId = transaction.getTransactionId();
+        // only this thread writes the columns: read them without the lock
+        Columns current = columns;
+        if (size == current.length && current.length < capacity) {
+            current = new Columns(Math.min(capacity,
+                Math.max(MIN_SLOTS, current.length * 2)));
+            columns.copyTo(head, size, current);
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (current != columns) {
+                columns = current;
+                head = 0;
+            }
+            head = Math.floorMod(head - 1, current.length);
+            current.set(head, transaction);
+            size = Math.min(size + 1, capacity);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the history as of now, which never changes
+     */
+    public Snapshot snapshot() {
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            Columns current = columns;
+            int first = head;
+            int count = size;
+            long asOf = version;
+            // fields read across a write may not match: check before use
+            if (stamp != 0 && count <= current.length
+                && (count == 0 || first < current.length)) {
+                Columns copy = new Columns(count);
+                current.copyTo(first, count, copy);
+                if (lock.validate(stamp)) {
+                    return new Snapshot(this, capacity, copy, asOf);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return the id of the newest transaction, or 0 if there is none
+     */
+    long latestTransactionId() {
+        return snapshot().latestTransactionId();
+    }
+
+    /**
+     * @return the number of transactions
+     */
+    int size() {
+        return snapshot().size();
+    }
+
+    /**
+     * @return the transactions, newest first
+     */
+    public List<Transaction> toList() {
+        return snapshot().toList();
+    }
+
+    /**
+     * @see Snapshot#page(Long, int)
+     */
+    List<Transaction> page(Long before, int limit) {
+        return snapshot().page(before, limit);
+    }
+
+    /**
+     * Snapshot is the state of a history at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final TransactionHistory history;
+        private final int capacity;
+        // newest first, from slot 0
+        private final Columns columns;
+        private final long version;
+        // UTF-8 JSON of toList(), once requested
+        private volatile byte[] json;
+
+        private Snapshot(TransactionHistory history, int capacity,
+            Columns columns, long version) {
+            this.history = history;
+            this.capacity = capacity;
+            this.columns = columns;
+            this.version = version;
+        }
+
+        /**
+         * @return the id of the newest transaction, or 0 if there is none
+         */
+        public long latestTransactionId() {
+            return columns.length == 0 ? 0 : columns.ids[0];
+        }
+
+        /**
+         * @return the number of transactions
+         */
+        public int size() {
+            return columns.length;
+        }
+
+        /**
+         * @return the transactions, newest first
+         */
+        public List<Transaction> toList() {
+            return materialize(0, columns.length);
+        }
+
+        /**
+         * @param writer a writer for a list of Transaction
+         * @return the transactions, newest first, as UTF-8 JSON
+         * @throws JsonProcessingException if a transaction cannot be
+         *         serialized
+         */
+        public byte[] toJson(ObjectWriter writer)
+            throws JsonProcessingException {
+            byte[] bytes = json;
+            if (bytes != null) {
+                return bytes;
+            }
+            Json latest = history.json;
+            if (latest != null && latest.version == version) {
+                bytes = latest.bytes;
+            } else {
+                // concurrent first requests may both serialize: same bytes
+                bytes = writer.writeValueAsBytes(toList());
+                if (latest == null || latest.version < version) {
+                    history.json = new Json(version, bytes);
+                }
+            }
+            json = bytes;
+            return bytes;
+        }
+
+        /**
+         * Returns a page of transactions, newest first, if the snapshot
+         * holds it: the page ends within the snapshot, or the snapshot
+         * holds every transaction of the account because it is not full.
+         *
+         * @param before the id of the transaction the page starts after,
+         *        or null to start from the newest
+         * @param limit the max number of transactions in the page
+         * @return the page, or null if it reaches past the snapshot
+         */
+        public List<Transaction> page(Long before, int limit) {
+            int size = columns.length;
+            int from = 0;
+            if (before != null) {
+                from = -1;
+                for (int i = 0; i < size; i++) {
+                    if (columns.ids[i] == before) {
+                        from = i + 1;
+                        break;
+                    }
+                }
+                if (from < 0) {
+                    return null;
+                }
+            }
+            int to = from + limit;
+            if (to > size) {
+                if (size == capacity) {
+                    // older transactions were dropped
+                    return null;
+                }
+                to = size;
+            }
+            return materialize(from, to);
+        }
+
+        private List<Transaction> materialize(int from, int to) {
+            List<Transaction> transactions = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                transactions.add(columns.get(i));
+            }
+            return transactions;
+        }
+    }
+
+    /**
+     * Columns holds transactions in fixed-length primitive arrays.
+     */
+    private static final class Columns {
+
+        private final int length;
+        private final long[] ids;
+        private final long[] timestamps;
+        private final int[] amounts;
+        private final int[] fromAccounts;
+        private final int[] fromRoutes;
+        private final int[] toAccounts;
+        private final int[] toRoutes;
+
+        private Columns(int length) {
+            this.length = length;
+            this.ids = new long[length];
+            this.timestamps = new long[length];
+            this.amounts = new int[length];
+            this.fromAccounts = new int[length];
+            this.fromRoutes = new int[length];
+            this.toAccounts = new int[length];
+            this.toRoutes = new int[length];
+        }
+
+        private Transaction get(int slot) {
+            return new Transaction(ids[slot],
+                NUMBERS.decode(fromAccounts[slot]),
+                NUMBERS.decode(fromRoutes[slot]),
+                NUMBERS.decode(toAccounts[slot]),
+                NUMBERS.decode(toRoutes[slot]),
+                amounts[slot],
+                new Date(timestamps[slot]));
+        }
+
+        private void set(int slot, Transaction transaction) {
+            ids[slot] = transaction.getTransactionId();
+            timestamps[slot] = transaction.getTimestamp().getTime();
+            amounts[slot] = transaction.getAmount();
+            fromAccounts[slot] =
+                NUMBERS.encode(transaction.getFromAccountNum());
+            fromRoutes[slot] = NUMBERS.encode(transaction.getFromRoutingNum());
+            toAccounts[slot] = NUMBERS.encode(transaction.getToAccountNum());
+            toRoutes[slot] = NUMBERS.encode(transaction.getToRoutingNum());
+        }
+
+        /**
+         * Copies the count slots from first, wrapping around the end, to
+         * the start of another Columns.
+         */
+        private void copyTo(int first, int count, Columns to) {
+            if (count == 0) {
+                return;
+            }
+            int tail = Math.min(count, length - first);
+            copy(first, to, 0, tail);
+            copy(0, to, tail, count - tail);
+        }
+
+        private void copy(int from, Columns to, int at, int count) {
+            System.arraycopy(ids, from, to.ids, at, count);
+            System.arraycopy(timestamps, from, to.timestamps, at, count);
+            System.arraycopy(amounts, from, to.amounts, at, count);
+            System.arraycopy(fromAccounts, from, to.fromAccounts, at, count);
+            System.arraycopy(fromRoutes, from, to.fromRoutes, at, count);
+            System.arraycopy(toAccounts, from, to.toAccounts, at, count);
+            System.arraycopy(toRoutes, from, to.toRoutes, at, count);
+        }
+    }
+
+    /**
+     * Json is the serialized JSON of a history as of a version.
+     */
+    private static final class Json {
+
+        private final long version;
+        private final byte[] bytes;
+
+        private Json(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -16,22 +16,27 @@
 
 package anthos.samples.bankofanthos.transactionhistory;
 
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import io.micrometer.stackdriver.StackdriverMeterRegistry;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Date;
-import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -43,6 +48,8 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.http.ContentDisposition;
 
 /**
@@ -62,13 +69,18 @@ public final class TransactionHistoryController {
     @Value("${EXTRA_LATENCY_MILLIS:#{null}}")
     private Integer extraLatencyMillis;
     @Value("${HISTORY_LIMIT:100}")
-    private Integer historyLimit;
+    private Integer historyLimit = 100;
     private String version;
     private String localRoutingNum;
 
     private JWTVerifier verifier;
     private LedgerReader ledgerReader;
-    private LoadingCache<String, Deque<Transaction>> cache;
+    private LoadingCache<String, TransactionHistory> cache;
+    private ObjectWriter historyWriter;
+    private Counter notModified;
+    private Counter modified;
+    private Counter cachedPages;
+    private Counter databasePages;
 
     /**
      * Constructor.
@@ -80,7 +92,9 @@ public final class TransactionHistoryController {
             StackdriverMeterRegistry meterRegistry,
             JWTVerifier verifier,
             @Value("${PUB_KEY_PATH}") final String publicKeyPath,
-            LoadingCache<String, Deque<Transaction>> cache,
+            LoadingCache<String, TransactionHistory> cache,
+            ObjectMapper objectMapper,
+            TransactionCheckpoint checkpoint,
             @Value("${LOCAL_ROUTING_NUM}") final String localRoutingNum,
             @Value("${VERSION}") final String version) {
         this.version = version;
@@ -90,24 +104,47 @@ public final class TransactionHistoryController {
         // Initialize cache
         this.cache = cache;
         GuavaCacheMetrics.monitor(meterRegistry, this.cache, "Guava");
+        // the response Spring would serialize, in cacheable bytes
+        this.historyWriter = objectMapper.writerFor(
+            new TypeReference<List<Transaction>>() { });
+        this.notModified = conditionalRequests(meterRegistry, "not_modified");
+        this.modified = conditionalRequests(meterRegistry, "modified");
+        this.cachedPages = pages(meterRegistry, "cache");
+        this.databasePages = pages(meterRegistry, "database");
         // Initialize transaction processor.
         this.ledgerReader = reader;
         LOGGER.debug("Initialized transaction processor");
-        this.ledgerReader.startWithCallback(transaction -> {
-            final String fromId = transaction.getFromAccountNum();
-            final String fromRouting = transaction.getFromRoutingNum();
-            final String toId = transaction.getToAccountNum();
-            final String toRouting = transaction.getToRoutingNum();
-
-            if (fromRouting.equals(localRoutingNum)
-                    && this.cache.asMap().containsKey(fromId)) {
-                processTransaction(fromId, transaction);
+        LedgerReaderCallback callback = new LedgerReaderCallback() {
+            @Override
+            public void processTransaction(String accountId,
+                    Transaction transaction) {
+                if (cache.asMap().containsKey(accountId)) {
+                    TransactionHistoryController.this.processTransaction(
+                        accountId, transaction);
+                }
             }
-            if (toRouting.equals(localRoutingNum)
-                    && this.cache.asMap().containsKey(toId)) {
-                processTransaction(toId, transaction);
+
+            @Override
+            public void processLateTransaction(String accountId,
+                    Transaction transaction) {
+                // the cached history may claim the transaction without
+                // holding it: reload it on the next read
+                cache.invalidate(accountId);
             }
-        });
+        };
+        LedgerResyncCallback resync = latestTransactionId -> {
+            // the ledger went backwards: reload accounts from the ledger
+            LOGGER.info("Invalidating cache after ledger resync");
+            this.cache.invalidateAll();
+            return latestTransactionId;
+        };
+        // resume from the last checkpoint, if any
+        Long watermark = checkpoint.restore();
+        if (watermark != null) {
+            this.ledgerReader.startWithCallback(callback, resync, watermark);
+        } else {
+            this.ledgerReader.startWithCallback(callback, resync);
+        }
     }
 
     /**
@@ -118,15 +155,30 @@ public final class TransactionHistoryController {
      */
     private void processTransaction(String accountId, Transaction transaction) {
         LOGGER.debug("Modifying transaction cache: " + accountId);
-        Deque<Transaction> tList = this.cache.asMap()
-                                             .get(accountId);
-        tList.addFirst(transaction);
-        // Drop old transactions
-        if (tList.size() > historyLimit) {
-            tList.removeLast();
+        TransactionHistory history = this.cache.asMap().get(accountId);
+        // the oldest transaction is dropped once the history is full
+        if (history != null) {
+            history.addFirst(transaction);
         }
     }
 
+    private static Counter conditionalRequests(
+            StackdriverMeterRegistry meterRegistry, String result) {
+        return Counter.builder("transactionhistory.conditional.requests")
+            .description("History requests, by whether the history changed "
+                + "since the If-None-Match ETag")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private static Counter pages(StackdriverMeterRegistry meterRegistry,
+            String source) {
+        return Counter.builder("transactionhistory.pages")
+            .description("History pages served, by where they were read")
+            .tag("source", source)
+            .register(meterRegistry);
+    }
+
    /**
      * Version endpoint.
      *
@@ -168,14 +220,26 @@ public final class TransactionHistoryController {
      * Return a list of transactions for the specified account.
      *
      * The currently authenticated user must be allowed to access the account.
+     * The ETag is the id of the latest transaction in the history: a
+     * request with a matching If-None-Match gets a 304 instead.
+     *
+     * With before or limit, returns a TransactionPage instead, whose next
+     * cursor pages further back than HISTORY_LIMIT.
      * @param bearerToken  HTTP request 'Authorization' header
      * @param accountId    the account to get transactions for.
+     * @param before       the next cursor of the previous page, if any
+     * @param limit        the max number of transactions in a page, up to
+     *                     HISTORY_LIMIT (the default)
+     * @param request      the request, for conditional headers
      * @return             a list of transactions for this account.
      */
     @GetMapping("/transactions/{accountId}")
     public ResponseEntity<?> getTransactions(
             @RequestHeader("Authorization") String bearerToken,
-            @PathVariable String accountId) {
+            @PathVariable String accountId,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) Integer limit,
+            WebRequest request) {
 
         if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
             bearerToken = bearerToken.split("Bearer ")[1];
@@ -190,8 +254,20 @@ public final class TransactionHistoryController {
                                                   HttpStatus.UNAUTHORIZED);
             }
 
-            // Load from cache
-            Deque<Transaction> historyList = cache.get(accountId);
+            // Load from cache. The snapshot never changes, so the tag
+            // always matches the body.
+            TransactionHistory.Snapshot history =
+                cache.get(accountId).snapshot();
+            if (before != null || limit != null) {
+                return getPage(accountId, history, before, limit);
+            }
+            String eTag = Long.toString(history.latestTransactionId());
+            if (request.checkNotModified(eTag)) {
+                // 304, with the ETag set by checkNotModified
+                notModified.increment();
+                return null;
+            }
+            modified.increment();
 
             // Set artificial extra latency.
             LOGGER.debug("Setting artificial latency");
@@ -203,8 +279,9 @@ public final class TransactionHistoryController {
                 }
             }
 
-            return new ResponseEntity<Collection<Transaction>>(
-                    historyList, HttpStatus.OK);
+            return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(history.toJson(historyWriter));
         } catch (JWTVerificationException e) {
             LOGGER.error("Failed to retrieve account transactions: "
                 + "not authorized");
@@ -214,15 +291,66 @@ public final class TransactionHistoryController {
             LOGGER.error("Cache error");
             return new ResponseEntity<>("cache error",
                                               HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Failed to serialize transactions", e);
+            return new ResponseEntity<>("serialization error",
+                                              HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    /**
+     * Returns a page of the history of an account, from the cache if it
+     * holds the page, and from the ledger otherwise.
+     */
+    private ResponseEntity<?> getPage(String accountId,
+            TransactionHistory.Snapshot history, String before,
+            Integer limit) {
+        int pageSize = limit == null ? historyLimit : limit;
+        if (pageSize < 1 || pageSize > historyLimit) {
+            return new ResponseEntity<>(String.format(
+                "limit must be between 1 and %d", historyLimit),
+                HttpStatus.BAD_REQUEST);
+        }
+        Long beforeId;
+        try {
+            beforeId = before == null
+                ? null : TransactionPage.decodeCursor(before);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>("invalid cursor",
+                HttpStatus.BAD_REQUEST);
+        }
+        List<Transaction> transactions = history.page(beforeId, pageSize);
+        if (transactions != null) {
+            cachedPages.increment();
+        } else if (beforeId == null) {
+            databasePages.increment();
+            transactions = dbRepo.findForAccount(accountId, localRoutingNum,
+                PageRequest.of(0, pageSize));
+        } else {
+            databasePages.increment();
+            transactions = dbRepo.findForAccountBefore(accountId,
+                localRoutingNum, beforeId, pageSize);
+        }
+        return new ResponseEntity<>(
+            new TransactionPage(transactions, pageSize), HttpStatus.OK);
+    }
+
     @Autowired
     private StatementService statementService;
     
     @Autowired
     private StatementPdfGenerator statementPdfGenerator;
 
+    /**
+     * Generate a JSON bank statement for the specified account and date
+     * range, streamed as its transactions are read from the ledger.
+     *
+     * @param bearerToken  HTTP request 'Authorization' header
+     * @param accountId    the account to generate statement for
+     * @param startDate    start date for the statement period
+     * @param endDate      end date for the statement period
+     * @return            the streamed statement or error response
+     */
     @GetMapping("/statement/{accountId}")
     public ResponseEntity<?> generateStatement(
         @RequestHeader("Authorization") String bearerToken,
@@ -255,10 +383,13 @@ public final class TransactionHistoryController {
                 return new ResponseEntity<>("Start date must be before end date", HttpStatus.BAD_REQUEST);
             }
 
-            // Generate the statement
-            BankStatement statement = statementService.generateStatement(accountId, userName, localRoutingNum, startDate, endDate);
+            // Stream the statement as its transactions are read
+            StreamingResponseBody statement = out -> statementService.writeStatement(
+                accountId, userName, localRoutingNum, startDate, endDate, out);
 
-            return new ResponseEntity<>(statement, HttpStatus.OK);
+            return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(statement);
 
         } catch (JWTVerificationException e) {
             LOGGER.error("Failed to generate statement: not authorized");
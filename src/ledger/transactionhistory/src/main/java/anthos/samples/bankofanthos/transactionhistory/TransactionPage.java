@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A page of the transaction history of an account, newest first.
+ *
+ * The next cursor is an opaque token: passed as the before parameter,
+ * it returns the page after this one. It is null after the last page.
+ */
+public final class TransactionPage {
+
+    private static final String CURSOR_PREFIX = "t";
+
+    @JsonProperty("transactions")
+    private final List<Transaction> transactions;
+    @JsonProperty("nextCursor")
+    private final String nextCursor;
+
+    /**
+     * @param transactions the transactions of the page, newest first
+     * @param limit the max number of transactions in a page; a shorter
+     *        page is the last one
+     */
+    TransactionPage(List<Transaction> transactions, int limit) {
+        this.transactions = transactions;
+        this.nextCursor = transactions.isEmpty()
+            || transactions.size() < limit ? null : encodeCursor(
+                transactions.get(transactions.size() - 1)
+                    .getTransactionId());
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @param transactionId the last transaction of a page
+     * @return the cursor of the page after it
+     */
+    static String encodeCursor(long transactionId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+            (CURSOR_PREFIX + transactionId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor a cursor returned by encodeCursor
+     * @return the id of the transaction the page starts after
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    static long decodeCursor(String cursor) {
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor),
+            StandardCharsets.UTF_8);
+        if (!decoded.startsWith(CURSOR_PREFIX)) {
+            throw new IllegalArgumentException("malformed cursor");
+        }
+        return Long.parseLong(decoded.substring(CURSOR_PREFIX.length()));
+    }
+}
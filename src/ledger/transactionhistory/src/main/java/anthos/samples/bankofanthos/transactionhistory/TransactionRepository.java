@@ -14,14 +14,21 @@
 
 package anthos.samples.bankofanthos.transactionhistory;
 
+import java.time.LocalDate;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.stream.Stream;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * Repository class for performing queries on the Transaction database
@@ -36,17 +43,55 @@ public interface TransactionRepository
     @Query("SELECT MAX(transactionId) FROM Transaction")
     Long latestTransactionId();
 
+    /**
+     * Returns the newest transactions of an account, in the same
+     * (TIMESTAMP, TRANSACTION_ID) order as findForAccountBefore, so that
+     * a cursor into a cached history continues in the ledger without
+     * repeating or skipping transactions with equal timestamps.
+     */
     @Query("SELECT t FROM Transaction t "
         + " WHERE (t.fromAccountNum=?1 AND t.fromRoutingNum=?2) "
         + "   OR (t.toAccountNum=?1 AND t.toRoutingNum=?2) "
-        + " ORDER BY t.timestamp DESC")
+        + " ORDER BY t.timestamp DESC, t.transactionId DESC")
     LinkedList<Transaction> findForAccount(String accountNum,
                                            String routingNum,
                                            Pageable pager);
 
+    /**
+     * Returns the transactions of an account older than a cursor
+     * transaction, newest first, in (TIMESTAMP, TRANSACTION_ID) order.
+     * A keyset page: each side of the account walks its
+     * (ACCT, ROUTE, TIMESTAMP) index back from the cursor for at most
+     * limit rows, so the cost does not grow with the depth of the page.
+     * Returns nothing if the cursor transaction does not exist.
+     */
+    @Query(value = "WITH C AS (SELECT TIMESTAMP AS TS, TRANSACTION_ID AS ID"
+        + " FROM TRANSACTIONS WHERE TRANSACTION_ID = ?3) "
+        + "SELECT P.* FROM ("
+        + " (SELECT T.* FROM TRANSACTIONS T, C"
+        + "  WHERE T.FROM_ACCT = ?1 AND T.FROM_ROUTE = ?2"
+        + "  AND T.TIMESTAMP <= C.TS"
+        + "  AND (T.TIMESTAMP < C.TS OR T.TRANSACTION_ID < C.ID)"
+        + "  ORDER BY T.TIMESTAMP DESC, T.TRANSACTION_ID DESC LIMIT ?4)"
+        + " UNION"
+        + " (SELECT T.* FROM TRANSACTIONS T, C"
+        + "  WHERE T.TO_ACCT = ?1 AND T.TO_ROUTE = ?2"
+        + "  AND T.TIMESTAMP <= C.TS"
+        + "  AND (T.TIMESTAMP < C.TS OR T.TRANSACTION_ID < C.ID)"
+        + "  ORDER BY T.TIMESTAMP DESC, T.TRANSACTION_ID DESC LIMIT ?4)"
+        + ") P ORDER BY P.TIMESTAMP DESC, P.TRANSACTION_ID DESC LIMIT ?4",
+        nativeQuery = true)
+    List<Transaction> findForAccountBefore(String accountNum,
+        String routingNum, long beforeTransactionId, int limit);
+
+    /**
+     * Returns the page of transactions after the given transaction id,
+     * in transaction id order. Page 0 of a bounded Pageable is a keyset
+     * page: WHERE id > ? ORDER BY id LIMIT n.
+     */
     @Query("SELECT t FROM Transaction t "
         + " WHERE t.transactionId > ?1 ORDER BY t.transactionId ASC")
-    List<Transaction> findLatest(long latestTransaction);
+    List<Transaction> findLatest(long latestTransaction, Pageable pager);
 
     /*We need to add new methods to fetch transactions for a specific date range.
     We will use the @Query annotation to define the SQL query.
@@ -55,22 +100,143 @@ public interface TransactionRepository
     findTransactionsForDateRange: used to fetch all transactions for a specific account number and routing number that occurred between a given start date and end date.
     */
     @Query("SELECT t FROM Transaction t "
-        + " WHERE (t.fromAccountNum = ?1 AND t.fromRoutingNum = ?2) "
-        + "   OR (t.toAccountNum = ?1 AND t.toRoutingNum = ?2) "
+        + " WHERE ((t.fromAccountNum = ?1 AND t.fromRoutingNum = ?2) "
+        + "   OR (t.toAccountNum = ?1 AND t.toRoutingNum = ?2)) "
         + "   AND t.timestamp BETWEEN ?3 AND ?4 "
         + " ORDER BY t.timestamp ASC")
     List<Transaction> findTransactionsForDateRange(String accountNum, String routingNum, Date startDate, Date endDate);
 
+    /**
+     * Sums the transactions of an account between two dates, as
+     * generateStatement does: credits are those to the account, and
+     * debits all others.
+     *
+     * @return one row of credits and debits, each null if there are none
+     */
+    @Query("SELECT SUM(CASE WHEN t.toAccountNum = ?1 THEN t.amount ELSE 0 END), "
+        + "   SUM(CASE WHEN t.toAccountNum = ?1 THEN 0 ELSE t.amount END) "
+        + " FROM Transaction t "
+        + " WHERE ((t.fromAccountNum = ?1 AND t.fromRoutingNum = ?2) "
+        + "   OR (t.toAccountNum = ?1 AND t.toRoutingNum = ?2)) "
+        + "   AND t.timestamp BETWEEN ?3 AND ?4 ")
+    List<Object[]> sumTransactionsForDateRange(String accountNum,
+        String routingNum, Date startDate, Date endDate);
+
+    /**
+     * Streams the transactions of an account between two dates, oldest
+     * first, fetching 500 rows at a time through a server-side cursor.
+     * Must be consumed, and closed, within a read-only transaction.
+     */
+    @QueryHints({
+        @QueryHint(name = HibernateHints.HINT_FETCH_SIZE,
+            value = "500"),
+        @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT t FROM Transaction t "
+        + " WHERE ((t.fromAccountNum = ?1 AND t.fromRoutingNum = ?2) "
+        + "   OR (t.toAccountNum = ?1 AND t.toRoutingNum = ?2)) "
+        + "   AND t.timestamp BETWEEN ?3 AND ?4 "
+        + " ORDER BY t.timestamp ASC, t.transactionId ASC")
+    Stream<Transaction> streamTransactionsForDateRange(String accountNum,
+        String routingNum, Date startDate, Date endDate);
+
     /*
     getBalanceAsOf: used to fetch the balance of an account as of a specific date.
+    Starts from the latest BALANCE_CHECKPOINTS row of a day ending at or before
+    the date, and adds the transactions after it; without one, sums the whole
+    history. The day of the date is taken from the same TIMESTAMP value that
+    the transactions are compared with, so that both agree on where days end.
     */
-    @Query(value = "SELECT " +
-           "(SELECT COALESCE(SUM(AMOUNT), 0) FROM TRANSACTIONS " +
-           "WHERE TO_ACCT = ?1 AND TO_ROUTE = ?2 " +
-           "AND TIMESTAMP <= ?3) - " +
-           "(SELECT COALESCE(SUM(AMOUNT), 0) FROM TRANSACTIONS " +
-           "WHERE FROM_ACCT = ?1 AND FROM_ROUTE = ?2 " +
-           "AND TIMESTAMP <= ?3)",
+    @Query(value = "WITH CP AS ("
+           + " SELECT CAST(DAY + 1 AS TIMESTAMP) AS SINCE, CLOSING_BALANCE"
+           + " FROM BALANCE_CHECKPOINTS"
+           + " WHERE ACCT = ?1 AND ROUTE = ?2"
+           + " AND DAY < CAST(CAST(?3 AS TIMESTAMP) AS DATE)"
+           + " ORDER BY DAY DESC LIMIT 1) "
+           + "SELECT COALESCE((SELECT CLOSING_BALANCE FROM CP), 0) + "
+           + "(SELECT COALESCE(SUM(AMOUNT), 0) FROM TRANSACTIONS "
+           + "WHERE TO_ACCT = ?1 AND TO_ROUTE = ?2 "
+           + "AND TIMESTAMP >= COALESCE((SELECT SINCE FROM CP), '-infinity') "
+           + "AND TIMESTAMP <= CAST(?3 AS TIMESTAMP)) - "
+           + "(SELECT COALESCE(SUM(AMOUNT), 0) FROM TRANSACTIONS "
+           + "WHERE FROM_ACCT = ?1 AND FROM_ROUTE = ?2 "
+           + "AND TIMESTAMP >= COALESCE((SELECT SINCE FROM CP), '-infinity') "
+           + "AND TIMESTAMP <= CAST(?3 AS TIMESTAMP))",
            nativeQuery = true)
     Long getBalanceAsOf(String accountNum, String routingNum, Date date);
-}
\ No newline at end of file
+
+    /**
+     * Takes the lock of BalanceCheckpointJob until the end of the current
+     * transaction, unless another transaction holds it.
+     *
+     * @return whether the lock was taken
+     */
+    @Query(value = "SELECT pg_try_advisory_xact_lock("
+        + "hashtext('BALANCE_CHECKPOINTS'))", nativeQuery = true)
+    boolean tryLockBalanceCheckpoints();
+
+    /**
+     * Returns the first day not checkpointed yet, or NULL if none was
+     * checkpointed.
+     */
+    @Query(value = "SELECT DAY FROM BALANCE_CHECKPOINTS_UNTIL",
+        nativeQuery = true)
+    Date balanceCheckpointsUntil();
+
+    /**
+     * Records the first day not checkpointed yet. Must be called in the
+     * transaction that checkpointed the days before it.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO BALANCE_CHECKPOINTS_UNTIL (DAY)"
+        + " VALUES (CAST(?1 AS DATE))"
+        + " ON CONFLICT (ONLY_ROW) DO UPDATE SET DAY = EXCLUDED.DAY",
+        nativeQuery = true)
+    void setBalanceCheckpointsUntil(LocalDate day);
+
+    /**
+     * Returns the day of the earliest transaction, or NULL if none exist.
+     */
+    @Query(value = "SELECT CAST(MIN(TIMESTAMP) AS DATE) FROM TRANSACTIONS",
+        nativeQuery = true)
+    Date earliestTransactionDay();
+
+    /**
+     * Adds the closing balance of every account on every day in
+     * [from, to) that it had transactions, carrying on from its latest
+     * checkpoint before from. Days must be checkpointed in order, and
+     * only once they are over. Existing checkpoints of those days are
+     * recomputed.
+     * Transactions belong to the day of their TIMESTAMP, as stored.
+     *
+     * @return the number of checkpoints added or recomputed
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO BALANCE_CHECKPOINTS "
+        + "(ACCT, ROUTE, DAY, CLOSING_BALANCE) "
+        + "SELECT D.ACCT, D.ROUTE, D.DAY, "
+        + " COALESCE((SELECT C.CLOSING_BALANCE FROM BALANCE_CHECKPOINTS C"
+        + "   WHERE C.ACCT = D.ACCT AND C.ROUTE = D.ROUTE"
+        + "   AND C.DAY < CAST(?1 AS DATE)"
+        + "   ORDER BY C.DAY DESC LIMIT 1), 0)"
+        + " + SUM(D.DELTA) OVER (PARTITION BY D.ACCT, D.ROUTE ORDER BY D.DAY) "
+        + "FROM ("
+        + " SELECT ACCT, ROUTE, DAY, SUM(DELTA) AS DELTA FROM ("
+        + "  SELECT TO_ACCT AS ACCT, TO_ROUTE AS ROUTE,"
+        + "   CAST(TIMESTAMP AS DATE) AS DAY, AMOUNT AS DELTA"
+        + "   FROM TRANSACTIONS"
+        + "   WHERE TIMESTAMP >= CAST(?1 AS DATE)"
+        + "   AND TIMESTAMP < CAST(?2 AS DATE)"
+        + "  UNION ALL"
+        + "  SELECT FROM_ACCT, FROM_ROUTE, CAST(TIMESTAMP AS DATE), -AMOUNT"
+        + "   FROM TRANSACTIONS"
+        + "   WHERE TIMESTAMP >= CAST(?1 AS DATE)"
+        + "   AND TIMESTAMP < CAST(?2 AS DATE)"
+        + " ) T GROUP BY ACCT, ROUTE, DAY"
+        + ") D "
+        + "ON CONFLICT (ACCT, ROUTE, DAY)"
+        + " DO UPDATE SET CLOSING_BALANCE = EXCLUDED.CLOSING_BALANCE",
+        nativeQuery = true)
+    int addBalanceCheckpoints(LocalDate from, LocalDate to);
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.util.concurrent.ThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.system.JavaVersion;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+/**
+ * VirtualThreads decides whether the service runs on virtual threads.
+ *
+ * VIRTUAL_THREADS maps to spring.threads.virtual.enabled, which makes
+ * Spring Boot serve requests and run scheduled tasks on virtual threads.
+ * Spring Boot silently ignores it before Java 21; the service logs a
+ * warning instead, and keeps using platform threads everywhere.
+ */
+final class VirtualThreads {
+
+    private static final Logger LOGGER =
+        LogManager.getLogger(VirtualThreads.class);
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @param enabled spring.threads.virtual.enabled
+     * @return whether virtual threads are enabled and supported by the JVM
+     */
+    static boolean isActive(boolean enabled) {
+        if (enabled && !JavaVersion.getJavaVersion()
+            .isEqualOrNewerThan(JavaVersion.TWENTY_ONE)) {
+            LOGGER.warn(String.format("VIRTUAL_THREADS requires Java 21, "
+                + "running on Java %s with platform threads",
+                JavaVersion.getJavaVersion()));
+            return false;
+        }
+        return enabled;
+    }
+
+    /**
+     * @param enabled spring.threads.virtual.enabled
+     * @param prefix the prefix of the thread names
+     * @return a factory of virtual threads, or null if they are not active
+     */
+    static ThreadFactory factory(boolean enabled, String prefix) {
+        if (!isActive(enabled)) {
+            return null;
+        }
+        return new VirtualThreadTaskExecutor(prefix)
+            .getVirtualThreadFactory();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+class BalanceCheckpointJobTest {
+
+    @Mock
+    private TransactionRepository dbRepo;
+    @Mock
+    private TransactionTemplate transactions;
+    @InjectMocks
+    private BalanceCheckpointJob job;
+
+    // BALANCE_CHECKPOINTS_UNTIL, as of the last committed transaction
+    private final AtomicReference<Date> until = new AtomicReference<>();
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+        when(dbRepo.tryLockBalanceCheckpoints()).thenReturn(true);
+        when(dbRepo.balanceCheckpointsUntil()).thenAnswer(i -> until.get());
+        doAnswer(i -> {
+            until.set(java.sql.Date.valueOf((LocalDate) i.getArgument(0)));
+            return null;
+        }).when(dbRepo).setBalanceCheckpointsUntil(any());
+        // rolls BALANCE_CHECKPOINTS_UNTIL back if the callback fails
+        when(transactions.execute(any())).thenAnswer(i -> {
+            Date committed = until.get();
+            try {
+                return ((TransactionCallback<?>) i.getArgument(0))
+                    .doInTransaction(null);
+            } catch (RuntimeException e) {
+                until.set(committed);
+                throw e;
+            }
+        });
+    }
+
+    @Test
+    @DisplayName("Given existing checkpoints, checkpoint the days after them")
+    void carriesOn() {
+        until.set(java.sql.Date.valueOf("2024-03-02"));
+        when(dbRepo.addBalanceCheckpoints(any(), any())).thenReturn(5);
+
+        assertEquals(5, job.checkpoint(LocalDate.parse("2024-03-04")));
+
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-03-02"),
+            LocalDate.parse("2024-03-04"));
+        assertEquals(java.sql.Date.valueOf("2024-03-04"), until.get());
+    }
+
+    @Test
+    @DisplayName("Given no checkpoints, backfill from the first transaction a month at a time")
+    void backfills() {
+        when(dbRepo.earliestTransactionDay())
+            .thenReturn(java.sql.Date.valueOf("2024-01-15"));
+        when(dbRepo.addBalanceCheckpoints(any(), any())).thenReturn(1);
+
+        assertEquals(3, job.checkpoint(LocalDate.parse("2024-03-20")));
+
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-01-15"),
+            LocalDate.parse("2024-02-15"));
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-02-15"),
+            LocalDate.parse("2024-03-17"));
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-03-17"),
+            LocalDate.parse("2024-03-20"));
+        assertEquals(java.sql.Date.valueOf("2024-03-20"), until.get());
+    }
+
+    @Test
+    @DisplayName("Given an interrupted backfill, redo the days it did not commit")
+    void resumesInterruptedBackfill() {
+        when(dbRepo.earliestTransactionDay())
+            .thenReturn(java.sql.Date.valueOf("2024-01-15"));
+        when(dbRepo.addBalanceCheckpoints(any(), any()))
+            .thenReturn(1)
+            .thenThrow(new QueryTimeoutException("canceled"))
+            .thenReturn(1);
+
+        assertThrows(QueryTimeoutException.class,
+            () -> job.checkpoint(LocalDate.parse("2024-03-20")));
+        assertEquals(java.sql.Date.valueOf("2024-02-15"), until.get());
+
+        assertEquals(2, job.checkpoint(LocalDate.parse("2024-03-20")));
+
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-01-15"),
+            LocalDate.parse("2024-02-15"));
+        verify(dbRepo, times(2)).addBalanceCheckpoints(
+            LocalDate.parse("2024-02-15"), LocalDate.parse("2024-03-17"));
+        verify(dbRepo).addBalanceCheckpoints(LocalDate.parse("2024-03-17"),
+            LocalDate.parse("2024-03-20"));
+        assertEquals(java.sql.Date.valueOf("2024-03-20"), until.get());
+    }
+
+    @Test
+    @DisplayName("Given another instance checkpointing, add no checkpoints")
+    void locked() {
+        when(dbRepo.tryLockBalanceCheckpoints()).thenReturn(false);
+        when(dbRepo.earliestTransactionDay())
+            .thenReturn(java.sql.Date.valueOf("2024-01-15"));
+
+        assertEquals(0, job.checkpoint(LocalDate.parse("2024-03-20")));
+
+        verify(dbRepo, never()).addBalanceCheckpoints(any(), any());
+    }
+
+    @Test
+    @DisplayName("Given an empty ledger, add no checkpoints")
+    void emptyLedger() {
+        assertEquals(0, job.checkpoint(LocalDate.parse("2024-03-20")));
+
+        verify(dbRepo, never()).addBalanceCheckpoints(any(), any());
+    }
+}
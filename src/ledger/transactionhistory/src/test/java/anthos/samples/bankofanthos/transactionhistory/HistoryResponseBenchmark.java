@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/**
+ * Compares building the body of GET /transactions/{accountId} for an
+ * account that did not change since the last request: serializing the
+ * history with Jackson each time, as before, against reusing the JSON
+ * bytes of its snapshot. Reports latency percentiles and, through the
+ * GC profiler, bytes allocated per response (gc.alloc.rate.norm).
+ *
+ * Not run by the test suite. To run it (JMH forks, so the test
+ * classpath has to be the JVM's own):
+ *   mvn test-compile dependency:build-classpath \
+ *     -Dmdep.includeScope=test -Dmdep.outputFile=target/classpath.txt
+ *   java -cp target/test-classes:target/classes:$(cat target/classpath.txt) \
+ *     anthos.samples.bankofanthos.transactionhistory.HistoryResponseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryResponseBenchmark {
+
+    @Param({"jackson", "memoized"})
+    public String response;
+
+    @Param({"100"})
+    public int limit;
+
+    private TransactionHistory history;
+    private ObjectWriter writer;
+
+    @Setup
+    public void setUp() {
+        // configured as Spring Boot configures its ObjectMapper
+        writer = Jackson2ObjectMapperBuilder.json().build()
+            .writerFor(new TypeReference<List<Transaction>>() { });
+        history = new TransactionHistory(limit);
+        for (int i = 1; i <= limit; i++) {
+            history.addFirst(new Transaction(i, "1234567890", "123456789",
+                "9876543210", "123456789", i, new Date(1000L * i)));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] respond() throws JsonProcessingException {
+        TransactionHistory.Snapshot snapshot = history.snapshot();
+        if ("jackson".equals(response)) {
+            return writer.writeValueAsBytes(snapshot.toList());
+        }
+        return snapshot.toJson(writer);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(HistoryResponseBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
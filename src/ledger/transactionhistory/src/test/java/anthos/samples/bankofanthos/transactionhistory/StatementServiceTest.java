@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.springframework.data.jpa.repository.Query;
+
+class StatementServiceTest {
+
+    private static final String ACCOUNT_NUM = "1234567890";
+    private static final String OTHER_ACCOUNT_NUM = "9876543210";
+    private static final String ROUTING_NUM = "123456789";
+    private static final Date START = new Date(0);
+    private static final Date END = new Date(1000000);
+
+    @Mock
+    private TransactionRepository transactionRepository;
+    @Mock
+    private EntityManager entityManager;
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper();
+    @InjectMocks
+    private StatementService statementService;
+
+    @BeforeEach
+    void setUp() {
+        initMocks(this);
+    }
+
+    @Test
+    @DisplayName("Given transactions in the range, write them in the fields of BankStatement")
+    void writesStatement() throws Exception {
+        when(transactionRepository.getBalanceAsOf(ACCOUNT_NUM, ROUTING_NUM, START))
+            .thenReturn(1000L);
+        when(transactionRepository.getBalanceAsOf(ACCOUNT_NUM, ROUTING_NUM, END))
+            .thenReturn(1120L);
+        when(transactionRepository.sumTransactionsForDateRange(ACCOUNT_NUM,
+            ROUTING_NUM, START, END)).thenReturn(
+                List.<Object[]>of(new Object[] {150L, 30L}));
+        when(transactionRepository.streamTransactionsForDateRange(ACCOUNT_NUM,
+            ROUTING_NUM, START, END)).thenReturn(Stream.of(
+                deposit(1, 100), withdrawal(2, 30), deposit(3, 50)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        statementService.writeStatement(ACCOUNT_NUM, "Alex", ROUTING_NUM,
+            START, END, out);
+
+        JsonNode statement = objectMapper.readTree(out.toByteArray());
+        assertEquals(ACCOUNT_NUM, statement.get("accountId").asText());
+        assertEquals("Alex", statement.get("userName").asText());
+        assertEquals(1000, statement.get("openingBalance").asLong());
+        assertEquals(3, statement.get("transactions").size());
+        assertEquals(2, statement.get("transactions").get(1)
+            .get("transactionId").asLong());
+        assertEquals(150, statement.get("totalCredits").asLong());
+        assertEquals(30, statement.get("totalDebits").asLong());
+        assertEquals(1120, statement.get("closingBalance").asLong());
+        // the field order of the BankStatement the endpoint returned before
+        JsonNode bankStatement = objectMapper.readTree(
+            objectMapper.writeValueAsBytes(new BankStatement(ACCOUNT_NUM,
+                "Alex", START, END, 1000L, 1120L, List.of(), 150L, 30L)));
+        assertEquals(fieldNames(bankStatement), fieldNames(statement));
+        verify(entityManager, times(3)).detach(any(Transaction.class));
+    }
+
+    @Test
+    @DisplayName("Given a long range, write rows while later ones are still unread")
+    void writesIncrementally() throws Exception {
+        int rows = 20_000;
+        AtomicLong read = new AtomicLong();
+        AtomicLong readAtFirstWrite = new AtomicLong(-1);
+        when(transactionRepository.getBalanceAsOf(any(), any(), any()))
+            .thenReturn(0L);
+        when(transactionRepository.sumTransactionsForDateRange(ACCOUNT_NUM,
+            ROUTING_NUM, START, END)).thenReturn(
+                List.<Object[]>of(new Object[] {(long) rows, null}));
+        when(transactionRepository.streamTransactionsForDateRange(ACCOUNT_NUM,
+            ROUTING_NUM, START, END)).thenReturn(
+                Stream.iterate(1, id -> id + 1).limit(rows)
+                    .peek(id -> read.incrementAndGet())
+                    .map(id -> deposit(id, 1)));
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                readAtFirstWrite.compareAndSet(-1, read.get());
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                readAtFirstWrite.compareAndSet(-1, read.get());
+            }
+        };
+
+        statementService.writeStatement(ACCOUNT_NUM, "Alex", ROUTING_NUM,
+            START, END, out);
+
+        assertEquals(rows, read.get());
+        assertTrue(readAtFirstWrite.get() < rows / 10, String.format(
+            "first write after %d of %d rows", readAtFirstWrite.get(), rows));
+        verify(entityManager, times(rows)).detach(any(Transaction.class));
+    }
+
+    @Test
+    @DisplayName("Given a date range, bound both incoming and outgoing transactions by it")
+    void boundsBothSidesByDate() throws Exception {
+        // AND binds tighter than OR: without the outer parentheses, the
+        // dates would only bound the incoming side
+        String where = "WHERE ((t.fromAccountNum = ?1 AND t.fromRoutingNum = ?2)"
+            + " OR (t.toAccountNum = ?1 AND t.toRoutingNum = ?2))"
+            + " AND t.timestamp BETWEEN ?3 AND ?4 ";
+        for (String method : List.of("findTransactionsForDateRange",
+                "sumTransactionsForDateRange",
+                "streamTransactionsForDateRange")) {
+            String query = TransactionRepository.class.getMethod(method,
+                    String.class, String.class, Date.class, Date.class)
+                .getAnnotation(Query.class).value()
+                .replaceAll("\\s+", " ");
+            assertTrue(query.contains(where), method + ": " + query);
+        }
+    }
+
+    private static List<String> fieldNames(JsonNode node) {
+        List<String> names = new ArrayList<>();
+        node.fieldNames().forEachRemaining(names::add);
+        return names;
+    }
+
+    private static Transaction deposit(long id, int amount) {
+        return new Transaction(id, OTHER_ACCOUNT_NUM, ROUTING_NUM,
+            ACCOUNT_NUM, ROUTING_NUM, amount, new Date(id));
+    }
+
+    private static Transaction withdrawal(long id, int amount) {
+        return new Transaction(id, ACCOUNT_NUM, ROUTING_NUM,
+            OTHER_ACCOUNT_NUM, ROUTING_NUM, amount, new Date(id));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the latency of reading a history while the ledger reader
+ * replays transactions into it as fast as it can: TransactionHistory
+ * snapshots against a synchronized deque, as the cache held before.
+ * Reports percentiles of both the read and the write.
+ *
+ * Not run by the test suite. To run it (JMH forks, so the test
+ * classpath has to be the JVM's own):
+ *   mvn test-compile dependency:build-classpath \
+ *     -Dmdep.includeScope=test -Dmdep.outputFile=target/classpath.txt
+ *   java -cp target/test-classes:target/classes:$(cat target/classpath.txt) \
+ *     anthos.samples.bankofanthos.transactionhistory.TransactionHistoryBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionHistoryBenchmark {
+
+    @Param({"synchronized", "snapshot"})
+    public String history;
+
+    @Param({"100"})
+    public int limit;
+
+    private TransactionHistory snapshots;
+    private Deque<Transaction> deque;
+    private long next;
+
+    @Setup
+    public void setUp() {
+        if ("synchronized".equals(history)) {
+            deque = new ArrayDeque<>(limit);
+        } else {
+            snapshots = new TransactionHistory(limit);
+        }
+        for (int i = 0; i < limit; i++) {
+            write();
+        }
+    }
+
+    @Benchmark
+    @Group("replay")
+    @GroupThreads(1)
+    public void write() {
+        // ids only grow, as replayed by the ledger reader
+        long id = ++next;
+        Transaction transaction = new Transaction(id, "1234567890",
+            "123456789", "9876543210", "123456789", (int) id,
+            new Date(1000L * id));
+        if (snapshots != null) {
+            snapshots.addFirst(transaction);
+            return;
+        }
+        synchronized (deque) {
+            deque.addFirst(transaction);
+            if (deque.size() > limit) {
+                deque.pollLast();
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("replay")
+    @GroupThreads(3)
+    public List<Transaction> read() {
+        if (snapshots != null) {
+            return snapshots.snapshot().toList();
+        }
+        synchronized (deque) {
+            return new ArrayList<>(deque);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TransactionHistoryBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -16,29 +16,51 @@
 
 package anthos.samples.bankofanthos.transactionhistory;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.Claim;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.lang.Nullable;
 import io.micrometer.stackdriver.StackdriverConfig;
 import io.micrometer.stackdriver.StackdriverMeterRegistry;
-import java.util.Deque;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
 
 class TransactionHistoryControllerTest {
 
@@ -55,11 +77,15 @@ class TransactionHistoryControllerTest {
     @Mock
     private Clock clock;
     @Mock
-    private LoadingCache<String, Deque<Transaction>> cache;
+    private LoadingCache<String, TransactionHistory> cache;
+    @Mock
+    private TransactionCheckpoint checkpoint;
     @Mock
     private CacheStats stats;
     @Mock
-    private Deque<Transaction> transactions;
+    private WebRequest webRequest;
+    @Mock
+    private TransactionRepository dbRepo;
 
     private static final String VERSION = "v0.2.0";
     private static final String LOCAL_ROUTING_NUM = "123456789";
@@ -72,7 +98,7 @@ class TransactionHistoryControllerTest {
     private static final String PUBLIC_KEY_PATH = "path/";
 
     @BeforeEach
-    void setUp() {
+    void setUp() throws Exception {
         initMocks(this);
         StackdriverMeterRegistry meterRegistry = new StackdriverMeterRegistry(new StackdriverConfig() {
             @Override
@@ -94,7 +120,14 @@ class TransactionHistoryControllerTest {
 
         when(cache.stats()).thenReturn(stats);
         transactionHistoryController = new TransactionHistoryController(ledgerReader,
-            meterRegistry, verifier, PUBLIC_KEY_PATH, cache, LOCAL_ROUTING_NUM, VERSION);
+            meterRegistry, verifier, PUBLIC_KEY_PATH, cache, new ObjectMapper(), checkpoint,
+            LOCAL_ROUTING_NUM,
+            VERSION);
+        // the repository is field-injected by Spring
+        Field repository = TransactionHistoryController.class
+            .getDeclaredField("dbRepo");
+        repository.setAccessible(true);
+        repository.set(transactionHistoryController, dbRepo);
 
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
@@ -160,15 +193,45 @@ class TransactionHistoryControllerTest {
         when(verifier.verify(TOKEN)).thenReturn(jwt);
         when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
-        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(transactions);
+        TransactionHistory history = new TransactionHistory(100);
+        history.addFirst(new Transaction(42, NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+            AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(history);
 
         // When
         final ResponseEntity actualResult = transactionHistoryController
-            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+                null, null, webRequest);
 
         // Then
         assertNotNull(actualResult);
         assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+        assertEquals(MediaType.APPLICATION_JSON, actualResult.getHeaders().getContentType());
+        assertArrayEquals(new ObjectMapper().writeValueAsBytes(history.toList()),
+            (byte[]) actualResult.getBody());
+    }
+
+    @Test
+    @DisplayName("Given the history has not changed since the If-None-Match ETag, return 304")
+    void getTransactionsNotModifiedWhenETagMatches() throws Exception {
+        // Given
+        TransactionHistory history = new TransactionHistory(100);
+        history.addFirst(new Transaction(41, AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+            NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        history.addFirst(new Transaction(42, NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+            AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        when(verifier.verify(TOKEN)).thenReturn(jwt);
+        when(jwt.getClaim(JWT_ACCOUNT_KEY)).thenReturn(claim);
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(history);
+        when(webRequest.checkNotModified("42")).thenReturn(true);
+
+        // When
+        final ResponseEntity actualResult = transactionHistoryController
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM, null, null, webRequest);
+
+        // Then
+        assertNull(actualResult);
     }
 
     @Test
@@ -180,7 +243,8 @@ class TransactionHistoryControllerTest {
         when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
 
         // When
-        final ResponseEntity actualResult = transactionHistoryController.getTransactions(BEARER_TOKEN, NON_AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = transactionHistoryController.getTransactions(BEARER_TOKEN, NON_AUTHED_ACCOUNT_NUM,
+                null, null, webRequest);
 
         // Then
         assertNotNull(actualResult);
@@ -194,7 +258,8 @@ class TransactionHistoryControllerTest {
         when(verifier.verify(TOKEN)).thenThrow(JWTVerificationException.class);
 
         // When
-        final ResponseEntity actualResult = transactionHistoryController.getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+        final ResponseEntity actualResult = transactionHistoryController.getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+                null, null, webRequest);
 
         // Then
         assertNotNull(actualResult);
@@ -212,11 +277,169 @@ class TransactionHistoryControllerTest {
 
         // When
         final ResponseEntity actualResult = transactionHistoryController
-            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM);
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+                null, null, webRequest);
 
         // Then
         assertNotNull(actualResult);
         assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, actualResult.getStatusCode());
     }
 
+    @Test
+    @DisplayName("Given a history loaded ahead of the reader, skip transactions it already holds")
+    void processTransactionSkipsLoadedTransactions() throws Exception {
+        // Given
+        ArgumentCaptor<LedgerReaderCallback> callback =
+            ArgumentCaptor.forClass(LedgerReaderCallback.class);
+        verify(ledgerReader).startWithCallback(callback.capture(),
+            any(LedgerResyncCallback.class), anyLong());
+        List<Transaction> loaded = new ArrayList<>();
+        for (long id = 5; id >= 4; id--) {
+            loaded.add(new Transaction(id, AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+                NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        }
+        TransactionHistory history = TransactionHistory.of(100, loaded);
+        ConcurrentMap<String, TransactionHistory> histories = new ConcurrentHashMap<>();
+        histories.put(AUTHED_ACCOUNT_NUM, history);
+        when(cache.asMap()).thenReturn(histories);
+
+        // When
+        callback.getValue().processTransaction(AUTHED_ACCOUNT_NUM, loaded.get(0));
+
+        // Then
+        assertEquals(2, history.size());
+        assertEquals(5, history.latestTransactionId());
+    }
+
+    @Test
+    @DisplayName("Given a cursor inside the cached history, return the page after it from the cache")
+    void getTransactionsPageFromCache() throws Exception {
+        // Given
+        TransactionHistory history = new TransactionHistory(100);
+        for (long id = 1; id <= 5; id++) {
+            history.addFirst(new Transaction(id, AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+                NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        }
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(history);
+
+        // When
+        final ResponseEntity actualResult = transactionHistoryController
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+                TransactionPage.encodeCursor(5), 2, webRequest);
+
+        // Then
+        assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+        TransactionPage page = (TransactionPage) actualResult.getBody();
+        assertEquals(2, page.getTransactions().size());
+        assertEquals(4, page.getTransactions().get(0).getTransactionId());
+        assertEquals(TransactionPage.encodeCursor(3), page.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("Given a cursor past the cached window, read the page from the ledger")
+    void getTransactionsPageFromDatabase() throws Exception {
+        // Given
+        List<Transaction> older = List.of(new Transaction(7, AUTHED_ACCOUNT_NUM,
+            LOCAL_ROUTING_NUM, NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        // a full history, which dropped the cursor
+        TransactionHistory history = new TransactionHistory(2);
+        for (long id = 9; id <= 10; id++) {
+            history.addFirst(new Transaction(id, AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+                NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, new Date()));
+        }
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(history);
+        when(dbRepo.findForAccountBefore(AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 8L, 2))
+            .thenReturn(older);
+
+        // When
+        final ResponseEntity actualResult = transactionHistoryController
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM,
+                TransactionPage.encodeCursor(8), 2, webRequest);
+
+        // Then
+        assertEquals(HttpStatus.OK, actualResult.getStatusCode());
+        TransactionPage page = (TransactionPage) actualResult.getBody();
+        assertEquals(older, page.getTransactions());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    @DisplayName("Given equal timestamps across the cached window, page without repeating or skipping")
+    void getTransactionsPagesAcrossCacheWithEqualTimestamps() throws Exception {
+        // Given
+        Date timestamp = new Date();
+        List<Transaction> ledger = new ArrayList<>();
+        for (long id = 1; id <= 5; id++) {
+            ledger.add(new Transaction(id, AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM,
+                NON_AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 100, timestamp));
+        }
+        // the order of both findForAccount and findForAccountBefore
+        Comparator<Transaction> newestFirst = Comparator
+            .comparing(Transaction::getTimestamp)
+            .thenComparing(Transaction::getTransactionId)
+            .reversed();
+        ledger.sort(newestFirst);
+        assertTrue(TransactionRepository.class.getMethod("findForAccount",
+                String.class, String.class, Pageable.class)
+            .getAnnotation(Query.class).value()
+            .endsWith("ORDER BY t.timestamp DESC, t.transactionId DESC"));
+        // HISTORY_LIMIT of 3: the cached window ends inside the equal timestamps
+        TransactionHistory history = TransactionHistory.of(3, ledger.subList(0, 3));
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(history);
+        when(dbRepo.findForAccountBefore(eq(AUTHED_ACCOUNT_NUM), eq(LOCAL_ROUTING_NUM),
+                anyLong(), anyInt()))
+            .thenAnswer(invocation -> {
+                long before = invocation.getArgument(2);
+                int limit = invocation.getArgument(3);
+                Transaction cursor = ledger.stream()
+                    .filter(t -> t.getTransactionId() == before)
+                    .findFirst().get();
+                return ledger.stream()
+                    .filter(t -> newestFirst.compare(t, cursor) > 0)
+                    .limit(limit)
+                    .collect(Collectors.toList());
+            });
+
+        // When
+        List<Long> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            TransactionPage page = (TransactionPage) transactionHistoryController
+                .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM, cursor, 2,
+                    webRequest)
+                .getBody();
+            page.getTransactions().forEach(t -> ids.add(t.getTransactionId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        // Then
+        assertEquals(List.of(5L, 4L, 3L, 2L, 1L), ids);
+        verify(dbRepo).findForAccountBefore(AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 4L, 2);
+    }
+
+    @Test
+    @DisplayName("Given a malformed cursor or limit, return 400")
+    void getTransactionsPageFailsWhenParametersAreInvalid() throws Exception {
+        // Given
+        when(claim.asString()).thenReturn(AUTHED_ACCOUNT_NUM);
+        when(cache.get(AUTHED_ACCOUNT_NUM)).thenReturn(new TransactionHistory(100));
+
+        // When
+        final ResponseEntity badCursor = transactionHistoryController
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM, "not a cursor",
+                null, webRequest);
+        final ResponseEntity badLimit = transactionHistoryController
+            .getTransactions(BEARER_TOKEN, AUTHED_ACCOUNT_NUM, null, 0,
+                webRequest);
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, badCursor.getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, badLimit.getStatusCode());
+        verify(dbRepo, never()).findForAccountBefore(
+            AUTHED_ACCOUNT_NUM, LOCAL_ROUTING_NUM, 0L, 0);
+    }
+
 }
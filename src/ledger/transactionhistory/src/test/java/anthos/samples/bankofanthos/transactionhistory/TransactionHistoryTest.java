@@ -0,0 +1,379 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.transactionhistory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class TransactionHistoryTest {
+
+    private static final String ACCOUNT_NUM = "1234567890";
+    private static final String ROUTING_NUM = "123456789";
+
+    @Test
+    @DisplayName("Given more transactions than the capacity, keep the newest, newest first")
+    void keepsNewest() {
+        TransactionHistory history = new TransactionHistory(20);
+        for (int id = 1; id <= 50; id++) {
+            history.addFirst(transaction(id));
+        }
+
+        List<Transaction> transactions = history.toList();
+        assertEquals(20, transactions.size());
+        assertEquals(50, history.latestTransactionId());
+        for (int i = 0; i < 20; i++) {
+            Transaction transaction = transactions.get(i);
+            assertEquals(50 - i, transaction.getTransactionId());
+            assertEquals(50 - i, transaction.getAmount());
+            assertEquals(1000L * (50 - i),
+                transaction.getTimestamp().getTime());
+            assertEquals(ACCOUNT_NUM, transaction.getFromAccountNum());
+            assertEquals(ROUTING_NUM, transaction.getToRoutingNum());
+        }
+    }
+
+    @Test
+    @DisplayName("Given loaded transactions, add new ones in front of them")
+    void loadsNewestFirst() {
+        List<Transaction> loaded = new ArrayList<>();
+        for (int id = 5; id >= 1; id--) {
+            loaded.add(transaction(id));
+        }
+        TransactionHistory history = TransactionHistory.of(4, loaded);
+        history.addFirst(transaction(6));
+
+        List<Transaction> transactions = history.toList();
+        assertEquals(4, history.size());
+        assertEquals(List.of(6L, 5L, 4L, 3L), ids(transactions));
+        assertSame(transactions.get(0).getFromAccountNum(),
+            transactions.get(3).getFromAccountNum());
+        assertEquals(0, new TransactionHistory(4).latestTransactionId());
+    }
+
+    @Test
+    @DisplayName("Given a loaded history, skip transactions it already holds")
+    void skipsLoadedTransactions() {
+        List<Transaction> loaded = new ArrayList<>();
+        for (int id = 5; id >= 1; id--) {
+            loaded.add(transaction(id));
+        }
+        TransactionHistory history = TransactionHistory.of(10, loaded);
+        TransactionHistory.Snapshot snapshot = history.snapshot();
+
+        // replayed by the reader, which was behind the load
+        assertFalse(history.addFirst(transaction(5)));
+        assertFalse(history.addFirst(transaction(3)));
+        assertEquals(ids(snapshot.toList()), ids(history.toList()));
+        assertTrue(history.addFirst(transaction(6)));
+        assertFalse(history.addFirst(transaction(6)));
+
+        assertEquals(List.of(6L, 5L, 4L, 3L, 2L, 1L), ids(history.toList()));
+        assertEquals(6, history.latestTransactionId());
+    }
+
+    @Test
+    @DisplayName("Given a full history, add transactions without allocating")
+    void writesWithoutAllocating() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        int limit = 100;
+        TransactionHistory history = new TransactionHistory(limit);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int id = 1; id <= 20_000; id++) {
+            transactions.add(transaction(id));
+        }
+        for (Transaction transaction : transactions.subList(0, 10_000)) {
+            history.addFirst(transaction);
+        }
+        history.snapshot();
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (Transaction transaction
+            : transactions.subList(10_000, 20_000)) {
+            history.addFirst(transaction);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // 10,000 transactions: a byte each would be 10,000 bytes
+        assertTrue(allocated < 1024, allocated + " bytes allocated");
+        assertEquals(20_000, history.latestTransactionId());
+        assertEquals(limit, history.size());
+    }
+
+    @Test
+    @DisplayName("Given a cursor, page from the history only while it holds the page")
+    void pages() {
+        TransactionHistory full = new TransactionHistory(4);
+        TransactionHistory partial = new TransactionHistory(10);
+        for (int id = 1; id <= 6; id++) {
+            full.addFirst(transaction(id));
+            partial.addFirst(transaction(id));
+        }
+
+        assertEquals(List.of(6L, 5L), ids(full.page(null, 2)));
+        assertEquals(List.of(4L, 3L), ids(full.page(5L, 2)));
+        // older transactions were dropped from the full history
+        assertNull(full.page(4L, 2));
+        assertNull(full.page(2L, 2));
+        // the partial history holds the whole account
+        assertEquals(List.of(2L, 1L), ids(partial.page(3L, 5)));
+        assertEquals(List.of(), partial.page(1L, 5));
+    }
+
+    @Test
+    @DisplayName("Given a snapshot serialized once, reuse its JSON until the next transaction")
+    void memoizesJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectWriter writer = mapper.writerFor(
+            new TypeReference<List<Transaction>>() { });
+        TransactionHistory history = new TransactionHistory(10);
+        history.addFirst(transaction(1));
+
+        TransactionHistory.Snapshot snapshot = history.snapshot();
+        byte[] json = snapshot.toJson(writer);
+        assertArrayEquals(mapper.writeValueAsBytes(snapshot.toList()), json);
+        assertSame(json, history.snapshot().toJson(writer));
+
+        history.addFirst(transaction(2));
+        byte[] updated = history.snapshot().toJson(writer);
+        assertArrayEquals(mapper.writeValueAsBytes(history.toList()), updated);
+        assertSame(json, snapshot.toJson(writer));
+    }
+
+    @Test
+    @DisplayName("Given the writer holds the history lock, read without blocking")
+    void readsWithoutLocking() throws Exception {
+        TransactionHistory history = new TransactionHistory(10);
+        history.addFirst(transaction(1));
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (history) {
+                Future<List<Transaction>> read =
+                    reader.submit(() -> history.snapshot().toList());
+                assertEquals(List.of(1L), ids(read.get(5, TimeUnit.SECONDS)));
+            }
+        } finally {
+            reader.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("Given a high-rate replay, concurrent readers only see whole snapshots")
+    void concurrentReplay() throws Exception {
+        int limit = 100;
+        int replayed = 200_000;
+        int readers = 4;
+        TransactionHistory history = new TransactionHistory(limit);
+        AtomicBoolean replaying = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        List<Future<Integer>> reads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            reads.add(pool.submit(() -> {
+                int count = 0;
+                long latest = 0;
+                do {
+                    TransactionHistory.Snapshot snapshot = history.snapshot();
+                    List<Transaction> transactions = snapshot.toList();
+                    assertEquals(snapshot.size(), transactions.size());
+                    assertTrue(transactions.size() <= limit);
+                    // never older than a snapshot read before
+                    assertTrue(snapshot.latestTransactionId() >= latest);
+                    latest = snapshot.latestTransactionId();
+                    for (int i = 0; i < transactions.size(); i++) {
+                        Transaction transaction = transactions.get(i);
+                        assertEquals(latest - i,
+                            transaction.getTransactionId());
+                        assertEquals((int) (latest - i),
+                            transaction.getAmount());
+                        assertEquals(1000L * (latest - i),
+                            transaction.getTimestamp().getTime());
+                        assertEquals(ACCOUNT_NUM,
+                            transaction.getFromAccountNum());
+                    }
+                    count++;
+                } while (replaying.get());
+                return count;
+            }));
+        }
+        try {
+            for (int id = 1; id <= replayed; id++) {
+                history.addFirst(transaction(id));
+            }
+            replaying.set(false);
+            for (Future<Integer> read : reads) {
+                assertTrue(read.get(30, TimeUnit.SECONDS) > 0);
+            }
+        } finally {
+            replaying.set(false);
+            pool.shutdownNow();
+        }
+        assertEquals(limit, history.size());
+        assertEquals(replayed, history.latestTransactionId());
+    }
+
+    @Test
+    @DisplayName("Given a full history, use severalfold less heap than a list of entities")
+    void footprint() {
+        int limit = 100;
+        LinkedList<Transaction> entities = new LinkedList<>();
+        for (int id = limit; id >= 1; id--) {
+            entities.add(transaction(id));
+        }
+        TransactionHistory history = TransactionHistory.of(limit, entities);
+
+        long entitiesSize = sizeOf(entities);
+        long historySize = sizeOf(history);
+        assertTrue(historySize * 5 < entitiesSize, String.format(
+            "history: %d bytes, entities: %d bytes", historySize,
+            entitiesSize));
+    }
+
+    private static Transaction transaction(long id) {
+        // distinct strings per row, as read from the database
+        return new Transaction(id, new String(ACCOUNT_NUM),
+            new String(ROUTING_NUM), new String("9876543210"),
+            new String(ROUTING_NUM), (int) id, new Date(1000L * id));
+    }
+
+    private static List<Long> ids(List<Transaction> transactions) {
+        List<Long> ids = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            ids.add(transaction.getTransactionId());
+        }
+        return ids;
+    }
+
+    /**
+     * Estimates the retained heap size of an object graph, with the
+     * layout JOL reports for a 64-bit JVM with compressed oops: 12 byte
+     * headers, 4 byte references, 8 byte alignment. JDK classes that
+     * cannot be inspected reflectively use their known sizes. Static
+     * fields, such as the shared StringDictionary, are not counted.
+     */
+    private static long sizeOf(Object root) {
+        return sizeOf(root,
+            Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static long sizeOf(Object object, Set<Object> seen) {
+        if (object == null || !seen.add(object)) {
+            return 0;
+        }
+        Class<?> type = object.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> component = type.getComponentType();
+            long size = align(16 + (long) length * fieldSize(component));
+            if (!component.isPrimitive()) {
+                for (int i = 0; i < length; i++) {
+                    size += sizeOf(Array.get(object, i), seen);
+                }
+            }
+            return size;
+        }
+        if (object instanceof String) {
+            // String, and its LATIN1 byte[]
+            return 24 + align(16 + ((String) object).length());
+        }
+        if (object instanceof Integer) {
+            return 16;
+        }
+        if (object instanceof Date) {
+            return 24;
+        }
+        if (object instanceof StampedLock) {
+            // state, and a wait queue and lock views, none created
+            return 40;
+        }
+        if (object instanceof LinkedList) {
+            // the list, and a node with item, next and prev per element
+            long size = 32;
+            for (Object element : (LinkedList<?>) object) {
+                size += 24 + sizeOf(element, seen);
+            }
+            return size;
+        }
+        long size = 12;
+        List<Object> references = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            size += fieldSize(field.getType());
+            if (!field.getType().isPrimitive()) {
+                field.setAccessible(true);
+                try {
+                    references.add(field.get(object));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        size = align(size);
+        for (Object reference : references) {
+            size += sizeOf(reference, seen);
+        }
+        return size;
+    }
+
+    private static long fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        // int, float, and compressed references
+        return 4;
+    }
+
+    private static long align(long size) {
+        return (size + 7) / 8 * 8;
+    }
+}
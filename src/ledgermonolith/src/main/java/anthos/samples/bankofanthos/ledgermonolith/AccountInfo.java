@@ -16,21 +16,35 @@
 
 package anthos.samples.bankofanthos.ledgermonolith;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import java.util.Deque;
 
 
 /**
  * Defines the account Info object used for the LedgerReaderCache
+ *
+ * An AccountInfo never changes once cached: the ledger reader caches a
+ * new one for each transaction. So its JSON responses are serialized
+ * once, on the first request, and reused until it is replaced.
  */
 public class AccountInfo {
   Long balance;
   Deque<Transaction> transactions;
+  // id of the latest transaction of the account, as of construction
+  long lastTransactionId;
+  // UTF-8 JSON of the balance and of the transactions, once requested
+  private volatile byte[] balanceJson;
+  private volatile byte[] transactionsJson;
 
   // Constructor
   public AccountInfo(Long balance,
     Deque<Transaction> transactions) {
         this.balance = balance;
         this.transactions = transactions;
+        Transaction latest = transactions.peekFirst();
+        this.lastTransactionId =
+          latest == null ? 0 : latest.getTransactionId();
     }
 
 // Getters
@@ -41,4 +55,39 @@ public class AccountInfo {
   public Long getBalance() {
     return balance;
   }
+
+  public long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  /**
+   * @param writer a writer for Long
+   * @return the balance as UTF-8 JSON
+   * @throws JsonProcessingException if the balance cannot be serialized
+   */
+  public byte[] getBalanceJson(ObjectWriter writer)
+    throws JsonProcessingException {
+    byte[] json = balanceJson;
+    if (json == null) {
+      // concurrent first requests may both serialize: same bytes
+      json = writer.writeValueAsBytes(balance);
+      balanceJson = json;
+    }
+    return json;
+  }
+
+  /**
+   * @param writer a writer for a collection of Transaction
+   * @return the transactions as UTF-8 JSON
+   * @throws JsonProcessingException if a transaction cannot be serialized
+   */
+  public byte[] getTransactionsJson(ObjectWriter writer)
+    throws JsonProcessingException {
+    byte[] json = transactionsJson;
+    if (json == null) {
+      json = writer.writeValueAsBytes(transactions);
+      transactionsJson = json;
+    }
+    return json;
+  }
 }
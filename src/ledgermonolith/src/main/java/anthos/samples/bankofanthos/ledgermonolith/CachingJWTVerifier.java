@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.ledgermonolith;
+
+import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CachingJWTVerifier remembers the tokens accepted by a JWTVerifier, so
+ * that the RSA signature of a token reused across requests is checked
+ * once, rather than on every request.
+ *
+ * Tokens are keyed by their SHA-256 digest, and cached with their decoded
+ * claims until they expire, or for at most the TTL, whichever comes
+ * first: a token without an expiry, or one signed by a key the delegate
+ * no longer trusts, is verified again once the TTL is over. Rejected
+ * tokens are never cached.
+ */
+public final class CachingJWTVerifier implements JWTVerifier {
+
+    private final JWTVerifier delegate;
+    private final Cache<HashCode, Verified> cache;
+    private final long ttlMillis;
+    private final Clock clock;
+
+    /**
+     * A verified token, and when it expires.
+     */
+    private static final class Verified {
+        private final DecodedJWT jwt;
+        private final long expiresAtMillis;
+
+        Verified(DecodedJWT jwt, long expiresAtMillis) {
+            this.jwt = jwt;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * @param delegate the verifier checking tokens missing from the cache
+     * @param maximumSize max number of cached tokens
+     * @param ttlMillis max number of milliseconds a token stays cached
+     */
+    public CachingJWTVerifier(JWTVerifier delegate, long maximumSize,
+        long ttlMillis) {
+        this(delegate, maximumSize, ttlMillis, Clock.systemUTC());
+    }
+
+    /**
+     * @param delegate the verifier checking tokens missing from the cache
+     * @param maximumSize max number of cached tokens
+     * @param ttlMillis max number of milliseconds a token stays cached
+     * @param clock the clock expiring cached tokens
+     */
+    CachingJWTVerifier(JWTVerifier delegate, long maximumSize,
+        long ttlMillis, Clock clock) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.cache = CacheBuilder.newBuilder()
+            .recordStats()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    @Override
+    public DecodedJWT verify(String token) throws JWTVerificationException {
+        if (token == null) {
+            return delegate.verify(token);
+        }
+        HashCode key = Hashing.sha256()
+            .hashString(token, StandardCharsets.UTF_8);
+        Verified verified = cache.getIfPresent(key);
+        if (verified != null) {
+            if (clock.millis() < verified.expiresAtMillis) {
+                return verified.jwt;
+            }
+            // expired: let the delegate reject it
+            cache.invalidate(key);
+        }
+        DecodedJWT jwt = delegate.verify(token);
+        long expiresAtMillis = clock.millis() + ttlMillis;
+        Date expiresAt = jwt.getExpiresAt();
+        if (expiresAt != null) {
+            expiresAtMillis = Math.min(expiresAtMillis, expiresAt.getTime());
+        }
+        cache.put(key, new Verified(jwt, expiresAtMillis));
+        return jwt;
+    }
+
+    @Override
+    public DecodedJWT verify(DecodedJWT jwt) throws JWTVerificationException {
+        return verify(jwt.getToken());
+    }
+
+    /**
+     * @return the cache of verified tokens, to monitor
+     */
+    Cache<?, ?> getCache() {
+        return cache;
+    }
+}
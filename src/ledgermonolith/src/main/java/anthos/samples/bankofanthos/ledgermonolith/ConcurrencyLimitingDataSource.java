@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020, Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package anthos.samples.bankofanthos.ledgermonolith;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * ConcurrencyLimitingDataSource caps the number of connections borrowed
+ * from the pool at once with a fair semaphore.
+ *
+ * On virtual threads every request has its own thread, so thousands of
+ * requests can wait for a pooled connection at the same time. Waiting
+ * on the semaphore instead parks them in arrival order, and keeps the
+ * pool from being contended by more threads than it has connections.
+ * A permit is released when its connection is closed.
+ */
+final class ConcurrencyLimitingDataSource extends DelegatingDataSource {
+
+    private final Semaphore permits;
+    private final long timeoutMs;
+
+    /**
+     * @param target the pooled data source
+     * @param maxConcurrency max number of connections borrowed at once
+     * @param timeoutMs max time to wait for a permit
+     */
+    ConcurrencyLimitingDataSource(DataSource target, int maxConcurrency,
+        long timeoutMs) {
+        super(target);
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Wraps the DataSource bean when maxConcurrency is positive.
+     *
+     * @param maxConcurrency max number of connections borrowed at once,
+     *        or 0 to leave the DataSource as is
+     * @param timeoutMs max time to wait for a permit
+     * @return the bean post processor
+     */
+    static BeanPostProcessor postProcessor(int maxConcurrency,
+        long timeoutMs) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean,
+                String beanName) {
+                if (maxConcurrency > 0 && bean instanceof DataSource
+                    && !(bean instanceof ConcurrencyLimitingDataSource)) {
+                    return new ConcurrencyLimitingDataSource(
+                        (DataSource) bean, maxConcurrency, timeoutMs);
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        acquire();
+        try {
+            return release(super.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+        throws SQLException {
+        acquire();
+        try {
+            return release(super.getConnection(username, password));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of connections that can still be borrowed
+     */
+    int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    private void acquire() throws SQLException {
+        try {
+            if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException(String.format(
+                    "No database connection available after %dms",
+                    timeoutMs));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException(
+                "Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * Returns a connection that releases its permit once closed.
+     */
+    private Connection release(Connection connection) {
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    if ("close".equals(method.getName())
+                        && closed.compareAndSet(false, true)) {
+                        permits.release();
+                    }
+                }
+            });
+    }
+}
@@ -20,19 +20,26 @@ import static anthos.samples.bankofanthos.ledgermonolith.ExceptionMessages.EXCEP
 import static anthos.samples.bankofanthos.ledgermonolith.ExceptionMessages.EXCEPTION_MESSAGE_INSUFFICIENT_BALANCE;
 import static anthos.samples.bankofanthos.ledgermonolith.ExceptionMessages.EXCEPTION_MESSAGE_WHEN_AUTHORIZATION_HEADER_NULL;
 
-import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.JWTVerifier;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -44,10 +51,12 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.concurrent.ExecutionException;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.context.request.WebRequest;
 
 /**
  * Controller for the combined LedgerMonolith service
@@ -74,6 +83,9 @@ public final class LedgerMonolithController {
     // Combined balancereader / txnhistory cache
     private LoadingCache<String, AccountInfo> ledgerReaderCache;
     private Cache<String, Long> ledgerWriterCache;
+    private MeterRegistry meterRegistry;
+    private ObjectWriter balanceWriter;
+    private ObjectWriter transactionsWriter;
 
     private TransactionRepository transactionRepository;
     private TransactionValidator transactionValidator;
@@ -105,6 +117,8 @@ public final class LedgerMonolithController {
             TransactionRepository transactionRepository,
             TransactionValidator transactionValidator,
             LedgerReader reader,
+            MeterRegistry meterRegistry,
+            ObjectMapper objectMapper,
             @Value("${LOCAL_ROUTING_NUM}") String localRoutingNum,
             @Value("${VERSION}") String version) {
         this.verifier = verifier;
@@ -112,6 +126,11 @@ public final class LedgerMonolithController {
         this.transactionValidator = transactionValidator;
         this.localRoutingNum = localRoutingNum;
         this.version = version;
+        this.meterRegistry = meterRegistry;
+        // the responses Spring would serialize, in cacheable bytes
+        this.balanceWriter = objectMapper.writerFor(Long.class);
+        this.transactionsWriter = objectMapper.writerFor(
+            new TypeReference<Collection<Transaction>>() { });
 
         // balance reader
         this.ledgerReaderCache = ledgerReaderCache;
@@ -124,29 +143,42 @@ public final class LedgerMonolithController {
 
         // Ledger Cache processing
         this.ledgerReader = reader;
-        this.ledgerReader.startWithCallback(transaction -> {
-            final String fromId = transaction.getFromAccountNum();
-            final String fromRouting = transaction.getFromRoutingNum();
-            final String toId = transaction.getToAccountNum();
-            final String toRouting = transaction.getToRoutingNum();
-            final Integer amount = transaction.getAmount();
-
-            if (fromRouting.equals(localRoutingNum)
-                && this.ledgerReaderCache.asMap().containsKey(fromId)) {
-                AccountInfo info = ledgerReaderCache.asMap().get(fromId);
-                Long prevBalance = info.getBalance();
-                Long newBalance = prevBalance - amount;
-                processTransaction(fromId, newBalance, transaction);
+        this.ledgerReader.startWithCallback(new LedgerReaderCallback() {
+            @Override
+            public void processTransaction(String accountId,
+                Transaction transaction) {
+                final Integer amount = transaction.getAmount();
+                long delta = 0;
+                if (accountId.equals(transaction.getToAccountNum())
+                    && localRoutingNum.equals(
+                        transaction.getToRoutingNum())) {
+                    delta += amount;
+                }
+                if (accountId.equals(transaction.getFromAccountNum())
+                    && localRoutingNum.equals(
+                        transaction.getFromRoutingNum())) {
+                    delta -= amount;
+                }
+                if (ledgerReaderCache.asMap().containsKey(accountId)) {
+                    AccountInfo info = ledgerReaderCache.asMap().get(accountId);
+                    Long newBalance = info.getBalance() + delta;
+                    LedgerMonolithController.this.processTransaction(accountId,
+                        newBalance, transaction);
+                }
             }
 
-            if (toRouting.equals(localRoutingNum)
-                && this.ledgerReaderCache.asMap().containsKey(toId)) {
-                AccountInfo info = ledgerReaderCache.asMap().get(toId);
-                Long prevBalance = info.getBalance();
-                Long newBalance = prevBalance + amount;
-                processTransaction(toId, newBalance, transaction);
+            @Override
+            public void processLateTransaction(String accountId,
+                Transaction transaction) {
+                // the cached balance and history may claim the transaction
+                // without reflecting it: reload them on the next read
+                ledgerReaderCache.invalidate(accountId);
             }
-
+        }, latestTransactionId -> {
+            // the ledger went backwards: reload accounts from the ledger
+            LOGGER.info("Invalidating cache after ledger resync");
+            this.ledgerReaderCache.invalidateAll();
+            return latestTransactionId;
         });
         LOGGER.info("✅ Started LedgerMonolith.");
     }
@@ -163,7 +195,10 @@ public final class LedgerMonolithController {
         AccountInfo accountInfo = this.ledgerReaderCache.asMap()
                                 .get(accountId);
 
-        Deque<Transaction> tList = accountInfo.getTransactions();
+        // copy, so that the cached AccountInfo never changes while it is
+        // being serialized
+        Deque<Transaction> tList =
+            new ArrayDeque<>(accountInfo.getTransactions());
 
         tList.addFirst(transaction);
         // Drop old transactions
@@ -179,6 +214,26 @@ public final class LedgerMonolithController {
     }
 
 
+    /**
+     * Answers a conditional request, keyed on the latest transaction of
+     * the account, and counts whether it was answered with a 304.
+     *
+     * @return true if the response is a 304, with the ETag already set
+     */
+    private boolean checkNotModified(WebRequest request, AccountInfo info,
+        String endpoint) {
+        boolean notModified = request.checkNotModified(
+            Long.toString(info.getLastTransactionId()));
+        Counter.builder("ledgermonolith.conditional.requests")
+            .description("Balance and history requests, by whether they "
+                + "changed since the If-None-Match ETag")
+            .tag("endpoint", endpoint)
+            .tag("result", notModified ? "not_modified" : "modified")
+            .register(meterRegistry)
+            .increment();
+        return notModified;
+    }
+
     /**
      * Version endpoint.
      *
@@ -313,15 +368,18 @@ public final class LedgerMonolithController {
      * Return the balance for the specified account.
      *
      * The currently authenticated user must be allowed to access the account.
+     * The ETag is the id of the latest transaction of the account: a
+     * request with a matching If-None-Match gets a 304 instead.
      *
      * @param bearerToken  HTTP request 'Authorization' header
      * @param accountId    the account to get the balance for
+     * @param request      the request, for conditional headers
      * @return             the balance of the account
      */
     @GetMapping("/balances/{accountId}")
     public ResponseEntity<?> getBalance(
         @RequestHeader("Authorization") String bearerToken,
-        @PathVariable String accountId) {
+        @PathVariable String accountId, WebRequest request) {
 
         if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
             bearerToken = bearerToken.split("Bearer ")[1];
@@ -337,9 +395,12 @@ public final class LedgerMonolithController {
             }
             // Load from cache
             AccountInfo info = ledgerReaderCache.get(accountId);
-            Long balance = info.getBalance();
-
-            return new ResponseEntity<Long>(balance, HttpStatus.OK);
+            if (checkNotModified(request, info, "balances")) {
+                return null;
+            }
+            return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(info.getBalanceJson(balanceWriter));
         } catch (JWTVerificationException e) {
             LOGGER.error("Failed to retrieve account balance: not authorized");
             return new ResponseEntity<>("not authorized",
@@ -348,6 +409,10 @@ public final class LedgerMonolithController {
             LOGGER.error("Cache error");
             return new ResponseEntity<>("Account cache error",
                 HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Failed to serialize balance", e);
+            return new ResponseEntity<>("serialization error",
+                HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
@@ -358,14 +423,17 @@ public final class LedgerMonolithController {
      * Return a list of transactions for the specified account.
      *
      * The currently authenticated user must be allowed to access the account.
+     * The ETag is the id of the latest transaction of the account: a
+     * request with a matching If-None-Match gets a 304 instead.
      * @param bearerToken  HTTP request 'Authorization' header
      * @param accountId    the account to get transactions for.
+     * @param request      the request, for conditional headers
      * @return             a list of transactions for this account.
      */
     @GetMapping("/transactions/{accountId}")
     public ResponseEntity<?> getTransactions(
             @RequestHeader("Authorization") String bearerToken,
-            @PathVariable String accountId) {
+            @PathVariable String accountId, WebRequest request) {
 
         if (bearerToken != null && bearerToken.startsWith("Bearer ")) {
             bearerToken = bearerToken.split("Bearer ")[1];
@@ -382,8 +450,9 @@ public final class LedgerMonolithController {
 
             // Load from cache
             AccountInfo info = ledgerReaderCache.get(accountId);
-            Deque<Transaction> historyList = info.getTransactions();
-
+            if (checkNotModified(request, info, "transactions")) {
+                return null;
+            }
             // Set artificial extra latency.
             LOGGER.debug("Setting artificial latency");
             if (extraLatencyMillis != null) {
@@ -394,8 +463,9 @@ public final class LedgerMonolithController {
                 }
             }
 
-            return new ResponseEntity<Collection<Transaction>>(
-                    historyList, HttpStatus.OK);
+            return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(info.getTransactionsJson(transactionsWriter));
         } catch (JWTVerificationException e) {
             LOGGER.error("Failed to retrieve account transactions: "
                 + "not authorized");
@@ -405,6 +475,10 @@ public final class LedgerMonolithController {
             LOGGER.error("Cache error");
             return new ResponseEntity<>("cache error",
                                               HttpStatus.INTERNAL_SERVER_ERROR);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Failed to serialize transactions", e);
+            return new ResponseEntity<>("serialization error",
+                                              HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 }
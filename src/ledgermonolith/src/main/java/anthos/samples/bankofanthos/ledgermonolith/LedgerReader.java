@@ -17,27 +17,94 @@
 package anthos.samples.bankofanthos.ledgermonolith;
 
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.ResourceAccessException;
 
 /**
  * Defines an interface for reacting to new transactions
  *
- * @param accountId    the account associated with the transaction
- * @param amount       the amount of change in balance for the account
+ * Called once for each account of this bank (LOCAL_ROUTING_NUM) involved
+ * in the transaction. Calls for the same account are made in ledger order,
+ * but calls for different accounts may be made concurrently.
+ *
+ * @param accountId    the local account affected by the transaction
  * @param transaction  the full transaction object
  */
 interface LedgerReaderCallback {
-    void processTransaction(Transaction transaction);
+    void processTransaction(String accountId, Transaction transaction);
+
+    /**
+     * Called instead of processTransaction, in replication mode, for a
+     * transaction whose id is not above every id already streamed or in
+     * the ledger when the reader started: it committed after a later id,
+     * or it is replayed by the slot after a restart. State loaded from the
+     * ledger may claim such a transaction by id without reflecting it, so
+     * it should be reloaded rather than patched.
+     *
+     * Defaults to processTransaction.
+     */
+    default void processLateTransaction(String accountId,
+        Transaction transaction) {
+        processTransaction(accountId, transaction);
+    }
+}
+
+/**
+ * Defines an interface for discarding state built from the ledger
+ *
+ * Called when the ledger no longer contains transactions that were
+ * already applied, e.g. after failing over to a lagging replica. No
+ * LedgerReaderCallback is in flight while it runs, and the reader resumes
+ * after the returned transaction id once it returns.
+ *
+ * @param latestTransactionId  the latest transaction id in the ledger,
+ *                             or -1 if unknown
+ * @return the id of the latest transaction reflected in the state kept,
+ *         usually latestTransactionId
+ */
+interface LedgerResyncCallback {
+    long resync(long latestTransactionId);
 }
 
 /**
  * LedgerReader listens for and reacts to incoming transactions
+ *
+ * In "poll" mode (the default) the background thread checks the ledger
+ * every POLL_MS. In "notify" mode it blocks on a Postgres LISTEN
+ * connection and only reads the ledger when a new transaction is
+ * notified, polling every NOTIFY_FALLBACK_MS to catch missed
+ * notifications. In "replication" mode it never queries the ledger table,
+ * and instead tails inserts from a logical replication slot.
+ *
+ * Transactions are applied on LEDGER_READER_LANES worker lanes (see
+ * LedgerLanes). The latest transaction id only advances once every lane
+ * has applied the transactions before it.
+ *
+ * With VIRTUAL_THREADS on Java 21+, the background thread and the lanes
+ * are virtual threads, so blocking on the ledger holds no platform thread.
  */
 @Component
 public final class LedgerReader {
@@ -45,18 +112,151 @@ public final class LedgerReader {
     private static final Logger LOGGER =
         LogManager.getLogger(LedgerReader.class);
     private static final long STARTING_TRANSACTION_ID = -1;
+    static final String POLL_MODE = "poll";
+    static final String NOTIFY_MODE = "notify";
+    static final String REPLICATION_MODE = "replication";
 
     @Autowired
     private TransactionRepository dbRepo;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @Value("${POLL_MS:100}")
     private Integer pollMs;
+    @Value("${LEDGER_READER_BATCH_SIZE:1000}")
+    private Integer batchSize;
+    @Value("${LEDGER_READER_MODE:poll}")
+    private String mode;
+    @Value("${NOTIFY_FALLBACK_MS:5000}")
+    private Integer notifyFallbackMs;
+    @Value("${LEDGER_REPLICATION_SLOT:}")
+    private String replicationSlot;
+    @Value("${LEDGER_READER_LANES:1}")
+    private Integer laneCount;
+    @Value("${LEDGER_READER_LANE_CAPACITY:1000}")
+    private Integer laneCapacity;
     @Value("${LOCAL_ROUTING_NUM}")
     private String localRoutingNum;
+    @Value("${SPRING_DATASOURCE_URL}")
+    private String datasourceUrl;
+    @Value("${SPRING_DATASOURCE_USERNAME}")
+    private String datasourceUsername;
+    @Value("${SPRING_DATASOURCE_PASSWORD}")
+    private String datasourcePassword;
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
 
     private Thread backgroundThread;
-    private LedgerReaderCallback callback;
-    private long latestTransactionId;
+    private LedgerLanes lanes;
+    private LedgerResyncCallback resyncCallback;
+    // held while a batch is applied and the watermark advanced
+    private final ReentrantLock watermarkLock = new ReentrantLock();
+    private volatile long latestTransactionId;
+    // latest transaction id known to exist in the ledger
+    private volatile long remoteTransactionId;
+    // creation time of the latest transaction applied, in epoch millis
+    private volatile long latestTimestamp;
+    private LedgerNotificationListener listener;
+    private LedgerReplicationStream replicationStream;
+    // ids of the batch being applied that are late, in replication mode
+    private volatile Set<Long> lateTransactionIds = Collections.emptySet();
+
+    private Timer latestIdQueries;
+    private Timer findLatestQueries;
+    private Counter notifications;
+    private Counter outOfSync;
+    private Counter lateTransactions;
+    private Timer resyncs;
+    private Timer lag;
+    private Timer applyTime;
+    private DistributionSummary batchSizes;
+
+    /**
+     * Registers the ledger reader meters, tagged with the reader mode
+     * so that poll and notify deployments can be compared.
+     */
+    @PostConstruct
+    void initializeMetrics() {
+        if (!POLL_MODE.equals(mode) && !NOTIFY_MODE.equals(mode)
+            && !REPLICATION_MODE.equals(mode)) {
+            throw new IllegalStateException(String.format(
+                "Unknown LEDGER_READER_MODE: %s", mode));
+        }
+        if (REPLICATION_MODE.equals(mode) && replicationSlot.isEmpty()) {
+            throw new IllegalStateException(
+                "LEDGER_REPLICATION_SLOT is required in replication mode");
+        }
+        if (pollMs < 1 || batchSize < 1) {
+            // PageRequest.of(0, 0) would throw on the reader thread
+            throw new IllegalStateException(
+                "POLL_MS and LEDGER_READER_BATCH_SIZE must be positive");
+        }
+        if (notifyFallbackMs < 1) {
+            // LISTEN with no timeout would block forever and never poll
+            throw new IllegalStateException(
+                "NOTIFY_FALLBACK_MS must be positive");
+        }
+        if (laneCount < 1 || laneCapacity < 1) {
+            throw new IllegalStateException(
+                "LEDGER_READER_LANES and LEDGER_READER_LANE_CAPACITY "
+                + "must be positive");
+        }
+        latestIdQueries = Timer.builder("ledgerreader.queries")
+            .description("Queries issued against the ledger database")
+            .tags("mode", mode, "query", "latest_id")
+            .register(meterRegistry);
+        findLatestQueries = Timer.builder("ledgerreader.queries")
+            .description("Queries issued against the ledger database")
+            .tags("mode", mode, "query", "find_latest")
+            .register(meterRegistry);
+        notifications = Counter.builder("ledgerreader.notifications")
+            .description("Transaction notifications received")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        outOfSync = Counter.builder("ledgerreader.out_of_sync")
+            .description("Times the ledger fell behind the reader")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        lateTransactions = Counter.builder("ledgerreader.late")
+            .description("Transactions streamed at or below an id already "
+                + "seen, applied as late")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        resyncs = Timer.builder("ledgerreader.resync")
+            .description("Time to discard state after the ledger went "
+                + "backwards")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        lag = Timer.builder("ledgerreader.lag")
+            .description("Time from transaction creation until it was read")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        applyTime = Timer.builder("ledgerreader.apply")
+            .description("Time to apply a batch of transactions")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        batchSizes = DistributionSummary.builder("ledgerreader.batch.size")
+            .description("Transactions read in one batch")
+            .tag("mode", mode)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        Gauge.builder("ledgerreader.lag.transactions", this,
+            LedgerReader::getLagTransactions)
+            .description("Transactions in the ledger not yet applied")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        Gauge.builder("ledgerreader.lag.seconds", this,
+            LedgerReader::getLagSeconds)
+            .description("Age of the latest applied transaction, "
+                + "while transactions are pending")
+            .tag("mode", mode)
+            .register(meterRegistry);
+        Gauge.builder("ledgerreader.lanes.queued", this,
+            reader -> reader.lanes == null ? 0 : reader.lanes.queued())
+            .description("Account updates waiting on the reader lanes")
+            .tag("mode", mode)
+            .register(meterRegistry);
+    }
 
     /**
      * LedgerReader setup
@@ -68,84 +268,446 @@ public final class LedgerReader {
      */
     public void startWithCallback(LedgerReaderCallback callback)
         throws IllegalStateException {
+        startWithCallback(callback, null);
+    }
+
+    /**
+     * LedgerReader setup, resyncing instead of stopping if the ledger
+     * goes backwards.
+     *
+     * @param callback to process transactions
+     * @param resyncCallback to discard state built from transactions that
+     *        are no longer in the ledger, or null to stop the reader
+     * @throws IllegalStateException if callback is null
+     */
+    public void startWithCallback(LedgerReaderCallback callback,
+        LedgerResyncCallback resyncCallback) throws IllegalStateException {
+        start(callback, resyncCallback, null);
+    }
+
+    /**
+     * LedgerReader setup, resuming after a previously applied watermark
+     * (e.g. from a checkpoint) instead of the latest ledger transaction.
+     * Not supported in replication mode, where the slot keeps the position.
+     *
+     * @param callback to process transactions
+     * @param resyncCallback to discard state built from transactions that
+     *        are no longer in the ledger, or null to stop the reader
+     * @param watermark id of the latest transaction already applied
+     * @throws IllegalStateException if callback is null, or in
+     *         replication mode
+     */
+    public void startWithCallback(LedgerReaderCallback callback,
+        LedgerResyncCallback resyncCallback, long watermark)
+        throws IllegalStateException {
+        if (REPLICATION_MODE.equals(mode)) {
+            throw new IllegalStateException(
+                "Cannot resume from a watermark in replication mode");
+        }
+        start(callback, resyncCallback, watermark);
+    }
+
+    private void start(LedgerReaderCallback callback,
+        LedgerResyncCallback resyncCallback, Long watermark) {
         if (callback == null) {
+            LOGGER.error("Callback is null");
             throw new IllegalStateException("callback is null");
         }
-        this.callback = callback;
+        ThreadFactory threadFactory =
+            VirtualThreads.factory(virtualThreads, "ledger-reader-");
+        this.lanes = new LedgerLanes(laneCount, laneCapacity,
+            REPLICATION_MODE.equals(mode) ? lateAware(callback) : callback,
+            localRoutingNum, threadFactory);
+        this.resyncCallback = resyncCallback;
         this.latestTransactionId = STARTING_TRANSACTION_ID;
+        this.remoteTransactionId = STARTING_TRANSACTION_ID;
+        if (REPLICATION_MODE.equals(mode)) {
+            this.replicationStream = new LedgerReplicationStream(
+                datasourceUrl, datasourceUsername, datasourcePassword,
+                replicationSlot);
+            this.backgroundThread =
+                newThread(threadFactory, this::tailReplicationStream);
+            LOGGER.info("Starting background thread in replication mode.");
+            this.backgroundThread.start();
+            return;
+        }
+        if (NOTIFY_MODE.equals(mode)) {
+            this.listener = new LedgerNotificationListener(datasourceUrl,
+                datasourceUsername, datasourcePassword);
+        }
+        if (watermark != null) {
+            // catch up from the watermark in the background
+            latestTransactionId = watermark;
+            remoteTransactionId = watermark;
+            LOGGER.info(String.format("Resuming after transaction id: %d",
+                watermark));
+        } else {
+            startFromLatest();
+        }
+        this.backgroundThread = newThread(threadFactory, this::pollLedger);
+        LOGGER.info(String.format("Starting background thread in %s mode.",
+            mode));
+        this.backgroundThread.start();
+    }
+
+    /**
+     * Routes the transactions of the current batch marked as late to
+     * processLateTransaction.
+     */
+    private LedgerReaderCallback lateAware(LedgerReaderCallback callback) {
+        return (accountId, transaction) -> {
+            Set<Long> late = lateTransactionIds;
+            if (!late.isEmpty()
+                && late.contains(transaction.getTransactionId())) {
+                callback.processLateTransaction(accountId, transaction);
+            } else {
+                callback.processTransaction(accountId, transaction);
+            }
+        };
+    }
+
+    private static Thread newThread(ThreadFactory threadFactory,
+        Runnable task) {
+        return threadFactory != null
+            ? threadFactory.newThread(task) : new Thread(task);
+    }
+
+    private void startFromLatest() {
         // get the latest transaction id in ledger
         try {
             latestTransactionId = getLatestTransactionId();
+            remoteTransactionId = latestTransactionId;
             LOGGER.debug(String.format("Transaction starting id: %d",
                 latestTransactionId));
         } catch (ResourceAccessException
             | DataAccessResourceFailureException e) {
             LOGGER.warn("Could not contact ledger database at init");
         }
-        this.backgroundThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                boolean alive = true;
-                while (alive) {
-                    // sleep between polls
-                    try {
-                        Thread.sleep(pollMs);
-                    } catch (InterruptedException e) {
-                        LOGGER.warn("LedgerReader sleep interrupted");
-                    }
-                    // check for new updates in ledger
-                    Long remoteLatest = STARTING_TRANSACTION_ID;
-                    try {
-                        remoteLatest = getLatestTransactionId();
-                    } catch (ResourceAccessException
-                        | DataAccessResourceFailureException e) {
-                        remoteLatest = latestTransactionId;
-                        LOGGER.warn("Could not reach ledger database");
-                    }
-                    // if there are new transactions, poll the database
-                    if (remoteLatest > latestTransactionId) {
-                        latestTransactionId =
-                                pollTransactions(latestTransactionId);
-                    } else if (remoteLatest < latestTransactionId) {
-                        // remote database out of sync
-                        // suspend processing transactions to reset service
-                        alive = false;
-                        LOGGER.error("Remote transaction id out of sync");
+    }
+
+    /**
+     * Background loop for poll and notify modes.
+     * Exits if the remote ledger falls behind the latest transaction read.
+     */
+    private void pollLedger() {
+        boolean alive = true;
+        while (alive) {
+            // wait for a notification, or sleep between polls
+            long notifiedLatest = awaitChanges();
+            // check for new updates in ledger
+            Long remoteLatest = STARTING_TRANSACTION_ID;
+            try {
+                if (notifiedLatest
+                    != LedgerNotificationListener.NO_NOTIFICATION) {
+                    remoteLatest = notifiedLatest;
+                } else {
+                    remoteLatest = getLatestTransactionId();
+                }
+            } catch (ResourceAccessException
+                | DataAccessResourceFailureException e) {
+                remoteLatest = latestTransactionId;
+                LOGGER.warn("Could not reach ledger database");
+            }
+            remoteTransactionId = Math.max(remoteTransactionId,
+                remoteLatest);
+            // if there are new transactions, poll the database
+            if (remoteLatest > latestTransactionId) {
+                pollTransactions();
+            } else if (remoteLatest < latestTransactionId
+                && notifiedLatest
+                    == LedgerNotificationListener.NO_NOTIFICATION) {
+                // remote database out of sync
+                outOfSync.increment();
+                if (resyncCallback != null) {
+                    resync(remoteLatest);
+                } else {
+                    // suspend processing transactions to reset service
+                    alive = false;
+                    LOGGER.error("Remote transaction id out of sync");
+                }
+            }
+        }
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    /**
+     * Background loop for replication mode.
+     * Applies each batch of committed transactions, then acknowledges it
+     * to the replication slot. Reconnects after POLL_MS on failure, and
+     * resyncs if the slot was lost meanwhile.
+     *
+     * Commit order is not transaction id order, and the slot replays
+     * everything after its last acknowledged commit on restart. So once
+     * the slot is open, the watermark is raised to the latest transaction
+     * in the ledger, and a transaction at or below the watermark is
+     * applied as late (see LedgerReaderCallback.processLateTransaction).
+     */
+    private void tailReplicationStream() {
+        // whether the watermark covers the ledger as of the current slot
+        boolean started = false;
+        while (true) {
+            try {
+                List<Transaction> batch = replicationStream.read(batchSize);
+                if (replicationStream.takeSlotRecreated()) {
+                    // transactions committed without a slot were missed
+                    outOfSync.increment();
+                    if (resyncCallback == null) {
+                        LOGGER.error("Replication slot was lost");
+                        replicationStream.close();
+                        return;
                     }
+                    resync(STARTING_TRANSACTION_ID);
+                    started = false;
+                }
+                if (!started) {
+                    // state loaded from the ledger may already reflect
+                    // anything the slot streams up to this id
+                    latestTransactionId = Math.max(latestTransactionId,
+                        getLatestTransactionId());
+                    started = true;
+                }
+                lateTransactionIds = findLate(batch);
+                apply(batch);
+                // the slot delivers everything committed, so the reader
+                // is never behind a known transaction id
+                remoteTransactionId = latestTransactionId;
+                replicationStream.acknowledge();
+            } catch (SQLException | ResourceAccessException
+                | DataAccessResourceFailureException e) {
+                LOGGER.warn(String.format("Ledger replication stream failed, "
+                    + "reconnecting: %s", e.getMessage()));
+                // stream the unacknowledged batch again
+                replicationStream.close();
+                try {
+                    Thread.sleep(pollMs);
+                } catch (InterruptedException ie) {
+                    LOGGER.warn("LedgerReader sleep interrupted");
                 }
             }
-        });
-        LOGGER.info("Starting background thread.");
-        this.backgroundThread.start();
+        }
+    }
+
+    /**
+     * @return the ids in a batch, in commit order, that are not above the
+     *         watermark or an earlier id of the batch
+     */
+    private Set<Long> findLate(List<Transaction> batch) {
+        Set<Long> late = null;
+        long highest = latestTransactionId;
+        for (Transaction transaction : batch) {
+            long transactionId = transaction.getTransactionId();
+            if (transactionId <= highest) {
+                if (late == null) {
+                    late = new HashSet<>();
+                }
+                late.add(transactionId);
+                lateTransactions.increment();
+            } else {
+                highest = transactionId;
+            }
+        }
+        return late == null ? Collections.<Long>emptySet() : late;
+    }
+
+    /**
+     * Discards everything applied past the remote ledger, and resumes
+     * reading after the transaction id returned by the resync callback.
+     * Runs on the reader thread between batches, so the lanes are idle.
+     *
+     * @param remoteLatest the latest transaction id in the ledger
+     */
+    private void resync(long remoteLatest) {
+        LOGGER.warn(String.format("Remote transaction id out of sync "
+            + "(%d < %d), resyncing", remoteLatest, latestTransactionId));
+        watermarkLock.lock();
+        try {
+            long resumeAfter = resyncs.record(
+                () -> resyncCallback.resync(remoteLatest));
+            latestTransactionId = resumeAfter;
+            remoteTransactionId = Math.max(remoteLatest, resumeAfter);
+            latestTimestamp = 0;
+        } finally {
+            watermarkLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the ledger may have changed.
+     *
+     * In notify mode, blocks on the listener connection for up to
+     * NOTIFY_FALLBACK_MS. If the listener is unavailable, or in poll mode,
+     * sleeps for POLL_MS instead.
+     *
+     * @return the latest notified transaction id, or NO_NOTIFICATION if
+     *         the ledger should be polled
+     */
+    private long awaitChanges() {
+        if (listener != null) {
+            try {
+                long notifiedLatest = listener.await(notifyFallbackMs);
+                if (notifiedLatest
+                    != LedgerNotificationListener.NO_NOTIFICATION) {
+                    notifications.increment();
+                }
+                return notifiedLatest;
+            } catch (SQLException e) {
+                LOGGER.warn(String.format("Ledger notification listener "
+                    + "failed, falling back to polling: %s", e.getMessage()));
+            }
+        }
+        // sleep between polls
+        try {
+            Thread.sleep(pollMs);
+        } catch (InterruptedException e) {
+            LOGGER.warn("LedgerReader sleep interrupted");
+        }
+        return LedgerNotificationListener.NO_NOTIFICATION;
     }
 
     /**
      * Poll for new transactions
      * Execute callback for each one
      *
-     * @param startingId the transaction to start reading after.
-     *                            -1 = start reading at beginning of the ledger
-     * @return long id of latest transaction processed
+     * Transactions after the latest transaction id are read in pages of
+     * at most LEDGER_READER_BATCH_SIZE, and the latest transaction id
+     * advances after each page. Each page is released before the next one
+     * is read, so catching up on a large backlog needs no more memory than
+     * a single page.
      */
-    private long pollTransactions(long startingId) {
-        long latestId = startingId;
-        Iterable<Transaction> transactionList = dbRepo.findLatest(startingId);
+    private void pollTransactions() {
         LOGGER.debug("Polling Transactions");
-        for (Transaction transaction : transactionList) {
-            callback.processTransaction(transaction);
-            latestId = transaction.getTransactionId();
-        }
+        Pageable page = PageRequest.of(0, batchSize);
+        List<Transaction> batch;
+        do {
+            try {
+                batch = findLatestQueries.record(() ->
+                    dbRepo.findLatest(latestTransactionId, page));
+            } catch (ResourceAccessException
+                | DataAccessResourceFailureException e) {
+                LOGGER.warn("Could not reach ledger database");
+                return;
+            }
+            apply(batch);
+            remoteTransactionId = Math.max(remoteTransactionId,
+                latestTransactionId);
+        } while (batch.size() == batchSize);
         LOGGER.debug("New transaction(s) found - polled DB: "
-        + "latest txnID is now: " + latestId);
-        return latestId;
+        + "latest txnID is now: " + latestTransactionId);
+    }
+
+    /**
+     * Applies a batch on the reader lanes, then advances the watermark
+     * past it and records its lag once every lane has applied it.
+     *
+     * @throws IllegalStateException if a lane failed, stopping the reader
+     */
+    private void apply(List<Transaction> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchSizes.record(batch.size());
+        long start = System.nanoTime();
+        watermarkLock.lock();
+        try {
+            lanes.dispatch(batch);
+            for (Transaction transaction : batch) {
+                latestTransactionId = Math.max(latestTransactionId,
+                    transaction.getTransactionId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("LedgerReader interrupted", e);
+        } finally {
+            watermarkLock.unlock();
+        }
+        applyTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        for (Transaction transaction : batch) {
+            recordLag(transaction);
+        }
+    }
+
+    private void recordLag(Transaction transaction) {
+        if (transaction.getTimestamp() != null) {
+            latestTimestamp = Math.max(latestTimestamp,
+                transaction.getTimestamp().getTime());
+            lag.record(Duration.ofMillis(Math.max(0,
+                System.currentTimeMillis()
+                    - transaction.getTimestamp().getTime())));
+        }
     }
 
     /**
      * Indicates health of LedgerReader
-     * @return false if background thread dies
+     * @return false if background thread or one of its lanes dies
      */
     public boolean isAlive() {
-        return backgroundThread == null || backgroundThread.isAlive();
+        return backgroundThread == null
+            || (backgroundThread.isAlive() && lanes.isAlive());
+    }
+
+    /**
+     * Runs a task between two batches, while no callback is in flight.
+     * State built by the callback is then consistent with the watermark,
+     * e.g. to checkpoint it. Holds back the reader until the task returns.
+     *
+     * @param task called with the current watermark
+     * @return the result of the task
+     */
+    public <T> T atWatermark(LongFunction<T> task) {
+        watermarkLock.lock();
+        try {
+            return task.apply(latestTransactionId);
+        } finally {
+            watermarkLock.unlock();
+        }
+    }
+
+    /**
+     * @return the current reader mode
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the watermark: the id of the latest transaction applied by
+     * the callback. All transactions up to it have been applied.
+     *
+     * @return the transaction id, or -1 if none was applied yet
+     */
+    public long getLatestAppliedTransactionId() {
+        return latestTransactionId;
+    }
+
+    /**
+     * @return the latest transaction id known to exist in the ledger
+     */
+    public long getRemoteTransactionId() {
+        return remoteTransactionId;
+    }
+
+    /**
+     * @return the number of known ledger transactions not yet applied
+     */
+    public long getLagTransactions() {
+        return Math.max(0, remoteTransactionId - latestTransactionId);
+    }
+
+    /**
+     * Returns how stale the applied ledger is. While transactions are
+     * pending, this is the age of the latest applied transaction; once
+     * the reader has caught up, it is zero.
+     *
+     * @return the lag in seconds
+     */
+    public double getLagSeconds() {
+        if (getLagTransactions() == 0 || latestTimestamp == 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - latestTimestamp)
+            / 1000.0;
     }
 
     /**
@@ -154,7 +716,8 @@ public final class LedgerReader {
      * @return the transaction id as a long or -1 if no transactions exist
      */
     private long getLatestTransactionId() {
-        Long latestId = dbRepo.latestTransactionId();
+        Long latestId = latestIdQueries.record(
+            () -> dbRepo.latestTransactionId());
         if (latestId == null) {
             return STARTING_TRANSACTION_ID;
         }
@@ -29,11 +29,12 @@ import org.springframework.stereotype.Repository;
 public interface TransactionRepository
         extends CrudRepository<Transaction, Long> {
 
-    @Query(value = "SELECT "
-    + "(SELECT SUM(AMOUNT) FROM TRANSACTIONS t "
-    + "     WHERE (TO_ACCT = ?1 AND TO_ROUTE = ?2)) - "
-    + " (SELECT COALESCE((SELECT SUM(AMOUNT) FROM TRANSACTIONS t "
-    + "     WHERE (FROM_ACCT = ?1 AND FROM_ROUTE = ?2)),0))",
+    /**
+     * Returns the balance of an account from the ACCOUNT_BALANCES summary
+     * updated with every insert, or NULL if it has no transactions.
+     */
+    @Query(value = "SELECT BALANCE FROM ACCOUNT_BALANCES "
+        + "WHERE ACCT = ?1 AND ROUTE = ?2",
         nativeQuery = true)
     Long findBalance(String accountNum, String routeNum);
 
@@ -51,7 +52,12 @@ public interface TransactionRepository
                                            String routingNum,
                                            Pageable pager);
 
+    /**
+     * Returns the page of transactions after the given transaction id,
+     * in transaction id order. Page 0 of a bounded Pageable is a keyset
+     * page: WHERE id > ? ORDER BY id LIMIT n.
+     */
     @Query("SELECT t FROM Transaction t "
         + " WHERE t.transactionId > ?1 ORDER BY t.transactionId ASC")
-    List<Transaction> findLatest(long latestTransaction);
+    List<Transaction> findLatest(long latestTransaction, Pageable pager);
 }